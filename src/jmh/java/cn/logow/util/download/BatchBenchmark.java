@@ -0,0 +1,59 @@
+package cn.logow.util.download;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Downloader#executeBatch(BatchDownload)} 批量下载小文件的耗时
+ *
+ * @author logow
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class BatchBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    private int batchSize;
+
+    @Param({"4096"})
+    private int payloadSize;
+
+    private LocalHttpServer server;
+    private Downloader downloader;
+    private String url;
+    private File saveDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new LocalHttpServer();
+        url = server.put("/small.bin", LocalHttpServer.randomBytes(payloadSize), true);
+        downloader = new Downloader();
+        saveDir = Files.createTempDirectory("batch-benchmark").toFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        downloader.close();
+        server.close();
+        FileUtils.deleteDirectory(saveDir);
+    }
+
+    @Benchmark
+    public List<FileEntity> executeBatch() throws IOException {
+        BatchDownload batch = new BatchDownload();
+        for (int i = 0; i < batchSize; i++) {
+            batch.addTask(url, new File(saveDir, "small-" + i + ".bin"));
+        }
+        return downloader.executeBatch(batch);
+    }
+}
@@ -0,0 +1,64 @@
+package cn.logow.util.download;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 不同缓冲区大小下 {@link DownloadEngine} 写入 FileChannel 的吞吐量
+ *
+ * @author logow
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BufferSizeBenchmark {
+
+    @Param({"4096", "65536", "1048576"})
+    private int bufferSize;
+
+    @Param({"16777216"})
+    private int payloadSize;
+
+    private byte[] payload;
+    private File saveDir;
+    private File target;
+    private HttpClientEngine engine;
+    private DownloadTask task;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        payload = new byte[payloadSize];
+        new Random(payloadSize).nextBytes(payload);
+        saveDir = Files.createTempDirectory("buffer-benchmark").toFile();
+        target = new File(saveDir, "transfer.bin");
+        task = DownloadTask.create("http://localhost/transfer.bin", saveDir.getPath());
+        engine = new HttpClientEngine(false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        engine.close();
+        FileUtils.deleteDirectory(saveDir);
+    }
+
+    @Benchmark
+    public boolean copy() throws IOException {
+        try (FileChannel dest = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DownloadJournal.Segment segment = new DownloadJournal.Segment(0, payloadSize - 1, 0);
+            return engine.copy(new ByteArrayInputStream(payload), dest, segment, new DownloadContext(task), bufferSize);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package cn.logow.util.download;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比各持久化方式写入文件的吞吐量：不同步、完成时同步、每 4MB 同步，以及是否使用临时文件
+ *
+ * @author logow
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DurabilityBenchmark {
+
+    @Param({"NONE", "ON_COMPLETE", "PERIODIC"})
+    private DownloadTask.Durability durability;
+
+    @Param({"false", "true"})
+    private boolean tempFile;
+
+    @Param({"67108864"})
+    private int payloadSize;
+
+    private byte[] payload;
+    private File saveDir;
+    private DownloadEngine engine;
+    private DownloadTask task;
+    private String path;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        payload = new byte[payloadSize];
+        new Random(payloadSize).nextBytes(payload);
+        saveDir = Files.createTempDirectory("durability-benchmark").toFile();
+        task = DownloadTask.create("http://localhost/durability.bin", saveDir.getPath());
+        task.setDurability(durability);
+        task.setSyncInterval(4 * 1024 * 1024);
+        task.setTempFile(tempFile);
+        path = FileSink.writePath(task, new File(saveDir, "durability.bin").getAbsolutePath());
+        engine = new DownloadEngine() {
+            @Override
+            protected FileEntity doExecute(DownloadTask task, DownloadContext context) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(saveDir);
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        DownloadContext context = new DownloadContext(task);
+        long transferred;
+        try (FileChannel dest = FileChannel.open(new File(path).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            FileSink.preallocate(dest, payloadSize);
+            DownloadJournal.Segment segment = new DownloadJournal.Segment(0, payloadSize - 1, 0);
+            transferred = engine.transfer(new ByteArrayInputStream(payload), dest, segment, context);
+        }
+        FileSink.commit(task, new FileEntity(path, "durability.bin", payloadSize));
+        return transferred;
+    }
+}
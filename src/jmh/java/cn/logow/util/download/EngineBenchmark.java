@@ -0,0 +1,82 @@
+package cn.logow.util.download;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link HttpClientEngine} 从本地 HTTP 服务器单线程及并发下载的吞吐量和延迟
+ *
+ * @author logow
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EngineBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        @Param({"65536", "4194304"})
+        private int payloadSize;
+
+        private LocalHttpServer server;
+        private HttpClientEngine engine;
+        private String url;
+        private File saveDir;
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            server = new LocalHttpServer();
+            url = server.put("/payload.bin", LocalHttpServer.randomBytes(payloadSize), true);
+            engine = new HttpClientEngine(false);
+            saveDir = Files.createTempDirectory("engine-benchmark").toFile();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            engine.close();
+            server.close();
+            FileUtils.deleteDirectory(saveDir);
+        }
+    }
+
+    /**
+     * 每个线程写入各自的文件
+     */
+    @State(Scope.Thread)
+    public static class Target {
+
+        private File file;
+
+        @Setup(Level.Trial)
+        public void setUp(Server server) {
+            file = new File(server.saveDir, "payload-" + server.threadCount.incrementAndGet() + ".bin");
+        }
+
+        DownloadTask newTask(Server server) throws IOException {
+            DownloadTask task = DownloadTask.create(server.url, file);
+            task.setResumable(false);
+            return task;
+        }
+    }
+
+    @Benchmark
+    public FileEntity single(Server server, Target target) throws IOException {
+        return server.engine.execute(target.newTask(server));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public FileEntity concurrent(Server server, Target target) throws IOException {
+        return server.engine.execute(target.newTask(server));
+    }
+}
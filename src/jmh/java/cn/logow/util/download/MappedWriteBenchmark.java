@@ -0,0 +1,65 @@
+package cn.logow.util.download;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 从本地 HTTP 服务器分段下载大文件，对比通过 FileChannel 按偏移量写入与按窗口内存映射写入的耗时。
+ * mappedWindowSize 为 0 时使用 FileChannel
+ *
+ * @author logow
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class MappedWriteBenchmark {
+
+    @Param({"0", "4194304", "67108864"})
+    private int mappedWindowSize;
+
+    @Param({"4"})
+    private int segments;
+
+    @Param({"268435456"})
+    private int payloadSize;
+
+    private LocalHttpServer server;
+    private HttpClientEngine engine;
+    private String url;
+    private File saveDir;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new LocalHttpServer();
+        url = server.put("/large.bin", LocalHttpServer.randomBytes(payloadSize), true);
+        engine = new HttpClientEngine(false);
+        engine.setMaxMappedRegions(segments);
+        saveDir = Files.createTempDirectory("mapped-write-benchmark").toFile();
+        file = new File(saveDir, "large.bin");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        engine.close();
+        server.close();
+        FileUtils.deleteDirectory(saveDir);
+    }
+
+    @Benchmark
+    public FileEntity download() throws IOException {
+        DownloadTask task = DownloadTask.create(url, file);
+        task.setResumable(false);
+        task.setSegments(segments);
+        task.setMappedWindowSize(mappedWindowSize);
+        return engine.execute(task);
+    }
+}
@@ -0,0 +1,74 @@
+package cn.logow.util.download;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比基于 byte[] 和 OutputStream 的传输循环与基于 FileChannel 的传输循环
+ *
+ * @author logow
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+
+    @Param({"65536", "16777216"})
+    private int payloadSize;
+
+    private byte[] payload;
+    private File saveDir;
+    private File target;
+    private DownloadEngine engine;
+    private DownloadTask task;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        payload = new byte[payloadSize];
+        new Random(payloadSize).nextBytes(payload);
+        saveDir = Files.createTempDirectory("transfer-benchmark").toFile();
+        target = new File(saveDir, "transfer.bin");
+        task = DownloadTask.create("http://localhost/transfer.bin", saveDir.getPath());
+        engine = new DownloadEngine() {
+            @Override
+            protected FileEntity doExecute(DownloadTask task, DownloadContext context) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(saveDir);
+    }
+
+    @Benchmark
+    public long streamLoop() throws IOException {
+        try (OutputStream dest = new FileOutputStream(target)) {
+            return engine.transfer(new ByteArrayInputStream(payload), dest, new DownloadContext(task));
+        }
+    }
+
+    @Benchmark
+    public long channel() throws IOException {
+        try (FileChannel dest = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DownloadJournal.Segment segment = new DownloadJournal.Segment(0, payloadSize - 1, 0);
+            return engine.transfer(new ByteArrayInputStream(payload), dest, segment, new DownloadContext(task));
+        }
+    }
+}
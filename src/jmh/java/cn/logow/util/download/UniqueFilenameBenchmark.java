@@ -0,0 +1,50 @@
+package cn.logow.util.download;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 目录中已存在大量同名文件时 {@link Utils#uniqueFilename(String, String)} 的耗时。
+ * 每次分配都会创建文件占用文件名，测量后删除，目录中的文件数保持不变
+ *
+ * @author logow
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UniqueFilenameBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    private int existingFiles;
+
+    private File saveDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        saveDir = Files.createTempDirectory("unique-filename-benchmark").toFile();
+        new File(saveDir, "download.bin").createNewFile();
+        for (int i = 2; i <= existingFiles; i++) {
+            new File(saveDir, "download_" + i + ".bin").createNewFile();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(saveDir);
+    }
+
+    @Benchmark
+    public String uniqueFilename() {
+        String name = Utils.uniqueFilename(saveDir.getPath(), "download.bin");
+        new File(saveDir, name).delete();
+        return name;
+    }
+}
@@ -0,0 +1,83 @@
+package cn.logow.util.download;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 下载线程池与虚拟线程并发下载大量小文件的耗时，虚拟线程需要在 JDK 21 及以上版本运行：
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="VirtualThreadBenchmark"
+ * </pre>
+ *
+ * @author logow
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class VirtualThreadBenchmark {
+
+    public enum ExecutorMode {
+        // 默认大小的下载线程池
+        POOL,
+        // 每个下载一个虚拟线程，并发数与批量任务数相同
+        VIRTUAL
+    }
+
+    @Param({"POOL", "VIRTUAL"})
+    private ExecutorMode mode;
+
+    @Param({"10000"})
+    private int batchSize;
+
+    @Param({"4096"})
+    private int payloadSize;
+
+    private LocalHttpServer server;
+    private Downloader downloader;
+    private String url;
+    private File saveDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        DownloaderConfig config = new DownloaderConfig();
+        if (mode == ExecutorMode.VIRTUAL) {
+            if (!VirtualThreads.isSupported()) {
+                throw new IllegalStateException("Virtual threads require JDK 21 or later");
+            }
+            config.setVirtualThreads(true);
+            config.setMaxConcurrency(batchSize);
+        }
+        // 只有一个主机，单主机并发数与全局并发数一致
+        config.setMaxConnPerHost(config.getMaxConcurrency());
+
+        server = new LocalHttpServer();
+        url = server.put("/small.bin", LocalHttpServer.randomBytes(payloadSize), true);
+        downloader = new Downloader(config);
+        saveDir = Files.createTempDirectory("virtual-thread-benchmark").toFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        downloader.close();
+        server.close();
+        FileUtils.deleteDirectory(saveDir);
+    }
+
+    @Benchmark
+    public List<FileEntity> executeBatch() throws IOException {
+        BatchDownload batch = new BatchDownload();
+        for (int i = 0; i < batchSize; i++) {
+            batch.addTask(url, new File(saveDir, "small-" + i + ".bin"));
+        }
+        return downloader.executeBatch(batch);
+    }
+}
@@ -0,0 +1,314 @@
+package cn.logow.util.download;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.ssl.SSLContexts;
+
+import javax.net.ssl.*;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyManagementException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * 基于 Apache HttpComponents 的下载引擎的公共部分，包括客户端默认配置及文件名解析
+ *
+ * @author logow
+ */
+public abstract class AbstractHttpEngine extends DownloadEngine {
+
+    // 默认使用 Chrome 浏览器的 UserAgent，兼容性最佳
+    protected static final String DEFAULT_USER_AGENT = "Mozilla/5.0 (Windows NT 6.1; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/72.0.3626.121 Safari/537.36";
+    // 所支持的 HTTPS 传输层安全协议
+    protected static final String[] SSL_PROTOCOLS = {"TLSv1", "TLSv1.1", "TLSv1.2"};
+    // 默认连接超时
+    protected static final int DEFAULT_CONN_TIMEOUT = 10000;
+    // 默认响应超时
+    protected static final int DEFAULT_READ_TIMEOUT = 30000;
+    // 下载响应头
+    protected static final String CONTENT_DISPOSITION = "Content-Disposition";
+    // 下载响应头类型
+    private static final String CONTENT_DISPOSITION_ATTACHMENT = "attachment";
+    // 下载响应头类型
+    private static final String CONTENT_DISPOSITION_INLINE = "inline";
+    // 非阻塞引擎执行文件操作的线程数，同步到磁盘时线程阻塞，多于处理器数
+    private static final int FILE_THREAD_COUNT = Runtime.getRuntime().availableProcessors() * 2;
+
+    private ConnPoolControl<HttpRoute> pool;
+
+    /**
+     * 主机的并发数调整后，同步调整连接池中该主机路由的最大连接数
+     */
+    @Override
+    protected void onHostLimitChanged(URI url, int limit) {
+        ConnPoolControl<HttpRoute> pool = this.pool;
+        if (pool == null) {
+            return;
+        }
+        pool.setMaxPerRoute(route(url), limit);
+    }
+
+    /**
+     * 下载地址对应的连接池路由，与 HttpClient 按默认端口规划的直连路由一致
+     */
+    protected static HttpRoute route(URI url) {
+        boolean secure = "https".equalsIgnoreCase(url.getScheme());
+        int port = url.getPort() > 0 ? url.getPort() : secure ? 443 : 80;
+        HttpHost target = new HttpHost(url.getHost(), port, url.getScheme());
+        return new HttpRoute(target, null, secure);
+    }
+
+    /**
+     * 创建执行文件操作的线程池。非阻塞引擎的 I/O 线程只写入已打开的文件，
+     * 分配文件名、打开和预分配文件以及完成时的同步和重命名都可能阻塞，在此线程池中执行，不拖慢同一 I/O 线程上的其他连接
+     */
+    protected static ExecutorService newFileExecutor(final String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(FILE_THREAD_COUNT, FILE_THREAD_COUNT,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    protected String headerValue(HttpResponse resp, String name) {
+        Header header = resp.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
+    /**
+     * 创建下载请求，按任务的压缩方式声明 Accept-Encoding，不压缩或引擎不支持解码时只接受 identity
+     */
+    protected HttpGet newRequest(DownloadTask task) {
+        HttpGet req = new HttpGet(task.getUrl());
+        req.setHeader(HttpHeaders.ACCEPT_ENCODING, acceptEncoding(task));
+        return req;
+    }
+
+    /**
+     * 按任务的压缩方式确定 Accept-Encoding
+     */
+    protected String acceptEncoding(DownloadTask task) {
+        DownloadTask.Compression compression = task.getCompression();
+        boolean compressed = compression == DownloadTask.Compression.RAW
+                || compression == DownloadTask.Compression.DECODE && supportsDecoding();
+        return compressed ? ContentDecoders.acceptEncoding() : "identity";
+    }
+
+    /**
+     * 记录错误响应中的 Retry-After，值为秒数或 HTTP 日期
+     */
+    protected void recordRetryAfter(DownloadContext context, HttpResponse resp) {
+        recordRetryAfter(context, headerValue(resp, HttpHeaders.RETRY_AFTER));
+    }
+
+    /**
+     * @param value Retry-After 响应头的值，没有时为 null
+     */
+    protected void recordRetryAfter(DownloadContext context, String value) {
+        if (value == null) {
+            return;
+        }
+        long millis = -1;
+        try {
+            millis = TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            if (date != null) {
+                millis = date.getTime() - System.currentTimeMillis();
+            }
+        }
+        if (millis >= 0) {
+            context.setRetryAfterMillis(millis);
+        }
+    }
+
+    /**
+     * 是否支持解码压缩传输的内容，不支持时 DECODE 按 NONE 处理
+     */
+    protected boolean supportsDecoding() {
+        return true;
+    }
+
+    protected FileEntity initFileEntity(DownloadContext context, HttpResponse resp, long contentLength, String path)
+            throws IOException {
+        getMetrics().onResponse(context);
+        context.setValidators(headerValue(resp, HttpHeaders.ETAG), headerValue(resp, HttpHeaders.LAST_MODIFIED));
+        String filename = resolveFilename(context.getDownloadTask().getUrl(), headerValue(resp, CONTENT_DISPOSITION));
+        return initFileEntity(context, filename, contentLength, path);
+    }
+
+    /**
+     * @param filename 文件名，按 URL 或响应头解析
+     * @param path 保存路径，为 null 时按任务的保存目录和文件名确定，流式下载时没有保存路径
+     */
+    protected FileEntity initFileEntity(DownloadContext context, String filename, long contentLength, String path)
+            throws IOException {
+        DownloadTask task = context.getDownloadTask();
+        // 断点续传时沿用原文件
+        if (path == null && !task.isStreaming()) {
+            if (task.getFilename() == null) {
+                // 分配时创建文件占用文件名，使用临时文件时占用的是临时文件
+                String ufn = FilenameAllocator.forDirectory(task.getSavePath())
+                        .allocate(filename, task.isTempFile() ? FileSink.TEMP_SUFFIX : "");
+                path = new File(task.getSavePath(), ufn).getAbsolutePath();
+            } else {
+                path = new File(task.getSavePath(), task.getFilename()).getAbsolutePath();
+            }
+            path = FileSink.writePath(task, path);
+        }
+
+        FileEntity fileEntity = new FileEntity(path, filename, contentLength);
+        context.setFileEntity(fileEntity);
+        return fileEntity;
+    }
+
+    /**
+     * @param contentDisposition Content-Disposition 响应头的值，没有时为 null
+     */
+    protected String resolveFilename(URI uri, String contentDisposition) {
+        String fileName = null;
+        // 优先考虑下载响应头
+        if (contentDisposition != null) {
+            fileName = resolveDownloadHeader(new BasicHeader(CONTENT_DISPOSITION, contentDisposition));
+        }
+        // 其次解析下载 URL
+        if (fileName == null || fileName.isEmpty()) {
+            fileName = Utils.resolveFilename(uri);
+        }
+        // 默认生成随机文件名
+        if (fileName == null || fileName.isEmpty()) {
+            fileName = "download_" + System.currentTimeMillis();
+        }
+
+        return fileName;
+    }
+
+    private String resolveDownloadHeader(Header header) {
+        HeaderElement[] elements = header.getElements();
+        if (elements == null || elements.length == 0) {
+            return null;
+        }
+
+        HeaderElement ele = elements[0];
+        if (!CONTENT_DISPOSITION_ATTACHMENT.equalsIgnoreCase(ele.getName())
+                || !CONTENT_DISPOSITION_INLINE.equalsIgnoreCase(ele.getName())) {
+            return null;
+        }
+
+        String rawFilename = null;
+        String filename = null;
+        NameValuePair filenameParam = ele.getParameterByName("filename*");
+        if (filenameParam != null && filenameParam.getValue() != null) {
+            String[] tokens = filenameParam.getValue().split("'");
+            if (tokens.length == 3) {
+                rawFilename = tokens[2];
+                filename = Utils.decodeURL(rawFilename, tokens[0]);
+            }
+        }
+
+        if (filename == null) {
+            // back compatibility
+            filenameParam = ele.getParameterByName("filename");
+            if (filenameParam != null && filenameParam.getValue() != null) {
+                rawFilename = filenameParam.getValue();
+                if (Utils.isAsciiString(rawFilename)) {
+                    filename = Utils.decodeURL(rawFilename, "UTF-8");
+                } else {
+                    filename = new String(rawFilename.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+                }
+            }
+        }
+
+        return filename != null ? filename : rawFilename;
+    }
+
+    /**
+     * 注册连接池的租用、空闲、等待连接数及最大连接数
+     */
+    protected void registerPoolGauges(final ConnPoolControl<HttpRoute> pool) {
+        this.pool = pool;
+        DownloadMetrics metrics = getMetrics();
+        metrics.registerGauge("connections.leased", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return pool.getTotalStats().getLeased();
+            }
+        });
+        metrics.registerGauge("connections.available", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return pool.getTotalStats().getAvailable();
+            }
+        });
+        metrics.registerGauge("connections.pending", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return pool.getTotalStats().getPending();
+            }
+        });
+        metrics.registerGauge("connections.max", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return pool.getTotalStats().getMax();
+            }
+        });
+    }
+
+    protected SSLContext unsafeSSLContext() {
+        SSLContext context = SSLContexts.createDefault();
+        try {
+            context.init(null, new TrustManager[]{new UnsafeHttps()}, null);
+        } catch (KeyManagementException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        return context;
+    }
+
+    static class UnsafeHttps implements X509TrustManager, HostnameVerifier {
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return null;
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        }
+
+        @Override
+        public boolean verify(String s, SSLSession sslSession) {
+            return true;
+        }
+    }
+}
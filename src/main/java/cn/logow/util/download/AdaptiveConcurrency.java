@@ -0,0 +1,295 @@
+package cn.logow.util.download;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 按主机自适应调整并发连接数，加性增长、乘性减少（AIMD）。
+ * <p>
+ * 并发数用满的主机每完成一个下载增加 1/并发数，约每轮并发增加 1 个连接；首字节耗时明显高于最小值，
+ * 或单个下载的速率明显低于最佳值时，说明服务器或链路已经饱和，不再增长。
+ * 收到 429、503 响应或连接失败、超时时减半，两次减少之间至少间隔冷却时间，避免同一轮并发的多个失败连续减半。
+ * <p>
+ * 调度器按当前值限制各主机的并发下载数，下载引擎据此限制分段数并调整连接池的单路由最大连接数
+ *
+ * @author logow
+ */
+final class AdaptiveConcurrency {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveConcurrency.class);
+
+    // 乘性减少的比例
+    private static final double DECREASE_FACTOR = 0.5;
+    // 两次减少的最小间隔
+    private static final long DECREASE_COOLDOWN_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // 首字节耗时超过最小值的倍数再加上容差时不再增长，容差避免耗时很短时的正常波动
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final long LATENCY_SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    // 单个下载的速率低于最佳值的比例时不再增长
+    private static final double THROUGHPUT_TOLERANCE = 0.5;
+    // 指数加权平均的权重
+    private static final double EWMA_ALPHA = 0.2;
+    // 计算速率的最小下载字节数，过小的文件主要是请求开销
+    private static final long MIN_THROUGHPUT_SAMPLE_BYTES = 64 * 1024;
+
+    private final int min;
+    private final int max;
+    private final int initial;
+    private final DownloadEngine engine;
+    // 按主机设置的引擎，其连接池单独调整
+    private final Map<String, DownloadEngine> hostEngines = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * @param initial 新主机的初始并发数，限制在最小值与最大值之间
+     */
+    AdaptiveConcurrency(int min, int max, int initial, DownloadEngine engine) {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("require 1 <= min <= max");
+        }
+        this.min = min;
+        this.max = max;
+        this.initial = Math.max(min, Math.min(max, initial));
+        this.engine = engine;
+    }
+
+    int getMax() {
+        return max;
+    }
+
+    /**
+     * 设置主机使用的引擎，与调度器一致，并发数变化时调整该引擎的连接池
+     */
+    void setHostEngine(String host, DownloadEngine engine) {
+        hostEngines.put(host.toLowerCase(Locale.ROOT), engine);
+    }
+
+    private DownloadEngine engineFor(URI url) {
+        String host = url.getHost();
+        DownloadEngine hostEngine = host != null && !hostEngines.isEmpty()
+                ? hostEngines.get(host.toLowerCase(Locale.ROOT)) : null;
+        return hostEngine != null ? hostEngine : engine;
+    }
+
+    /**
+     * 主机当前的并发数
+     */
+    int limit(String host) {
+        Host h = host != null ? hosts.get(host) : null;
+        return h != null ? h.limit() : initial;
+    }
+
+    void onStart(DownloadContext context) {
+        host(context).onStart();
+    }
+
+    /**
+     * 下载完成，记录首字节耗时及速率，并发数用满时增长
+     */
+    void onComplete(DownloadContext context) {
+        if (!context.markConcurrencyReleased()) {
+            return;
+        }
+        long elapsed = System.nanoTime() - context.getStartNanos();
+        long bytes = context.getWireBytesTransferred();
+        double throughput = bytes >= MIN_THROUGHPUT_SAMPLE_BYTES && elapsed > 0
+                ? bytes * 1e9 / elapsed : -1;
+        Host host = host(context);
+        resized(context, host, host.onSuccess(context.getTimeToFirstByteNanos(), throughput));
+    }
+
+    /**
+     * 下载失败，服务器限流或连接失败时减少并发数
+     */
+    void onError(DownloadContext context, IOException e) {
+        if (!context.markConcurrencyReleased()) {
+            return;
+        }
+        Host host = host(context);
+        if (isOverload(e)) {
+            logger.debug("Host {} is overloaded: {}", host.name, e.toString());
+            resized(context, host, host.onOverload());
+        } else {
+            host.onFailure();
+        }
+    }
+
+    /**
+     * 下载失败后将要重试，服务器限流或连接失败时减少并发数，不归还并发数
+     */
+    void onRetry(DownloadContext context, IOException e) {
+        if (isOverload(e)) {
+            Host host = host(context);
+            logger.debug("Host {} is overloaded: {}", host.name, e.toString());
+            resized(context, host, host.decrease());
+        }
+    }
+
+    /**
+     * 下载被取消或以其他方式结束，只归还并发数
+     */
+    void release(DownloadContext context) {
+        if (context.markConcurrencyReleased()) {
+            host(context).onFailure();
+        }
+    }
+
+    private void resized(DownloadContext context, Host host, int limit) {
+        if (limit > 0) {
+            logger.debug("Adjust concurrency of host {} to {}", host.name, limit);
+            URI url = context.getDownloadTask().getUrl();
+            engineFor(url).onHostLimitChanged(url, limit);
+        }
+    }
+
+    private Host host(DownloadContext context) {
+        URI url = context.getDownloadTask().getUrl();
+        String name = url.getHost();
+        Host host = hosts.get(name);
+        if (host == null) {
+            host = new Host(name, initial);
+            Host prev = hosts.putIfAbsent(name, host);
+            if (prev != null) {
+                host = prev;
+            } else {
+                engineFor(url).onHostLimitChanged(url, initial);
+                final Host h = host;
+                engine.getMetrics().registerGauge("concurrency." + name, new LongSupplier() {
+                    @Override
+                    public long getAsLong() {
+                        return h.limit();
+                    }
+                });
+            }
+        }
+        return host;
+    }
+
+    /**
+     * 服务器限流或过载：429、503 响应，连接被拒绝、超时或无响应
+     */
+    static boolean isOverload(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            int status = t instanceof HttpResponseException ? ((HttpResponseException) t).getStatusCode()
+                    : t instanceof HttpStatusException ? ((HttpStatusException) t).getStatusCode() : 0;
+            if (status == 429 || status == 503) {
+                return true;
+            }
+            if (t instanceof ConnectException || t instanceof ConnectTimeoutException || t instanceof SocketTimeoutException
+                    || t instanceof NoHttpResponseException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 单个主机的并发数及统计
+     */
+    private final class Host {
+
+        final String name;
+        private double limit;
+        private int inflight;
+        // 上次完成以来是否用满了并发数，未用满时增长没有意义
+        private boolean saturated;
+        private double latency = -1;
+        private double minLatency = Double.MAX_VALUE;
+        private double throughput = -1;
+        private double bestThroughput;
+        private double errorRate;
+        private long lastDecreaseNanos;
+
+        Host(String name, int initial) {
+            this.name = name;
+            this.limit = initial;
+            this.lastDecreaseNanos = System.nanoTime() - DECREASE_COOLDOWN_NANOS;
+        }
+
+        synchronized int limit() {
+            return (int) limit;
+        }
+
+        synchronized void onStart() {
+            inflight++;
+            if (inflight >= (int) limit) {
+                saturated = true;
+            }
+        }
+
+        /**
+         * @return 并发数的整数部分变化时返回新值，否则返回 0
+         */
+        synchronized int onSuccess(long ttfbNanos, double sample) {
+            inflight--;
+            errorRate = ewma(errorRate, 0);
+            if (ttfbNanos >= 0) {
+                latency = latency < 0 ? ttfbNanos : ewma(latency, ttfbNanos);
+                minLatency = Math.min(minLatency, ttfbNanos);
+            }
+            if (sample > 0) {
+                throughput = throughput < 0 ? sample : ewma(throughput, sample);
+                bestThroughput = Math.max(bestThroughput, throughput);
+            }
+
+            boolean wasSaturated = saturated;
+            saturated = inflight >= (int) limit;
+            if (!wasSaturated || limit >= max || latencyInflated() || throughputCollapsed()) {
+                return 0;
+            }
+            int before = (int) limit;
+            limit = Math.min(max, limit + 1 / limit);
+            return (int) limit != before ? (int) limit : 0;
+        }
+
+        synchronized int onOverload() {
+            inflight--;
+            return decrease();
+        }
+
+        synchronized int decrease() {
+            errorRate = ewma(errorRate, 1);
+            long now = System.nanoTime();
+            if (now - lastDecreaseNanos < DECREASE_COOLDOWN_NANOS || limit <= min) {
+                return 0;
+            }
+            lastDecreaseNanos = now;
+            int before = (int) limit;
+            limit = Math.max(min, limit * DECREASE_FACTOR);
+            saturated = false;
+            logger.info("Reduce concurrency of host {} from {} to {}, error rate {}",
+                    name, before, (int) limit, String.format("%.2f", errorRate));
+            return (int) limit != before ? (int) limit : 0;
+        }
+
+        synchronized void onFailure() {
+            inflight--;
+        }
+
+        private boolean latencyInflated() {
+            return latency > 0 && minLatency < Double.MAX_VALUE && latency > minLatency * LATENCY_TOLERANCE + LATENCY_SLACK_NANOS;
+        }
+
+        private boolean throughputCollapsed() {
+            return throughput > 0 && throughput < bestThroughput * THROUGHPUT_TOLERANCE;
+        }
+
+        private double ewma(double average, double sample) {
+            return average + EWMA_ALPHA * (sample - average);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package cn.logow.util.download;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于令牌桶的带宽限速器，速率可在运行时调整。
+ * <p>
+ * 令牌桶只记录一个“下一次可用时间”，每次预留带宽只需一次 CAS，不加锁，多个下载线程共用时不会成为瓶颈。
+ * 调用方按读取的数据块预留带宽，再按返回的时间等待，而不是逐字节计数
+ *
+ * @author logow
+ */
+public final class BandwidthLimiter {
+
+    // 桶容量，空闲后最多允许突发的时长
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    // 限速时单次读取的时长，数据块越小速率越平滑
+    private static final long CHUNK_PER_SECOND = 20;
+    // 限速时单次读取的最小字节数
+    private static final int MIN_CHUNK_SIZE = 1024;
+
+    private volatile long bytesPerSecond;
+    private final AtomicLong nextFreeNanos = new AtomicLong(System.nanoTime() - BURST_NANOS);
+
+    /**
+     * @param bytesPerSecond 每秒字节数，不大于 0 时不限速
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public long getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * 调整速率，对正在进行的下载立即生效
+     * @param bytesPerSecond 每秒字节数，不大于 0 时不限速
+     */
+    public void setRate(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public boolean isLimited() {
+        return bytesPerSecond > 0;
+    }
+
+    /**
+     * 预留带宽，超出速率的部分计入后续请求
+     * @param bytes 已读取或将要读取的字节数
+     * @return 调用方需要等待的纳秒数
+     */
+    long reserve(long bytes) {
+        long rate = bytesPerSecond;
+        if (rate <= 0 || bytes <= 0) {
+            return 0;
+        }
+
+        long cost = TimeUnit.SECONDS.toNanos(bytes) / rate;
+        long now = System.nanoTime();
+        for (;;) {
+            long next = nextFreeNanos.get();
+            long updated = Math.max(next, now - BURST_NANOS) + cost;
+            if (nextFreeNanos.compareAndSet(next, updated)) {
+                return Math.max(0, updated - now);
+            }
+        }
+    }
+
+    /**
+     * 限速时缩小单次读取的字节数，避免一次读取整个缓冲区后长时间等待
+     */
+    int limitChunk(int size) {
+        long rate = bytesPerSecond;
+        if (rate <= 0) {
+            return size;
+        }
+        return (int) Math.min(size, Math.max(MIN_CHUNK_SIZE, rate / CHUNK_PER_SECOND));
+    }
+}
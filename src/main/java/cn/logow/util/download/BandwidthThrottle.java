@@ -0,0 +1,97 @@
+package cn.logow.util.download;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 下载引擎的带宽限制，包括全局限速和按主机限速，任务级限速见 {@link DownloadTask#setRateLimit(long)}。
+ * <p>
+ * 所有限速可在运行时调整，对正在进行的下载立即生效；下载开始后新增的主机限速从下一个下载开始生效
+ *
+ * @author logow
+ */
+public class BandwidthThrottle {
+
+    private final BandwidthLimiter global = new BandwidthLimiter(0);
+    // 单独设置了限速的主机
+    private final ConcurrentMap<String, BandwidthLimiter> hosts = new ConcurrentHashMap<>();
+    // 使用默认限速的主机
+    private final ConcurrentMap<String, BandwidthLimiter> defaultHosts = new ConcurrentHashMap<>();
+    private volatile long defaultHostRate;
+
+    public long getGlobalRate() {
+        return global.getRate();
+    }
+
+    /**
+     * 设置所有下载共享的带宽
+     * @param bytesPerSecond 每秒字节数，不大于 0 时不限速
+     */
+    public void setGlobalRate(long bytesPerSecond) {
+        global.setRate(bytesPerSecond);
+    }
+
+    public long getDefaultHostRate() {
+        return defaultHostRate;
+    }
+
+    /**
+     * 设置未单独限速的主机的带宽，每个主机分别计算
+     * @param bytesPerSecond 每秒字节数，不大于 0 时不限速
+     */
+    public void setDefaultHostRate(long bytesPerSecond) {
+        this.defaultHostRate = bytesPerSecond;
+        for (BandwidthLimiter limiter : defaultHosts.values()) {
+            limiter.setRate(bytesPerSecond);
+        }
+    }
+
+    public long getHostRate(String host) {
+        BandwidthLimiter limiter = hosts.get(host);
+        return limiter != null ? limiter.getRate() : defaultHostRate;
+    }
+
+    /**
+     * 设置指定主机的带宽，该主机的所有下载共享
+     * @param bytesPerSecond 每秒字节数，不大于 0 时不限速
+     */
+    public void setHostRate(String host, long bytesPerSecond) {
+        if (host == null || host.isEmpty()) {
+            throw new IllegalArgumentException("host must not be empty");
+        }
+        BandwidthLimiter limiter = hosts.get(host);
+        if (limiter == null) {
+            BandwidthLimiter existing = defaultHosts.remove(host);
+            limiter = existing != null ? existing : new BandwidthLimiter(bytesPerSecond);
+            BandwidthLimiter prev = hosts.putIfAbsent(host, limiter);
+            if (prev != null) {
+                limiter = prev;
+            }
+        }
+        limiter.setRate(bytesPerSecond);
+    }
+
+    BandwidthLimiter global() {
+        return global;
+    }
+
+    /**
+     * @return 主机的限速器，主机未单独限速且没有默认限速时返回 null
+     */
+    BandwidthLimiter host(String host) {
+        BandwidthLimiter limiter = hosts.get(host);
+        if (limiter != null || host == null) {
+            return limiter;
+        }
+        limiter = defaultHosts.get(host);
+        long rate = defaultHostRate;
+        if (limiter == null && rate > 0) {
+            limiter = new BandwidthLimiter(rate);
+            BandwidthLimiter prev = defaultHosts.putIfAbsent(host, limiter);
+            if (prev != null) {
+                limiter = prev;
+            }
+        }
+        return limiter;
+    }
+}
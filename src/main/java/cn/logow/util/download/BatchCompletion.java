@@ -0,0 +1,93 @@
+package cn.logow.util.download;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * 批量下载按完成顺序的结果队列，任务结束后立即可以取出其结果，不必等待排在前面的任务。
+ * <p>
+ * 已取出的结果不再保留，处理大批量下载时不会累积全部结果
+ *
+ * @author logow
+ */
+public final class BatchCompletion {
+
+    private final int size;
+    private final BlockingQueue<BatchResult> completed = new LinkedBlockingQueue<>();
+    private final AtomicInteger taken = new AtomicInteger();
+
+    BatchCompletion(int size) {
+        this.size = size;
+    }
+
+    void add(final DownloadTask task, CompletableFuture<FileEntity> future, final boolean skipped) {
+        future.whenComplete(new BiConsumer<FileEntity, Throwable>() {
+            @Override
+            public void accept(FileEntity fileEntity, Throwable e) {
+                if (e instanceof CompletionException && e.getCause() != null) {
+                    e = e.getCause();
+                }
+                completed.add(new BatchResult(task, fileEntity, e, skipped));
+            }
+        });
+    }
+
+    /**
+     * 批量下载的任务数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 尚未取出结果的任务数
+     */
+    public int remaining() {
+        return size - taken.get();
+    }
+
+    /**
+     * 取出下一个完成的结果，没有已完成的任务时等待
+     * @return 全部结果都已取出时返回 null
+     */
+    public BatchResult take() throws InterruptedException {
+        if (remaining() <= 0) {
+            return null;
+        }
+        BatchResult result = completed.take();
+        taken.incrementAndGet();
+        return result;
+    }
+
+    /**
+     * 取出下一个完成的结果，没有已完成的任务时最多等待指定的时间
+     * @return 超时或全部结果都已取出时返回 null
+     */
+    public BatchResult poll(long timeout, TimeUnit unit) throws InterruptedException {
+        if (remaining() <= 0) {
+            return null;
+        }
+        BatchResult result = completed.poll(timeout, unit);
+        if (result != null) {
+            taken.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * 取出已完成的结果，不等待
+     * @return 没有已完成的任务时返回 null
+     */
+    public BatchResult poll() {
+        BatchResult result = completed.poll();
+        if (result != null) {
+            taken.incrementAndGet();
+        }
+        return result;
+    }
+}
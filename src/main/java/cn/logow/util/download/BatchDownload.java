@@ -1,24 +1,74 @@
 package cn.logow.util.download;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
-public class BatchDownload implements Iterable<DownloadTask> {
+public class BatchDownload implements Iterable<DownloadTask>, Closeable {
 
     private List<DownloadTask> taskList = new LinkedList<>();
 
+    // 持久化的批量下载清单，内存中的批量下载为 null
+    private BatchManifest manifest;
+    private Map<DownloadTask, BatchManifest.Entry> entries;
+    private Map<BatchManifest.Entry, DownloadTask> tasks;
+
+    private int warmUpConnections;
+    private volatile WarmUpResult warmUpResult;
+
+    public BatchDownload() {
+    }
+
+    private BatchDownload(BatchManifest manifest) throws IOException {
+        this.manifest = manifest;
+        this.entries = new IdentityHashMap<>();
+        this.tasks = new IdentityHashMap<>();
+        for (BatchManifest.Entry entry : manifest.entries()) {
+            DownloadTask task = entry.newTask();
+            taskList.add(task);
+            entries.put(task, entry);
+            tasks.put(entry, task);
+        }
+    }
+
+    /**
+     * 打开持久化的批量下载，任务及其状态记录在清单文件中。
+     * <p>
+     * 清单中已有的任务重新加载，已完成的任务执行时跳过，未完成的任务从断点续传日志继续；
+     * 重新添加相同的任务时返回已加载的任务，可在执行前重新设置下载参数
+     * @param manifestFile 清单文件，不存在时创建
+     */
+    public static BatchDownload open(File manifestFile) throws IOException {
+        if (manifestFile == null) {
+            throw new IllegalArgumentException("manifestFile must not be null");
+        }
+        return new BatchDownload(BatchManifest.open(manifestFile));
+    }
+
     public DownloadTask addTask(String url, File saveAs) throws IOException {
-        DownloadTask task = DownloadTask.create(url, saveAs);
-        taskList.add(task);
-        return task;
+        return add(DownloadTask.create(url, saveAs));
     }
 
     public DownloadTask addTask(String url, String saveTo) throws IOException {
-        DownloadTask task = DownloadTask.create(url, saveTo);
+        return add(DownloadTask.create(url, saveTo));
+    }
+
+    private DownloadTask add(DownloadTask task) throws IOException {
+        if (manifest != null) {
+            BatchManifest.Entry entry = manifest.add(task);
+            DownloadTask existing = tasks.get(entry);
+            if (existing != null) {
+                return existing;
+            }
+            entries.put(task, entry);
+            tasks.put(entry, task);
+        }
         taskList.add(task);
         return task;
     }
@@ -36,16 +86,85 @@ public class BatchDownload implements Iterable<DownloadTask> {
         }
     }
 
+    /**
+     * 是否为持久化的批量下载
+     */
+    public boolean isDurable() {
+        return manifest != null;
+    }
+
+    /**
+     * 清单中的任务是否在之前的执行中已完成，内存中的批量下载总是返回 false
+     */
+    public boolean isCompleted(DownloadTask task) {
+        BatchManifest.Entry entry = entry(task);
+        return entry != null && entry.isCompleted();
+    }
+
+    BatchManifest getManifest() {
+        return manifest;
+    }
+
+    BatchManifest.Entry entry(DownloadTask task) {
+        return entries != null ? entries.get(task) : null;
+    }
+
+    public int getWarmUpConnections() {
+        return warmUpConnections;
+    }
+
+    /**
+     * 设置下载开始前为每个主机预先建立的连接数，默认不预热。
+     * <p>
+     * 预热时按主机合并任务，每个主机只解析一次域名，并行建立连接并完成 TLS 握手后保留在连接池中，
+     * 下载时直接使用。每个主机的连接数不超过其任务数及单个主机的最大连接数，仅 HTTP_CLIENT 引擎支持
+     * @param connectionsPerHost 每个主机最多预热的连接数，为 0 时不预热
+     */
+    public void setWarmUpConnections(int connectionsPerHost) {
+        if (connectionsPerHost < 0) {
+            throw new IllegalArgumentException("connectionsPerHost must not be negative");
+        }
+        this.warmUpConnections = connectionsPerHost;
+    }
+
+    /**
+     * 最近一次执行时预热连接的结果，包括估算节省的时间，未预热时为 null
+     */
+    public WarmUpResult getWarmUpResult() {
+        return warmUpResult;
+    }
+
+    void setWarmUpResult(WarmUpResult warmUpResult) {
+        this.warmUpResult = warmUpResult;
+    }
+
     public int size() {
         return taskList.size();
     }
 
+    /**
+     * 清空内存中的任务，不修改清单文件
+     */
     public void clear() {
         taskList.clear();
+        if (entries != null) {
+            entries.clear();
+            tasks.clear();
+        }
     }
 
     @Override
     public Iterator<DownloadTask> iterator() {
         return taskList.iterator();
     }
+
+    /**
+     * 关闭清单文件，内存中的批量下载无需关闭
+     */
+    @Override
+    public void close() throws IOException {
+        if (manifest != null) {
+            manifest.close();
+        }
+    }
 }
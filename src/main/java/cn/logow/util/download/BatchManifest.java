@@ -0,0 +1,334 @@
+package cn.logow.util.download;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 批量下载清单，以追加方式记录每个任务的状态，进程崩溃后据此继续未完成的批量下载。
+ * <p>
+ * 每行一条记录，字段以制表符分隔：
+ * <pre>
+ * add     id url savePath filename
+ * running id
+ * done    id fileSize path
+ * failed  id offset message
+ * </pre>
+ * 记录逐条写入，进程崩溃时最多丢失未写完的最后一行，加载时丢弃；
+ * 距上次同步超过间隔时将清单同步到磁盘。未完成文件的已下载部分由各自的断点续传日志记录
+ *
+ * @author logow
+ */
+final class BatchManifest implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchManifest.class);
+
+    private static final String HEADER = "# batch manifest v1";
+    // 两次同步到磁盘的最小间隔
+    private static final long SYNC_INTERVAL_MILLIS = 1000L;
+
+    enum State {
+        PENDING, RUNNING, DONE, FAILED
+    }
+
+    private final File file;
+    // 任务标识（URL 及保存位置）到清单条目，按添加顺序
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private FileOutputStream out;
+    private int nextId;
+    private long lastSyncTime;
+
+    private BatchManifest(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 打开清单文件，不存在时创建；已有的清单中过时的记录较多时先压缩
+     */
+    static BatchManifest open(File file) throws IOException {
+        BatchManifest manifest = new BatchManifest(file);
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null) {
+            Utils.mkdirs(dir);
+        }
+        int records = file.isFile() ? manifest.load() : 0;
+        if (records == 0 || records > manifest.entries.size() * 2) {
+            manifest.rewrite();
+        }
+        manifest.out = new FileOutputStream(file, true);
+        return manifest;
+    }
+
+    /**
+     * 读取已有的记录，丢弃未写完的最后一行
+     * @return 有效记录数
+     */
+    private int load() throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] != '\n') {
+            end--;
+        }
+        if (end < bytes.length) {
+            logger.warn("Discard incomplete record at the end of batch manifest '{}'", file);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(end);
+            }
+        }
+
+        Map<Integer, Entry> byId = new LinkedHashMap<>();
+        int records = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(bytes, 0, end), StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            try {
+                apply(line.split("\t", -1), byId);
+                records++;
+            } catch (RuntimeException e) {
+                logger.warn("Skip malformed record in batch manifest '{}': {}", file, line);
+            }
+        }
+        for (Entry entry : byId.values()) {
+            entries.put(entry.key(), entry);
+            nextId = Math.max(nextId, entry.id + 1);
+        }
+        return records;
+    }
+
+    private static void apply(String[] fields, Map<Integer, Entry> byId) {
+        int id = Integer.parseInt(fields[1]);
+        if ("add".equals(fields[0])) {
+            String filename = fields[4].isEmpty() ? null : unescape(fields[4]);
+            byId.put(id, new Entry(id, unescape(fields[2]), unescape(fields[3]), filename));
+            return;
+        }
+
+        Entry entry = byId.get(id);
+        if (entry == null) {
+            throw new IllegalArgumentException("unknown entry " + id);
+        }
+        switch (fields[0]) {
+            case "running":
+                entry.state = State.RUNNING;
+                break;
+            case "done":
+                entry.state = State.DONE;
+                entry.offset = Long.parseLong(fields[2]);
+                entry.path = unescape(fields[3]);
+                break;
+            case "failed":
+                entry.state = State.FAILED;
+                entry.offset = Long.parseLong(fields[2]);
+                entry.message = fields[3].isEmpty() ? null : unescape(fields[3]);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown record " + fields[0]);
+        }
+    }
+
+    /**
+     * 每个条目只保留最新状态，先写临时文件再原子替换
+     */
+    private void rewrite() throws IOException {
+        StringBuilder sb = new StringBuilder(HEADER).append('\n');
+        for (Entry entry : entries.values()) {
+            sb.append(addRecord(entry));
+            String record = stateRecord(entry);
+            if (record != null) {
+                sb.append(record);
+            }
+        }
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(true);
+        }
+        Files.move(tmpFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String addRecord(Entry entry) {
+        return "add\t" + entry.id + "\t" + escape(entry.url) + "\t" + escape(entry.savePath) + "\t"
+                + (entry.filename != null ? escape(entry.filename) : "") + "\n";
+    }
+
+    private static String stateRecord(Entry entry) {
+        switch (entry.state) {
+            case RUNNING:
+                return "running\t" + entry.id + "\n";
+            case DONE:
+                return "done\t" + entry.id + "\t" + entry.offset + "\t" + escape(entry.path) + "\n";
+            case FAILED:
+                return "failed\t" + entry.id + "\t" + entry.offset + "\t"
+                        + (entry.message != null ? escape(entry.message) : "") + "\n";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 全部条目，按添加顺序
+     */
+    synchronized Collection<Entry> entries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * 添加任务，清单中已有相同的任务时返回已有的条目
+     */
+    synchronized Entry add(DownloadTask task) throws IOException {
+        Entry entry = new Entry(nextId, task.getUrl().toString(), task.getSavePath(), task.getFilename());
+        Entry existing = entries.get(entry.key());
+        if (existing != null) {
+            return existing;
+        }
+        append(addRecord(entry));
+        entries.put(entry.key(), entry);
+        nextId++;
+        return entry;
+    }
+
+    synchronized void running(Entry entry) throws IOException {
+        entry.state = State.RUNNING;
+        append(stateRecord(entry));
+    }
+
+    synchronized void done(Entry entry, FileEntity fileEntity) throws IOException {
+        entry.state = State.DONE;
+        entry.offset = fileEntity.getFileSize();
+        entry.path = fileEntity.getPath();
+        entry.message = null;
+        append(stateRecord(entry));
+    }
+
+    /**
+     * @param offset 已保存的字节数，下次从此处继续
+     */
+    synchronized void failed(Entry entry, long offset, Throwable e) throws IOException {
+        entry.state = State.FAILED;
+        entry.offset = offset;
+        entry.message = e != null ? String.valueOf(e.getMessage()) : null;
+        append(stateRecord(entry));
+    }
+
+    private void append(String record) throws IOException {
+        if (out == null) {
+            throw new IOException("Batch manifest '" + file + "' is closed");
+        }
+        // 整行一次写入，崩溃时最多留下不完整的最后一行
+        out.write(record.getBytes(StandardCharsets.UTF_8));
+        long now = System.currentTimeMillis();
+        if (now - lastSyncTime >= SYNC_INTERVAL_MILLIS) {
+            out.getFD().sync();
+            lastSyncTime = now;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            try {
+                out.getFD().sync();
+            } finally {
+                out.close();
+                out = null;
+            }
+        }
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\': sb.append("\\\\"); break;
+                case '\t': sb.append("\\t"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char next = s.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 清单中的一个任务
+     */
+    static final class Entry {
+
+        final int id;
+        final String url;
+        final String savePath;
+        // 未指定文件名时为 null，由下载时的响应决定
+        final String filename;
+        State state = State.PENDING;
+        // 已完成时为文件大小，失败时为已保存的字节数
+        long offset;
+        String path;
+        String message;
+
+        Entry(int id, String url, String savePath, String filename) {
+            this.id = id;
+            this.url = url;
+            this.savePath = savePath;
+            this.filename = filename;
+        }
+
+        String key() {
+            return url + "\n" + new File(savePath).getAbsolutePath() + "\n" + (filename != null ? filename : "");
+        }
+
+        /**
+         * 已完成且文件仍然存在，重新执行时跳过
+         */
+        boolean isCompleted() {
+            return state == State.DONE && path != null && new File(path).isFile();
+        }
+
+        DownloadTask newTask() throws IOException {
+            return filename != null ? DownloadTask.create(url, new File(savePath, filename))
+                    : DownloadTask.create(url, savePath);
+        }
+
+        FileEntity toFileEntity() {
+            return new FileEntity(path, new File(path).getName(), offset);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package cn.logow.util.download;
+
+/**
+ * 批量下载中单个任务的结果，任务失败不影响其他任务的结果
+ *
+ * @author logow
+ */
+public final class BatchResult {
+
+    private final DownloadTask task;
+    private final FileEntity fileEntity;
+    private final Throwable error;
+    private final boolean skipped;
+
+    BatchResult(DownloadTask task, FileEntity fileEntity, Throwable error, boolean skipped) {
+        this.task = task;
+        this.fileEntity = fileEntity;
+        this.error = error;
+        this.skipped = skipped;
+    }
+
+    public DownloadTask getTask() {
+        return task;
+    }
+
+    /**
+     * 下载的文件，失败时为 null
+     */
+    public FileEntity getFileEntity() {
+        return fileEntity;
+    }
+
+    /**
+     * 失败原因，成功时为 null；监听器未抛出异常的失败也没有原因
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return fileEntity != null;
+    }
+
+    /**
+     * 是否在持久化批量下载之前的执行中已完成，本次未下载
+     */
+    public boolean isSkipped() {
+        return skipped;
+    }
+
+    @Override
+    public String toString() {
+        return task + (isSuccess() ? " -> " + fileEntity.getPath() : " failed: " + error);
+    }
+}
@@ -0,0 +1,89 @@
+package cn.logow.util.download;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * 文件IO缓冲区池，按 2 的幂划分规格，避免每次下载都分配新的缓冲区
+ *
+ * @author logow
+ */
+final class BufferPool {
+
+    // 最小缓冲区大小
+    private static final int MIN_BUFFER_SIZE = 1024 * 8;
+    // 最大缓冲区大小
+    private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+    // 文件长度未知时的缓冲区大小
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 64;
+    // 每种规格缓存的缓冲区总字节数上限
+    private static final int MAX_POOLED_BYTES_PER_SIZE = 1024 * 1024 * 16;
+
+    private static final ArrayBlockingQueue<ByteBuffer>[] POOLS = createPools();
+
+    private BufferPool() {}
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayBlockingQueue<ByteBuffer>[] createPools() {
+        int count = indexOf(MAX_BUFFER_SIZE) + 1;
+        ArrayBlockingQueue<ByteBuffer>[] pools = new ArrayBlockingQueue[count];
+        for (int i = 0; i < count; i++) {
+            int size = MIN_BUFFER_SIZE << i;
+            pools[i] = new ArrayBlockingQueue<>(Math.max(4, MAX_POOLED_BYTES_PER_SIZE / size));
+        }
+        return pools;
+    }
+
+    private static int indexOf(int size) {
+        return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+
+    /**
+     * 根据待下载的字节数选择缓冲区大小，约为文件长度的 1/8，大文件使用较大的缓冲区以减少系统调用
+     * @param contentLength 待下载的字节数，未知时为 -1
+     */
+    static int sizeFor(long contentLength) {
+        if (contentLength < 0) {
+            return DEFAULT_BUFFER_SIZE;
+        }
+        long size = Math.min(contentLength / 8, MAX_BUFFER_SIZE);
+        return Math.max(MIN_BUFFER_SIZE, Integer.highestOneBit((int) size));
+    }
+
+    /**
+     * 获取缓冲区，使用堆内存以便直接从 InputStream 读入。
+     * 大小向上取整到规格，小于最小规格或大于最大规格时按原大小分配，不进入池
+     * @param size 缓冲区大小，通常由 {@link #sizeFor(long)} 计算
+     */
+    static ByteBuffer acquire(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+        if (size < MIN_BUFFER_SIZE || size > MAX_BUFFER_SIZE) {
+            return ByteBuffer.allocate(size);
+        }
+        int pooledSize = roundUp(size);
+        ByteBuffer buf = POOLS[indexOf(pooledSize)].poll();
+        if (buf == null) {
+            buf = ByteBuffer.allocate(pooledSize);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * 归还缓冲区，不属于任何规格或池已满时丢弃
+     */
+    static void release(ByteBuffer buf) {
+        int capacity = buf.capacity();
+        if (capacity < MIN_BUFFER_SIZE || capacity > MAX_BUFFER_SIZE || capacity != roundUp(capacity)) {
+            return;
+        }
+        POOLS[indexOf(capacity)].offer(buf);
+    }
+
+    private static int roundUp(int size) {
+        int highest = Integer.highestOneBit(size);
+        return highest == size ? size : highest << 1;
+    }
+}
@@ -0,0 +1,64 @@
+package cn.logow.util.download;
+
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按固定的有效期缓存域名解析结果，同一主机的大量连接只解析一次，解析失败不缓存
+ *
+ * @author logow
+ */
+final class CachingDnsResolver implements DnsResolver {
+
+    private final DnsResolver delegate;
+    private final long ttlNanos;
+    private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<>();
+
+    CachingDnsResolver(long ttl, TimeUnit unit) {
+        this(SystemDefaultDnsResolver.INSTANCE, ttl, unit);
+    }
+
+    CachingDnsResolver(DnsResolver delegate, long ttl, TimeUnit unit) {
+        if (ttl < 1) {
+            throw new IllegalArgumentException("ttl must be positive");
+        }
+        this.delegate = delegate;
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        long now = System.nanoTime();
+        Entry entry = cache.get(host);
+        if (entry == null || now - entry.resolvedNanos >= ttlNanos) {
+            entry = new Entry(delegate.resolve(host), now);
+            cache.put(host, entry);
+        }
+        return entry.addresses.clone();
+    }
+
+    /**
+     * 主机的解析结果是否已缓存且未过期
+     */
+    boolean isCached(String host) {
+        Entry entry = cache.get(host);
+        return entry != null && System.nanoTime() - entry.resolvedNanos < ttlNanos;
+    }
+
+    private static final class Entry {
+
+        final InetAddress[] addresses;
+        final long resolvedNanos;
+
+        Entry(InetAddress[] addresses, long resolvedNanos) {
+            this.addresses = addresses;
+            this.resolvedNanos = resolvedNanos;
+        }
+    }
+}
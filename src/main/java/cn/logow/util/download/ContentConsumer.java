@@ -0,0 +1,22 @@
+package cn.logow.util.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 流式下载的内容消费者，按到达顺序接收响应内容，不写入磁盘。
+ * <p>
+ * 在下载线程中调用，返回前不再读取连接，处理较慢时服务器的发送也随之放慢；
+ * 非阻塞的下载引擎在 I/O 线程中调用，不应执行耗时操作
+ *
+ * @author logow
+ */
+public interface ContentConsumer {
+
+    /**
+     * 接收一块响应内容
+     * @param chunk 从 position 到 limit 的数据，只在本次调用中有效，须在返回前处理或复制
+     * @throws IOException 中止下载，按下载失败处理
+     */
+    void consume(ByteBuffer chunk) throws IOException;
+}
@@ -0,0 +1,114 @@
+package cn.logow.util.download;
+
+import org.apache.http.client.entity.DeflateInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 响应内容编码（Content-Encoding）的解码器，内置 gzip 和 deflate。
+ * <p>
+ * 其他编码可在运行时注册，如使用 org.brotli:dec 支持 br：
+ * <pre>
+ * ContentDecoders.register("br", new ContentDecoders.Decoder() {
+ *     public InputStream decode(InputStream in) throws IOException {
+ *         return new BrotliInputStream(in);
+ *     }
+ * });
+ * </pre>
+ *
+ * @author logow
+ */
+public final class ContentDecoders {
+
+    // 解压缓冲区大小
+    private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+
+    private static final Map<String, Decoder> DECODERS = new LinkedHashMap<>();
+
+    static {
+        DECODERS.put("gzip", new Decoder() {
+            @Override
+            public InputStream decode(InputStream in) throws IOException {
+                return new GZIPInputStream(in, INFLATE_BUFFER_SIZE);
+            }
+        });
+        DECODERS.put("x-gzip", DECODERS.get("gzip"));
+        DECODERS.put("deflate", new Decoder() {
+            // 兼容带 zlib 头和不带头的 deflate 数据
+            @Override
+            public InputStream decode(InputStream in) throws IOException {
+                return new DeflateInputStream(in);
+            }
+        });
+    }
+
+    private ContentDecoders() {}
+
+    /**
+     * 注册或替换内容编码的解码器，注册后下载时将在 Accept-Encoding 中声明
+     * @param encoding 内容编码，不区分大小写
+     */
+    public static synchronized void register(String encoding, Decoder decoder) {
+        if (encoding == null || encoding.isEmpty() || decoder == null) {
+            throw new IllegalArgumentException("encoding and decoder must not be empty");
+        }
+        DECODERS.put(encoding.toLowerCase(Locale.ROOT), decoder);
+    }
+
+    /**
+     * 解码下载时声明的 Accept-Encoding
+     */
+    static synchronized String acceptEncoding() {
+        StringBuilder sb = new StringBuilder();
+        for (String encoding : DECODERS.keySet()) {
+            if (!encoding.startsWith("x-")) {
+                sb.append(sb.length() > 0 ? ", " : "").append(encoding);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 按 Content-Encoding 解码，多重编码按相反顺序解码
+     * @param contentEncoding 响应头的值，为 null 或 identity 时返回原数据流
+     * @throws IOException 包含未注册的编码
+     */
+    static InputStream decode(String contentEncoding, InputStream in) throws IOException {
+        if (contentEncoding == null) {
+            return in;
+        }
+        String[] encodings = contentEncoding.split(",");
+        for (int i = encodings.length - 1; i >= 0; i--) {
+            String encoding = encodings[i].trim().toLowerCase(Locale.ROOT);
+            if (encoding.isEmpty() || "identity".equals(encoding)) {
+                continue;
+            }
+            Decoder decoder;
+            synchronized (ContentDecoders.class) {
+                decoder = DECODERS.get(encoding);
+            }
+            if (decoder == null) {
+                throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+            }
+            in = decoder.decode(in);
+        }
+        return in;
+    }
+
+    /**
+     * 内容编码的解码器
+     */
+    public interface Decoder {
+
+        /**
+         * @param in 编码后的数据流
+         * @return 解码后的数据流
+         */
+        InputStream decode(InputStream in) throws IOException;
+    }
+}
@@ -0,0 +1,207 @@
+package cn.logow.util.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Checksum;
+
+/**
+ * 下载过程中计算的内容摘要，数据块写入文件时同时更新，下载完成后无需再读取文件。
+ * <p>
+ * 可合并的算法（CRC32C）每个分段分别计算，完成后按顺序合并；其他算法只在不分段时随写入计算，
+ * 分段下载时在完成后读取文件计算。断点续传时已写入的部分在继续写入前从文件读取
+ *
+ * @author logow
+ */
+final class ContentDigest {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final DigestAlgorithm algorithm;
+    private final String expected;
+    // 流式下载时为 null
+    private final String path;
+    private final List<DownloadJournal.Segment> segments;
+    // 分段到摘要，不在其中的分段在完成后读取文件计算
+    private final Map<DownloadJournal.Segment, Hasher> hashers = new IdentityHashMap<>();
+
+    private ContentDigest(DigestAlgorithm algorithm, String expected, String path,
+                          List<DownloadJournal.Segment> segments) {
+        this.algorithm = algorithm;
+        this.expected = expected;
+        this.path = path;
+        this.segments = segments;
+        if (segments.size() == 1 || algorithm.isMergeable()) {
+            for (DownloadJournal.Segment segment : segments) {
+                hashers.put(segment, new Hasher(algorithm, segment.getStart()));
+            }
+        }
+    }
+
+    /**
+     * @return 任务未设置摘要算法时返回 null
+     */
+    static ContentDigest create(DownloadTask task, String path, List<DownloadJournal.Segment> segments) {
+        DigestAlgorithm algorithm = task.getDigestAlgorithm();
+        if (algorithm == null) {
+            return null;
+        }
+        return new ContentDigest(algorithm, task.getExpectedDigest(), path, segments);
+    }
+
+    /**
+     * 不分段下载、流式下载或从缓存恢复时使用，整个文件按顺序计算
+     * @return 任务未设置摘要算法时返回 null
+     */
+    static ContentDigest create(DownloadTask task, String path) {
+        return create(task, path, Collections.singletonList(new DownloadJournal.Segment(0, -1, 0)));
+    }
+
+    /**
+     * 按顺序更新不分段下载的摘要
+     */
+    void update(ByteBuffer chunk) throws IOException {
+        update(segments.get(0), chunk);
+    }
+
+    /**
+     * 更新分段的摘要，须在数据写入文件、提交断点之前调用，同一分段只能由一个线程按顺序调用
+     * @param chunk 从 position 到 limit 的数据，不改变其位置
+     */
+    void update(DownloadJournal.Segment segment, ByteBuffer chunk) throws IOException {
+        Hasher hasher = hashers.get(segment);
+        if (hasher == null) {
+            return;
+        }
+        // 断点续传时先补上已写入的部分
+        hasher.catchUp(path, segment.position());
+        if (chunk.hasArray()) {
+            hasher.update(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+        } else {
+            ByteBuffer dup = chunk.duplicate();
+            byte[] bytes = new byte[dup.remaining()];
+            dup.get(bytes);
+            hasher.update(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * 计算最终摘要并与期望值比较，尚未计算的部分从文件读取
+     * @return 十六进制摘要
+     * @throws DigestMismatchException 与期望值不一致
+     */
+    String verify() throws IOException {
+        String actual = digest();
+        if (expected != null && !expected.equalsIgnoreCase(actual)) {
+            throw new DigestMismatchException(algorithm, expected, actual);
+        }
+        return actual;
+    }
+
+    private String digest() throws IOException {
+        if (hashers.isEmpty()) {
+            Hasher hasher = new Hasher(algorithm, 0);
+            hasher.catchUp(path, fileLength());
+            return hasher.hex();
+        }
+        if (segments.size() == 1) {
+            Hasher hasher = hashers.get(segments.get(0));
+            // 流式下载已全部计算
+            if (path != null) {
+                hasher.catchUp(path, fileLength());
+            }
+            return hasher.hex();
+        }
+
+        long crc = 0;
+        for (DownloadJournal.Segment segment : segments) {
+            Hasher hasher = hashers.get(segment);
+            long end = segment.getEnd() + 1;
+            hasher.catchUp(path, end);
+            crc = Crc32c.combine(crc, hasher.checksum.getValue(), end - segment.getStart());
+        }
+        return String.format("%08x", crc);
+    }
+
+    private long fileLength() throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            return channel.size();
+        }
+    }
+
+    /**
+     * 单个分段的摘要，记录已计算到的文件偏移
+     */
+    private static final class Hasher {
+
+        private final MessageDigest messageDigest;
+        private final Checksum checksum;
+        private long position;
+
+        Hasher(DigestAlgorithm algorithm, long position) {
+            this.position = position;
+            if (algorithm == DigestAlgorithm.CRC32C) {
+                this.messageDigest = null;
+                this.checksum = Crc32c.create();
+            } else {
+                try {
+                    this.messageDigest = MessageDigest.getInstance(algorithm.toString());
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e.getMessage(), e);
+                }
+                this.checksum = null;
+            }
+        }
+
+        void update(byte[] b, int off, int len) {
+            if (messageDigest != null) {
+                messageDigest.update(b, off, len);
+            } else {
+                checksum.update(b, off, len);
+            }
+            position += len;
+        }
+
+        /**
+         * 从文件读取尚未计算的部分，直到指定偏移
+         */
+        void catchUp(String path, long end) throws IOException {
+            if (position >= end) {
+                return;
+            }
+            ByteBuffer buf = BufferPool.acquire(READ_BUFFER_SIZE);
+            try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+                while (position < end) {
+                    buf.clear().limit((int) Math.min(buf.capacity(), end - position));
+                    int n = channel.read(buf, position);
+                    if (n < 0) {
+                        throw new IOException("File '" + path + "' is shorter than " + end + " bytes");
+                    }
+                    update(buf.array(), buf.arrayOffset(), n);
+                }
+            } finally {
+                BufferPool.release(buf);
+            }
+        }
+
+        String hex() {
+            if (checksum != null) {
+                return String.format("%08x", checksum.getValue());
+            }
+            byte[] digest = messageDigest.digest();
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        }
+    }
+}
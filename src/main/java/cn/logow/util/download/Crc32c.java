@@ -0,0 +1,142 @@
+package cn.logow.util.download;
+
+import java.lang.reflect.Constructor;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C 校验和。JDK 9 及以上版本使用 java.util.zip.CRC32C（硬件加速），低版本使用查表实现。
+ * <p>
+ * {@link #combine(long, long, long)} 由两段数据各自的校验和计算拼接后的校验和，用于分段下载
+ *
+ * @author logow
+ */
+final class Crc32c implements Checksum {
+
+    // Castagnoli 多项式，按位反转
+    private static final int POLY = 0x82F63B78;
+    private static final int[] TABLE = createTable();
+    private static final Constructor<? extends Checksum> JDK_CRC32C = findJdkCrc32c();
+
+    private int crc = 0xFFFFFFFF;
+
+    private static int[] createTable() {
+        int[] table = new int[256];
+        for (int i = 0; i < 256; i++) {
+            int c = i;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? (c >>> 1) ^ POLY : c >>> 1;
+            }
+            table[i] = c;
+        }
+        return table;
+    }
+
+    private static Constructor<? extends Checksum> findJdkCrc32c() {
+        try {
+            return Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getConstructor();
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 创建 CRC32C 校验和，优先使用 JDK 的实现
+     */
+    static Checksum create() {
+        if (JDK_CRC32C != null) {
+            try {
+                return JDK_CRC32C.newInstance();
+            } catch (ReflectiveOperationException e) {
+                // 使用查表实现
+            }
+        }
+        return new Crc32c();
+    }
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int c = crc;
+        for (int i = off, end = off + len; i < end; i++) {
+            c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xFF];
+        }
+        crc = c;
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+
+    /**
+     * 由前后两段数据的校验和计算拼接后的校验和，即在前一段的校验和后追加 len2 个字节的影响，
+     * 按 GF(2) 矩阵平方计算，耗时与 len2 的位数成正比
+     *
+     * @param crc1 前一段数据的校验和
+     * @param crc2 后一段数据的校验和
+     * @param len2 后一段数据的字节数
+     */
+    static long combine(long crc1, long crc2, long len2) {
+        if (len2 <= 0) {
+            return crc1;
+        }
+
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        // 追加 1 个零位的运算矩阵
+        odd[0] = POLY & 0xFFFFFFFFL;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // 2 个零位
+        square(even, odd);
+        // 4 个零位
+        square(odd, even);
+
+        // 每次平方追加的零位数翻倍，第一次为 1 个字节
+        do {
+            square(even, odd);
+            if ((len2 & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            len2 >>= 1;
+            if (len2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((len2 & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            len2 >>= 1;
+        } while (len2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static long times(long[] mat, long vec) {
+        long sum = 0;
+        for (int i = 0; vec != 0; i++, vec >>>= 1) {
+            if ((vec & 1) != 0) {
+                sum ^= mat[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] mat) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(mat, mat[n]);
+        }
+    }
+}
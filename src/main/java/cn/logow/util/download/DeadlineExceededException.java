@@ -0,0 +1,27 @@
+package cn.logow.util.download;
+
+import java.io.IOException;
+
+/**
+ * 任务到达截止时间时仍在等待执行，已放弃下载
+ *
+ * @author logow
+ */
+public class DeadlineExceededException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long deadline;
+
+    public DeadlineExceededException(DownloadTask task) {
+        super("Deadline exceeded before download " + task + " started");
+        this.deadline = task.getDeadline();
+    }
+
+    /**
+     * 截止时间，毫秒时间戳
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+}
@@ -8,7 +8,7 @@ public class DefaultDownloadListener implements DownloadListener {
     }
 
     @Override
-    public void onProgress(DownloadContext context, int bytes, long timeMillis) {
+    public void onProgress(DownloadContext context, long bytes, long timeMillis) {
 
     }
 
@@ -18,7 +18,7 @@ public class DefaultDownloadListener implements DownloadListener {
     }
 
     @Override
-    public void onCancel(DownloadContext context, int bytesTransferred) {
+    public void onCancel(DownloadContext context, long bytesTransferred) {
 
     }
 
@@ -0,0 +1,39 @@
+package cn.logow.util.download;
+
+/**
+ * 下载时计算的摘要算法
+ *
+ * @author logow
+ */
+public enum DigestAlgorithm {
+    /**
+     * MD5，只能按顺序计算，分段下载时在下载完成后读取文件计算
+     */
+    MD5("MD5"),
+    /**
+     * SHA-256，只能按顺序计算，分段下载时在下载完成后读取文件计算
+     */
+    SHA_256("SHA-256"),
+    /**
+     * CRC32C，各分段分别计算后合并，分段下载时也无需再读取文件
+     */
+    CRC32C("CRC32C");
+
+    private final String name;
+
+    DigestAlgorithm(String name) {
+        this.name = name;
+    }
+
+    /**
+     * 各分段的摘要能否按顺序合并
+     */
+    boolean isMergeable() {
+        return this == CRC32C;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,30 @@
+package cn.logow.util.download;
+
+import java.io.IOException;
+
+/**
+ * 下载内容的摘要与期望值不一致
+ *
+ * @author logow
+ */
+public class DigestMismatchException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String expected;
+    private final String actual;
+
+    public DigestMismatchException(DigestAlgorithm algorithm, String expected, String actual) {
+        super(algorithm + " mismatch, expected " + expected + " but was " + actual);
+        this.expected = expected;
+        this.actual = actual;
+    }
+
+    public String getExpected() {
+        return expected;
+    }
+
+    public String getActual() {
+        return actual;
+    }
+}
@@ -0,0 +1,435 @@
+package cn.logow.util.download;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 本地下载缓存，按 URL 记录 ETag、Last-Modified 及内容的 SHA-256，文件按内容哈希存放，相同内容只保存一份。
+ * <p>
+ * 再次下载相同 URL 时发送条件请求，服务器返回 304 时将缓存文件硬链接（跨文件系统时复制）到目标位置。
+ * 缓存总大小超过上限时按最近最少使用淘汰。索引在内存中，所有操作加锁，计算哈希和复制文件在锁外进行。
+ * 索引变化后最多每 5 秒保存一次，关闭时保存，保存时只在锁内复制索引，写入文件在锁外进行。
+ * <p>
+ * 硬链接与目标文件共用存储，修改目标文件会改变缓存文件，命中时按文件大小和修改时间校验，不一致的缓存将被丢弃
+ *
+ * @author logow
+ */
+public class DownloadCache implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DownloadCache.class);
+
+    private static final String INDEX_FILE = "index.properties";
+    private static final String BLOB_DIR = "blobs";
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+    // 两次保存索引的最小间隔
+    private static final long SAVE_INTERVAL_MILLIS = 5000L;
+
+    private final File dir;
+    private final File blobDir;
+    private final long maxSize;
+    // URL 到缓存条目，按访问顺序排列，最先淘汰最久未访问的条目
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // 内容哈希到缓存文件，多个 URL 可引用同一文件
+    private final Map<String, Blob> blobs = new HashMap<>();
+    private long size;
+    private boolean dirty;
+    private long lastSaveTime;
+    // 串行写入索引文件，后复制的索引后写入
+    private final Object saveLock = new Object();
+
+    /**
+     * @param dir 缓存目录，不存在时创建
+     * @param maxSize 缓存文件的总字节数上限
+     */
+    public DownloadCache(File dir, long maxSize) throws IOException {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.dir = dir;
+        this.blobDir = new File(dir, BLOB_DIR);
+        this.maxSize = maxSize;
+        Utils.mkdirs(blobDir);
+        load();
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 缓存文件的总字节数
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * 查找 URL 的缓存条目，并标记为最近访问
+     */
+    synchronized Entry get(URI url) {
+        Entry entry = entries.get(url.toString());
+        if (entry != null) {
+            dirty = true;
+        }
+        return entry;
+    }
+
+    /**
+     * 将缓存文件链接或复制到目标位置，目标文件已存在时替换
+     * @return 缓存文件已丢失或被修改时删除缓存条目并返回 false
+     */
+    boolean restore(Entry entry, File target) throws IOException {
+        Path blob = blobFile(entry.hash).toPath();
+        File blobFile = blob.toFile();
+        if (blobFile.length() != entry.size || blobFile.lastModified() != entry.blobModified) {
+            logger.warn("Discard modified or missing cache file of {}", entry.url);
+            remove(entry);
+            return false;
+        }
+
+        Path path = target.toPath();
+        Files.deleteIfExists(path);
+        try {
+            Files.createLink(path, blob);
+        } catch (IOException | UnsupportedOperationException e) {
+            // 跨文件系统或不支持硬链接
+            try {
+                Files.copy(blob, path, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                if (!blobFile.isFile()) {
+                    // 复制时已被淘汰
+                    remove(entry);
+                    return false;
+                }
+                throw ex;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 缓存下载完成的文件，没有 ETag 和 Last-Modified 或文件超过缓存上限时不缓存
+     */
+    void put(URI url, String etag, String lastModified, String filename, File file) throws IOException {
+        put(url, etag, lastModified, filename, file, null);
+    }
+
+    /**
+     * @param sha256 下载时已计算的十六进制 SHA-256，为 null 时读取文件计算
+     */
+    void put(URI url, String etag, String lastModified, String filename, File file, String sha256)
+            throws IOException {
+        if (etag == null && lastModified == null) {
+            return;
+        }
+        long length = file.length();
+        if (length > maxSize) {
+            return;
+        }
+
+        String hash = sha256 != null ? sha256.toLowerCase() : sha256Hex(file);
+        File blobFile = blobFile(hash);
+        if (!blobFile.isFile()) {
+            Utils.mkdirs(blobFile.getParentFile());
+            try {
+                Files.createLink(blobFile.toPath(), file.toPath());
+            } catch (FileAlreadyExistsException e) {
+                // 其他线程已缓存相同内容
+            } catch (IOException | UnsupportedOperationException e) {
+                File tmpFile = new File(blobFile.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+                Files.copy(file.toPath(), tmpFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tmpFile.toPath(), blobFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+
+        synchronized (this) {
+            // 链接后可能已被其他线程淘汰
+            if (blobFile.length() != length) {
+                return;
+            }
+            Entry prev = entries.remove(url.toString());
+            if (prev != null) {
+                release(prev);
+            }
+            Blob blob = blobs.get(hash);
+            if (blob == null) {
+                blob = new Blob(length, blobFile.lastModified());
+                blobs.put(hash, blob);
+                size += length;
+            }
+            blob.refs++;
+            entries.put(url.toString(), new Entry(url.toString(), etag, lastModified, filename, hash,
+                    length, blob.modified));
+            evict();
+        }
+        if (System.currentTimeMillis() - lastSaveTime >= SAVE_INTERVAL_MILLIS) {
+            flush();
+        }
+    }
+
+    synchronized void remove(Entry entry) {
+        if (entries.get(entry.url) == entry) {
+            entries.remove(entry.url);
+            release(entry);
+            dirty = true;
+        }
+    }
+
+    /**
+     * 按最近最少使用淘汰，直到总大小不超过上限，调用时须持有锁
+     */
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Entry entry = it.next();
+            it.remove();
+            release(entry);
+            logger.debug("Evict cache of {}", entry.url);
+        }
+        dirty = true;
+    }
+
+    /**
+     * 减少缓存文件的引用，没有引用时删除文件，调用时须持有锁
+     */
+    private void release(Entry entry) {
+        Blob blob = blobs.get(entry.hash);
+        if (blob != null && --blob.refs <= 0) {
+            blobs.remove(entry.hash);
+            size -= blob.size;
+            blobFile(entry.hash).delete();
+        }
+    }
+
+    /**
+     * 索引有变化时保存，最近访问顺序一并保存
+     */
+    public void flush() throws IOException {
+        synchronized (saveLock) {
+            Properties props;
+            synchronized (this) {
+                if (!dirty) {
+                    return;
+                }
+                props = snapshot();
+                dirty = false;
+                lastSaveTime = System.currentTimeMillis();
+            }
+            try {
+                store(props);
+            } catch (IOException e) {
+                synchronized (this) {
+                    dirty = true;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 复制索引，调用时须持有锁
+     */
+    private Properties snapshot() {
+        Properties props = new Properties();
+        int i = 0;
+        for (Entry entry : entries.values()) {
+            String prefix = "entry." + i++ + ".";
+            props.setProperty(prefix + "url", entry.url);
+            if (entry.etag != null) {
+                props.setProperty(prefix + "etag", entry.etag);
+            }
+            if (entry.lastModified != null) {
+                props.setProperty(prefix + "lastModified", entry.lastModified);
+            }
+            if (entry.filename != null) {
+                props.setProperty(prefix + "filename", entry.filename);
+            }
+            props.setProperty(prefix + "hash", entry.hash);
+            props.setProperty(prefix + "size", String.valueOf(entry.size));
+            props.setProperty(prefix + "blobModified", String.valueOf(entry.blobModified));
+        }
+        props.setProperty("entries", String.valueOf(i));
+        return props;
+    }
+
+    private void store(Properties props) throws IOException {
+        File file = new File(dir, INDEX_FILE);
+        File tmpFile = new File(dir, INDEX_FILE + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)) {
+            props.store(writer, null);
+        }
+        Files.move(tmpFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private synchronized void load() throws IOException {
+        File file = new File(dir, INDEX_FILE);
+        if (file.isFile()) {
+            Properties props = new Properties();
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                props.load(reader);
+                int count = Integer.parseInt(props.getProperty("entries", "0"));
+                for (int i = 0; i < count; i++) {
+                    String prefix = "entry." + i + ".";
+                    Entry entry = new Entry(props.getProperty(prefix + "url"),
+                            props.getProperty(prefix + "etag"), props.getProperty(prefix + "lastModified"),
+                            props.getProperty(prefix + "filename"), props.getProperty(prefix + "hash"),
+                            Long.parseLong(props.getProperty(prefix + "size")),
+                            Long.parseLong(props.getProperty(prefix + "blobModified")));
+                    File blobFile = blobFile(entry.hash);
+                    if (entry.url == null || blobFile.length() != entry.size
+                            || blobFile.lastModified() != entry.blobModified) {
+                        continue;
+                    }
+                    Blob blob = blobs.get(entry.hash);
+                    if (blob == null) {
+                        blob = new Blob(entry.size, entry.blobModified);
+                        blobs.put(entry.hash, blob);
+                        size += entry.size;
+                    }
+                    blob.refs++;
+                    entries.put(entry.url, entry);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Discard corrupted download cache index '{}'", file, e);
+                entries.clear();
+                blobs.clear();
+                size = 0;
+            }
+        }
+
+        deleteUnreferenced();
+        evict();
+        store(snapshot());
+        dirty = false;
+        lastSaveTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 删除索引中没有记录的缓存文件，包括未完成的临时文件
+     */
+    private void deleteUnreferenced() {
+        File[] subDirs = blobDir.listFiles();
+        if (subDirs == null) {
+            return;
+        }
+        for (File subDir : subDirs) {
+            File[] files = subDir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (!blobs.containsKey(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private File blobFile(String hash) {
+        return new File(new File(blobDir, hash.substring(0, 2)), hash);
+    }
+
+    private static String sha256Hex(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        ByteBuffer buf = BufferPool.acquire(HASH_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buf) != -1) {
+                buf.flip();
+                digest.update(buf);
+                buf.clear();
+            }
+        } finally {
+            BufferPool.release(buf);
+        }
+
+        StringBuilder sb = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * 按内容哈希存放的缓存文件
+     */
+    private static class Blob {
+        final long size;
+        final long modified;
+        int refs;
+
+        Blob(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * URL 的缓存条目
+     */
+    static final class Entry {
+        final String url;
+        final String etag;
+        final String lastModified;
+        final String filename;
+        final String hash;
+        final long size;
+        final long blobModified;
+
+        Entry(String url, String etag, String lastModified, String filename, String hash,
+              long size, long blobModified) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.filename = filename;
+            this.hash = hash;
+            this.size = size;
+            this.blobModified = blobModified;
+        }
+    }
+}
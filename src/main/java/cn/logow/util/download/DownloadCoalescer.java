@@ -0,0 +1,361 @@
+package cn.logow.util.download;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+
+/**
+ * 合并同时提交的相同 URL 的下载，只下载一次，完成后为其他任务各复制一份文件。
+ * <p>
+ * 第一个任务的副本代替所有任务提交给调度器，文件保存在第一个任务的位置；
+ * 下载过程中加入的任务补发已下载的进度，各任务的监听器都会收到开始、进度及结束事件。
+ * 只有全部任务都被取消时才取消下载
+ *
+ * @author logow
+ */
+final class DownloadCoalescer {
+
+    private static final Logger logger = LoggerFactory.getLogger(DownloadCoalescer.class);
+
+    private final DownloadScheduler scheduler;
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    DownloadCoalescer(DownloadScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    CompletableFuture<FileEntity> submit(DownloadTask task) {
+        // 流式下载的内容不落盘，无法复制给其他任务
+        if (task.isStreaming()) {
+            return scheduler.submit(task);
+        }
+        // 摘要、压缩方式或临时文件设置不同的任务分别下载
+        // 共享下载沿用第一个任务的优先级和截止时间，两者不同的任务也分别下载
+        String key = task.getUrl() + "\n" + task.getDigestAlgorithm() + "\n" + task.getExpectedDigest()
+                + "\n" + task.getCompression() + "\n" + task.isTempFile()
+                + "\n" + task.getPriority() + "\n" + task.getDeadline();
+        for (;;) {
+            Flight flight = flights.get(key);
+            if (flight != null) {
+                CompletableFuture<FileEntity> future = flight.join(task);
+                if (future != null) {
+                    return future;
+                }
+                // 正在结束的下载不再加入
+                flights.remove(key, flight);
+                continue;
+            }
+
+            flight = new Flight(key);
+            CompletableFuture<FileEntity> future = flight.join(task);
+            if (flights.putIfAbsent(key, flight) == null) {
+                flight.start();
+                return future;
+            }
+        }
+    }
+
+    /**
+     * 同一 URL 正在进行的下载
+     */
+    private class Flight implements DownloadListener {
+
+        private final String key;
+        private final List<Member> members = new ArrayList<>();
+        private DownloadTask shared;
+        private Member owner;
+        private DownloadContext sharedContext;
+        private CompletableFuture<FileEntity> future;
+        private Throwable error;
+        private boolean closed;
+
+        Flight(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return 下载已结束时返回 null
+         */
+        synchronized CompletableFuture<FileEntity> join(DownloadTask task) {
+            if (closed) {
+                return null;
+            }
+
+            final Member member = new Member(task);
+            if (shared == null) {
+                shared = DownloadTask.copyOf(task, this);
+                owner = member;
+            } else {
+                logger.debug("Coalesce download {} with in-flight download", task);
+            }
+            members.add(member);
+            if (sharedContext != null) {
+                task.onStart(member.context);
+                catchUp(member, sharedContext.getBytesTransferred());
+            }
+
+            member.future.whenComplete(new BiConsumer<FileEntity, Throwable>() {
+                @Override
+                public void accept(FileEntity fileEntity, Throwable e) {
+                    if (member.future.isCancelled()) {
+                        leave(member);
+                    }
+                }
+            });
+            return member.future;
+        }
+
+        /**
+         * 补发加入前已下载的进度
+         */
+        private void catchUp(Member member, long bytes) {
+            member.context.addBytesTransferred(bytes);
+            if (bytes > 0) {
+                member.task.onProgress(member.context, bytes, 0);
+            }
+        }
+
+        void start() {
+            CompletableFuture<FileEntity> future;
+            try {
+                future = scheduler.submit(shared);
+            } catch (RuntimeException e) {
+                flights.remove(key, this);
+                List<Member> others;
+                synchronized (this) {
+                    closed = true;
+                    others = new ArrayList<>(members);
+                    others.remove(owner);
+                }
+                for (Member member : others) {
+                    member.future.completeExceptionally(e);
+                }
+                throw e;
+            }
+
+            boolean cancel;
+            synchronized (this) {
+                this.future = future;
+                cancel = members.isEmpty();
+            }
+            if (cancel) {
+                future.cancel(true);
+            }
+            future.whenComplete(new BiConsumer<FileEntity, Throwable>() {
+                @Override
+                public void accept(FileEntity fileEntity, Throwable e) {
+                    complete(fileEntity, e);
+                }
+            });
+        }
+
+        private void leave(Member member) {
+            CompletableFuture<FileEntity> cancelled = null;
+            boolean started;
+            synchronized (this) {
+                if (closed || !members.remove(member)) {
+                    return;
+                }
+                started = sharedContext != null;
+                if (members.isEmpty()) {
+                    closed = true;
+                    cancelled = future;
+                }
+            }
+
+            if (started) {
+                member.task.onCancel(member.context, member.context.getBytesTransferred());
+            }
+            if (closed()) {
+                flights.remove(key, this);
+                if (cancelled != null) {
+                    cancelled.cancel(true);
+                }
+            }
+        }
+
+        private synchronized boolean closed() {
+            return closed;
+        }
+
+        private void complete(FileEntity fileEntity, Throwable e) {
+            flights.remove(key, this);
+            List<Member> done;
+            synchronized (this) {
+                closed = true;
+                done = new ArrayList<>(members);
+                members.clear();
+            }
+
+            if (e instanceof CompletionException && e.getCause() != null) {
+                e = e.getCause();
+            }
+            boolean cancelled = shared.isCancelled() || future.isCancelled();
+            FileEntity orphan = null;
+            if (!cancelled && error == null && e == null && fileEntity != null && !done.contains(owner)) {
+                // 第一个任务已取消，文件不能留在它的位置
+                FileEntity moved = handOver(done, fileEntity);
+                if (moved == null) {
+                    orphan = fileEntity;
+                } else {
+                    fileEntity = moved;
+                }
+            }
+            for (Member member : done) {
+                if (member.future.isDone()) {
+                    continue;
+                }
+                if (cancelled) {
+                    if (sharedContext != null) {
+                        member.task.onCancel(member.context, member.context.getBytesTransferred());
+                    }
+                    member.future.cancel(false);
+                } else if (error != null || e != null) {
+                    fail(member, error != null ? error : e);
+                } else if (fileEntity == null) {
+                    member.future.complete(null);
+                } else {
+                    deliver(member, fileEntity);
+                }
+            }
+            if (orphan != null) {
+                discard(orphan);
+            }
+        }
+
+        /**
+         * 通知任务下载失败，监听器未抛出异常时与单独下载一样返回 null
+         */
+        private void fail(Member member, Throwable e) {
+            try {
+                member.task.onError(member.context, e);
+                member.future.complete(null);
+            } catch (RuntimeException ex) {
+                member.future.completeExceptionally(ex);
+            }
+        }
+
+        /**
+         * 第一个任务取消后下载仍完成时，将文件移动给第一个仍在等待的任务，其余任务从其复制
+         * @return 移动后的文件，没有等待的任务或移动失败时返回 null
+         */
+        private FileEntity handOver(List<Member> done, FileEntity fileEntity) {
+            for (Member member : done) {
+                if (member.future.isDone()) {
+                    continue;
+                }
+                try {
+                    FileEntity moved = place(fileEntity, member.task, true);
+                    owner = member;
+                    return moved;
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Error moving coalesced download {}", member.task, e);
+                    fail(member, e);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 删除已取消的第一个任务留下的文件并释放其文件名
+         */
+        private void discard(FileEntity fileEntity) {
+            File file = new File(fileEntity.getPath());
+            if (file.delete()) {
+                FilenameAllocator.forDirectory(file.getParent()).release(file.getName());
+            } else if (file.exists()) {
+                logger.warn("Could not delete coalesced download '{}'", file);
+            }
+        }
+
+        private void deliver(Member member, FileEntity fileEntity) {
+            try {
+                FileEntity copy = member == owner ? fileEntity : place(fileEntity, member.task, false);
+                member.context.setFileEntity(copy);
+                member.task.onComplete(member.context);
+                member.future.complete(copy);
+            } catch (IOException e) {
+                logger.error("Error copying coalesced download {}", member.task, e);
+                fail(member, e);
+            } catch (RuntimeException e) {
+                member.future.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * 将文件复制或移动到任务的保存位置
+         */
+        private FileEntity place(FileEntity fileEntity, DownloadTask task, boolean move) throws IOException {
+            String filename = task.getFilename() != null ? task.getFilename()
+                    : Utils.uniqueFilename(task.getSavePath(), fileEntity.getFilename());
+            File file = new File(task.getSavePath(), filename);
+            String path = file.getAbsolutePath();
+            if (!path.equals(fileEntity.getPath())) {
+                if (move) {
+                    Files.move(Paths.get(fileEntity.getPath()), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    Files.copy(Paths.get(fileEntity.getPath()), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            FileEntity copy = new FileEntity(path, fileEntity.getFilename(), file.length());
+            copy.setDigest(fileEntity.getDigest());
+            return copy;
+        }
+
+        @Override
+        public synchronized void onStart(DownloadContext context) {
+            sharedContext = context;
+            for (Member member : members) {
+                member.task.onStart(member.context);
+            }
+        }
+
+        @Override
+        public synchronized void onProgress(DownloadContext context, long bytes, long timeMillis) {
+            for (Member member : members) {
+                member.context.addBytesTransferred(bytes);
+                member.task.onProgress(member.context, bytes, timeMillis);
+            }
+        }
+
+        @Override
+        public void onComplete(DownloadContext context) {
+            // 下载结束后统一复制文件并通知各任务
+        }
+
+        @Override
+        public void onCancel(DownloadContext context, long bytesTransferred) {
+            // 只有全部任务都被取消时才会取消下载，各任务已分别收到取消事件
+        }
+
+        @Override
+        public void onError(DownloadContext context, Throwable e) throws DownloadException {
+            // 下载结束后分别通知各任务，由各任务的监听器决定是否抛出异常
+            error = e;
+            throw e instanceof DownloadException ? (DownloadException) e : new DownloadException(e);
+        }
+    }
+
+    private static class Member {
+        final DownloadTask task;
+        final DownloadContext context;
+        final CompletableFuture<FileEntity> future = new CompletableFuture<>();
+
+        Member(DownloadTask task) {
+            this.task = task;
+            this.context = new DownloadContext(task);
+        }
+    }
+}
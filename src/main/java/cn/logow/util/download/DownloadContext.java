@@ -1,9 +1,35 @@
 package cn.logow.util.download;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class DownloadContext {
 
+    private static final BandwidthLimiter[] NO_LIMITERS = new BandwidthLimiter[0];
+
     private DownloadTask task;
     private FileEntity entity;
+    // 分段下载时由多个线程共同累加
+    private final AtomicLong bytesTransferred = new AtomicLong();
+    // 解码时从连接读取的压缩数据字节数
+    private final AtomicLong wireBytes = new AtomicLong();
+    private volatile boolean decoding;
+    private volatile DownloadJournal journal;
+    private BandwidthLimiter[] limiters = NO_LIMITERS;
+    private final long startNanos = System.nanoTime();
+    private final AtomicBoolean responded = new AtomicBoolean();
+    private volatile long responseNanos;
+    private final AtomicBoolean concurrencyReleased = new AtomicBoolean();
+    private volatile long retryAfterMillis = -1;
+    // 尚未发送给监听器的进度，由下载线程累加、发送线程取出
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicLong pendingMillis = new AtomicLong();
+    private final AtomicBoolean progressQueued = new AtomicBoolean();
+    private volatile String etag;
+    private volatile String lastModified;
+    private volatile boolean cacheHit;
+    private volatile ContentDigest digest;
 
     DownloadContext(DownloadTask task) {
         this.task = task;
@@ -20,4 +46,186 @@ public class DownloadContext {
     public FileEntity getFileEntity() {
         return entity;
     }
+
+    /**
+     * 已写入目标文件的字节数
+     */
+    public long getBytesTransferred() {
+        return bytesTransferred.get();
+    }
+
+    void addBytesTransferred(long bytes) {
+        bytesTransferred.addAndGet(bytes);
+    }
+
+    /**
+     * 从连接接收的字节数，解码压缩内容时为解码前的字节数，否则与 {@link #getBytesTransferred()} 相同
+     */
+    public long getWireBytesTransferred() {
+        return decoding ? wireBytes.get() : bytesTransferred.get();
+    }
+
+    /**
+     * 是否正在解码压缩传输的内容
+     */
+    public boolean isDecoding() {
+        return decoding;
+    }
+
+    void addWireBytes(long bytes) {
+        wireBytes.addAndGet(bytes);
+    }
+
+    void markDecoding() {
+        this.decoding = true;
+    }
+
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * 标记已收到响应头
+     * @return 第一次标记时返回 true
+     */
+    boolean markResponded() {
+        if (responded.compareAndSet(false, true)) {
+            responseNanos = System.nanoTime();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 从开始下载到收到响应头的纳秒数，尚未收到响应时为 -1
+     */
+    long getTimeToFirstByteNanos() {
+        return responded.get() && responseNanos != 0 ? responseNanos - startNanos : -1;
+    }
+
+    /**
+     * 标记已归还按主机计数的并发数
+     * @return 第一次标记时返回 true
+     */
+    boolean markConcurrencyReleased() {
+        return concurrencyReleased.compareAndSet(false, true);
+    }
+
+    /**
+     * 服务器通过 Retry-After 要求的重试等待毫秒数，未要求时为 -1
+     */
+    long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    void setRetryAfterMillis(long retryAfterMillis) {
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * 累加待发送的进度
+     * @return 上下文需要加入发送队列时返回 true
+     */
+    boolean addPendingProgress(long bytes, long timeMillis) {
+        pendingBytes.addAndGet(bytes);
+        pendingMillis.addAndGet(timeMillis);
+        return !progressQueued.get() && progressQueued.compareAndSet(false, true);
+    }
+
+    void clearProgressQueued() {
+        progressQueued.set(false);
+    }
+
+    long takePendingBytes() {
+        return pendingBytes.getAndSet(0);
+    }
+
+    long takePendingMillis() {
+        return pendingMillis.getAndSet(0);
+    }
+
+    /**
+     * 响应中的 ETag
+     */
+    String getEtag() {
+        return etag;
+    }
+
+    /**
+     * 响应中的 Last-Modified
+     */
+    String getLastModified() {
+        return lastModified;
+    }
+
+    void setValidators(String etag, String lastModified) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * 文件是否从下载缓存恢复
+     */
+    boolean isCacheHit() {
+        return cacheHit;
+    }
+
+    void markCacheHit() {
+        this.cacheHit = true;
+    }
+
+    /**
+     * 下载过程中计算的内容摘要，任务未设置摘要算法时为 null
+     */
+    ContentDigest getDigest() {
+        return digest;
+    }
+
+    void setDigest(ContentDigest digest) {
+        this.digest = digest;
+    }
+
+    DownloadJournal getJournal() {
+        return journal;
+    }
+
+    void setJournal(DownloadJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * 设置下载经过的各级限速器，忽略 null，须在下载开始前设置
+     */
+    void setLimiters(BandwidthLimiter... limiters) {
+        int n = 0;
+        BandwidthLimiter[] nonNull = new BandwidthLimiter[limiters.length];
+        for (BandwidthLimiter limiter : limiters) {
+            if (limiter != null) {
+                nonNull[n++] = limiter;
+            }
+        }
+        this.limiters = n == 0 ? NO_LIMITERS : Arrays.copyOf(nonNull, n);
+    }
+
+    /**
+     * 在各级限速器中预留带宽
+     * @return 需要等待的纳秒数，取各级限速器中最长的等待时间
+     */
+    long reserveBandwidth(int bytes) {
+        long waitNanos = 0;
+        for (BandwidthLimiter limiter : limiters) {
+            waitNanos = Math.max(waitNanos, limiter.reserve(bytes));
+        }
+        return waitNanos;
+    }
+
+    /**
+     * 按各级限速器中最小的速率限制单次读取的字节数
+     */
+    int limitChunk(int size) {
+        for (BandwidthLimiter limiter : limiters) {
+            size = limiter.limitChunk(size);
+        }
+        return size;
+    }
 }
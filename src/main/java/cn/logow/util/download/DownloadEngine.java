@@ -3,9 +3,18 @@ package cn.logow.util.download;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.net.URI;
+import java.util.Collection;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
 
 /**
  * 下载引擎，实现文件下载协议
@@ -19,57 +28,706 @@ public abstract class DownloadEngine implements AutoCloseable {
     // 默认文件IO缓冲区大小
     private static final int DEFAULT_BUFFER_SIZE = 1024 * 4;
     // 默认更新下载进度的间隔
-    private static final long DEFAULT_PROGRESS_TICK_MILLIS = 100L;
+    static final long DEFAULT_PROGRESS_TICK_MILLIS = 100L;
+    // 默认同时映射的区域数
+    static final int DEFAULT_MAX_MAPPED_REGIONS = 16;
+
+    private BandwidthThrottle bandwidthThrottle = new BandwidthThrottle();
+    private DownloadMetrics metrics = new DownloadMetrics();
+    private volatile AdaptiveConcurrency concurrency;
+    private volatile RetryBudget retryBudget;
+    private volatile ProgressDispatcher progressDispatcher;
+    // 内存映射写入时同时映射的区域数
+    private volatile Semaphore mappedRegions = new Semaphore(DEFAULT_MAX_MAPPED_REGIONS);
 
     public FileEntity execute(DownloadTask task) throws IOException {
+        DownloadContext context = start(task);
+
+        FileEntity fileEntity = null;
+        try {
+            try {
+                fileEntity = commitFile(context, verifyDigest(context, executeWithRetry(task, context)));
+            } catch (IOException e) {
+                fail(context, e);
+            }
+
+            return finish(context, fileEntity);
+        } finally {
+            releaseConcurrency(context);
+            DownloadJournal.release(task, context);
+        }
+    }
+
+    /**
+     * 按重试策略执行下载，失败后保存断点并等待，重试时从断点继续
+     */
+    private FileEntity executeWithRetry(DownloadTask task, DownloadContext context) throws IOException {
+        RetryBudget budget = this.retryBudget;
+        if (budget == null) {
+            return doExecute(task, context);
+        }
+
+        String host = task.getUrl().getHost();
+        budget.deposit(host);
+        long delay = 0;
+        for (int retries = 0; ; retries++) {
+            context.setRetryAfterMillis(-1);
+            context.setJournal(null);
+            try {
+                return doExecute(task, context);
+            } catch (IOException e) {
+                delay = retryDelay(budget, context, e, retries, delay);
+                if (delay < 0) {
+                    throw e;
+                }
+                logger.warn("Retry download {} in {} ms after attempt {} failed: {}", task, delay, retries + 1,
+                        e.toString());
+                metrics.onRetry(context);
+                AdaptiveConcurrency concurrency = this.concurrency;
+                if (concurrency != null) {
+                    concurrency.onRetry(context, e);
+                }
+                prepareRetry(context);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * 计算重试的等待时间，服务器要求的 Retry-After 优先
+     * @param retries 已重试的次数
+     * @param prevDelay 上次的等待时间
+     * @return 不应重试时返回 -1
+     */
+    private long retryDelay(RetryBudget budget, DownloadContext context, IOException e, int retries, long prevDelay) {
+        DownloadTask task = context.getDownloadTask();
+        RetryPolicy policy = budget.getPolicy();
+        if (retries >= policy.getMaxRetries() || task.isCancelled() || Thread.currentThread().isInterrupted()
+                || !RetryPolicy.isRetryable(e)) {
+            return -1;
+        }
+        // 流式下载已交给消费者的内容无法撤回
+        if (task.isStreaming() && context.getBytesTransferred() > 0) {
+            return -1;
+        }
+
+        long delay = policy.nextDelay(prevDelay);
+        long retryAfter = context.getRetryAfterMillis();
+        if (retryAfter > policy.getMaxDelayMillis()) {
+            logger.info("Give up retrying {}, server requires waiting {} ms", task, retryAfter);
+            return -1;
+        }
+        delay = Math.max(delay, retryAfter);
+        if (task.getDeadline() > 0 && System.currentTimeMillis() + delay >= task.getDeadline()) {
+            return -1;
+        }
+        if (!budget.withdraw(task.getUrl().getHost())) {
+            logger.info("Retry budget of host {} exhausted", task.getUrl().getHost());
+            return -1;
+        }
+        return delay;
+    }
+
+    /**
+     * 重试前保存断点，不支持断点续传时删除已下载的部分并释放文件名
+     */
+    private void prepareRetry(DownloadContext context) {
+        if (context.getJournal() != null) {
+            saveJournal(context);
+            return;
+        }
+        FileEntity fileEntity = context.getFileEntity();
+        if (fileEntity != null && fileEntity.getPath() != null && !context.getDownloadTask().isStreaming()) {
+            File file = new File(fileEntity.getPath());
+            if (file.delete()) {
+                String name = file.getName();
+                if (name.endsWith(FileSink.TEMP_SUFFIX)) {
+                    name = name.substring(0, name.length() - FileSink.TEMP_SUFFIX.length());
+                }
+                FilenameAllocator.forDirectory(file.getParent()).release(name);
+            }
+        }
+    }
+
+    /**
+     * 异步下载，默认在指定线程池中执行阻塞的下载操作，取消返回的 CompletableFuture 时中断下载线程
+     *
+     * @param executor 执行阻塞下载操作的线程池，非阻塞的下载引擎可忽略
+     */
+    public CompletableFuture<FileEntity> executeAsync(final DownloadTask task, Executor executor) {
+        final Execution result = new Execution();
+        final FutureTask<FileEntity> job = new FutureTask<FileEntity>(new Callable<FileEntity>() {
+            @Override
+            public FileEntity call() throws IOException {
+                FileEntity fileEntity = execute(task);
+                // 中断时也返回已下载的部分，只记录真正完成的下载
+                if (task.isDone() && !task.isCancelled()) {
+                    result.completedFile = fileEntity;
+                }
+                return fileEntity;
+            }
+        }) {
+            @Override
+            public void run() {
+                try {
+                    super.run();
+                } finally {
+                    result.stopped.complete(this);
+                }
+            }
+
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    result.cancel(false);
+                    return;
+                }
+                try {
+                    result.complete(get());
+                } catch (ExecutionException e) {
+                    result.completeExceptionally(e.getCause());
+                } catch (InterruptedException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        };
+        result.whenComplete(new BiConsumer<FileEntity, Throwable>() {
+            @Override
+            public void accept(FileEntity fileEntity, Throwable e) {
+                if (result.isCancelled()) {
+                    job.cancel(true);
+                }
+            }
+        });
+        executor.execute(job);
+        return result;
+    }
+
+    /**
+     * 在下载线程中执行的下载。取消后下载线程可能仍在保存断点，{@link #stopped()} 在下载线程退出后完成
+     */
+    static final class Execution extends CompletableFuture<FileEntity> {
+
+        private final CompletableFuture<Future<FileEntity>> stopped = new CompletableFuture<>();
+        private volatile FileEntity completedFile;
+
+        /**
+         * 下载线程退出后完成，结果为实际执行的下载，取消时可能已在取消前下载完成
+         */
+        CompletableFuture<Future<FileEntity>> stopped() {
+            return stopped;
+        }
+
+        /**
+         * 下载完成并提交的文件，取消时已完成的执行也会保留，未完成时返回 null
+         */
+        FileEntity getCompletedFile() {
+            return completedFile;
+        }
+    }
+
+    protected abstract FileEntity doExecute(DownloadTask task, DownloadContext context) throws IOException;
+
+    /**
+     * 全局及按主机的带宽限制，可在运行时调整
+     */
+    public BandwidthThrottle getBandwidthThrottle() {
+        return bandwidthThrottle;
+    }
+
+    /**
+     * 下载指标，子类可注册连接池等瞬时值
+     */
+    public DownloadMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 设置下载失败后的重试策略，为 null 时不重试
+     */
+    void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryBudget = retryPolicy != null ? new RetryBudget(retryPolicy) : null;
+    }
+
+    /**
+     * 与主引擎共用带宽限制、下载指标、重试策略、自适应并发及进度线程，按主机选择引擎时所有下载统一限速和计量。
+     * 须在开始下载前调用，之后注册的连接池等瞬时值记录在主引擎的指标中
+     */
+    void shareWith(DownloadEngine primary) {
+        this.bandwidthThrottle = primary.bandwidthThrottle;
+        this.metrics = primary.metrics;
+        this.retryBudget = primary.retryBudget;
+        this.concurrency = primary.concurrency;
+        this.progressDispatcher = primary.progressDispatcher;
+        this.mappedRegions = primary.mappedRegions;
+    }
+
+    /**
+     * 设置内存映射写入时所有下载同时映射的区域数上限，占用的地址空间不超过区域数乘以任务的窗口大小
+     */
+    void setMaxMappedRegions(int maxMappedRegions) {
+        if (maxMappedRegions < 1) {
+            throw new IllegalArgumentException("maxMappedRegions must be positive");
+        }
+        this.mappedRegions = new Semaphore(maxMappedRegions);
+    }
+
+    /**
+     * 设置发送下载进度的线程，为 null 时在下载线程中直接通知监听器
+     */
+    void setProgressDispatcher(ProgressDispatcher progressDispatcher) {
+        this.progressDispatcher = progressDispatcher;
+    }
+
+    /**
+     * 按主机自适应调整并发数，为 null 时使用固定的并发数
+     */
+    void setAdaptiveConcurrency(AdaptiveConcurrency concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    AdaptiveConcurrency getAdaptiveConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * 是否在同一连接上并发多个下载，调度器据此按并发流数而非连接数限制主机的并发下载数
+     */
+    boolean isMultiplexed() {
+        return false;
+    }
+
+    /**
+     * 为即将下载的地址预先建立连接，按路由合并，每个路由最多建立指定数量的连接并保留在连接池中
+     * @param urls 即将下载的地址，同一路由的地址数限制该路由预热的连接数
+     * @param connectionsPerRoute 每个路由最多预热的连接数
+     * @return 预热结果，引擎不支持预热时返回 null
+     */
+    WarmUpResult warmUp(Collection<URI> urls, int connectionsPerRoute) {
+        return null;
+    }
+
+    /**
+     * 主机的并发数已调整，子类可据此调整连接池
+     * @param url 触发调整的下载地址
+     * @param limit 新的并发数
+     */
+    protected void onHostLimitChanged(URI url, int limit) {
+    }
+
+    /**
+     * 开始下载，通知监听器
+     */
+    protected DownloadContext start(DownloadTask task) {
         DownloadContext context = new DownloadContext(task);
+        context.setLimiters(bandwidthThrottle.global(), bandwidthThrottle.host(task.getUrl().getHost()),
+                task.getLimiter());
         logger.debug("Starting download {}", task);
+        metrics.onStart(context);
+        AdaptiveConcurrency concurrency = this.concurrency;
+        if (concurrency != null) {
+            concurrency.onStart(context);
+        } else {
+            context.markConcurrencyReleased();
+        }
         task.onStart(context);
+        return context;
+    }
 
-        FileEntity fileEntity = null;
+    /**
+     * 下载失败，保存断点后通知监听器，监听器可抛出 DownloadException 中止下载
+     */
+    protected void fail(DownloadContext context, IOException e) {
+        logger.error("Error download {}", context.getDownloadTask(), e);
+        metrics.onError(context);
+        AdaptiveConcurrency concurrency = this.concurrency;
+        if (concurrency != null) {
+            concurrency.onError(context, e);
+        }
+        saveJournal(context);
+        context.getDownloadTask().onError(context, e);
+    }
+
+    /**
+     * 下载结束时归还按主机计数的并发数，已按完成或失败归还时忽略
+     */
+    protected void releaseConcurrency(DownloadContext context) {
+        AdaptiveConcurrency concurrency = this.concurrency;
+        if (concurrency != null) {
+            concurrency.release(context);
+        }
+    }
+
+    /**
+     * 下载完成并校验后按任务的设置同步文件，使用临时文件时重命名为目标文件，已取消的下载保留临时文件以便续传
+     */
+    FileEntity commitFile(DownloadContext context, FileEntity fileEntity) throws IOException {
+        DownloadTask task = context.getDownloadTask();
+        if (fileEntity == null || task.isStreaming() || task.isCancelled()) {
+            return fileEntity;
+        }
+        FileSink.commit(task, fileEntity);
+        return fileEntity;
+    }
+
+    /**
+     * 校验下载时计算的摘要，同一下载只校验一次，不一致时删除文件和断点日志
+     * @return 下载的文件，已设置摘要
+     * @throws DigestMismatchException 摘要与期望值不一致
+     */
+    FileEntity verifyDigest(DownloadContext context, FileEntity fileEntity) throws IOException {
+        ContentDigest digest = context.getDigest();
+        if (digest == null || fileEntity == null || context.getDownloadTask().isCancelled()) {
+            return fileEntity;
+        }
+        context.setDigest(null);
         try {
-            fileEntity = doExecute(task, context);
-        } catch (IOException e) {
-            logger.error("Error download {}", task, e);
-            task.onError(context, e);
+            fileEntity.setDigest(digest.verify());
+        } catch (DigestMismatchException e) {
+            deleteJournal(context);
+            context.setJournal(null);
+            fileEntity.delete();
+            throw e;
         }
+        return fileEntity;
+    }
 
+    /**
+     * 流式下载的内容消费者，任务设置了摘要算法时先更新摘要再交给消费者
+     */
+    ContentConsumer streamConsumer(DownloadContext context) {
+        final ContentConsumer consumer = context.getDownloadTask().getConsumer();
+        final ContentDigest digest = ContentDigest.create(context.getDownloadTask(), null);
+        if (digest == null) {
+            return consumer;
+        }
+        context.setDigest(digest);
+        return new ContentConsumer() {
+            @Override
+            public void consume(ByteBuffer chunk) throws IOException {
+                digest.update(chunk);
+                consumer.consume(chunk);
+            }
+        };
+    }
+
+    /**
+     * 下载结束，未被取消时删除断点日志并通知监听器
+     * @param fileEntity 下载的文件，下载失败时为 null
+     */
+    protected FileEntity finish(DownloadContext context, FileEntity fileEntity) {
+        DownloadTask task = context.getDownloadTask();
         if (fileEntity != null) {
-            task.onComplete(context);
-            logger.info("Complete download {} to '{}'", task, fileEntity.getPath());
+            if (task.isCancelled()) {
+                metrics.onCancel(context);
+                saveJournal(context);
+            } else {
+                metrics.onComplete(context);
+                AdaptiveConcurrency concurrency = this.concurrency;
+                if (concurrency != null) {
+                    concurrency.onComplete(context);
+                }
+                deleteJournal(context);
+                task.onComplete(context);
+                logger.info("Complete download {} to '{}'", task,
+                        task.isStreaming() ? "consumer" : fileEntity.getPath());
+            }
         }
 
         return fileEntity;
     }
 
-    protected abstract FileEntity doExecute(DownloadTask task, DownloadContext context) throws IOException;
+    /**
+     * 下载中断时保存断点，重新执行相同的下载任务时从断点继续
+     */
+    private void saveJournal(DownloadContext context) {
+        DownloadJournal journal = context.getJournal();
+        if (journal != null) {
+            try {
+                journal.save();
+            } catch (IOException e) {
+                logger.warn("Error saving download journal of {}", context.getDownloadTask(), e);
+            }
+        }
+    }
+
+    private void deleteJournal(DownloadContext context) {
+        DownloadJournal journal = context.getJournal();
+        if (journal != null) {
+            journal.delete();
+        }
+    }
 
-    protected int transfer(InputStream src, OutputStream dest, DownloadContext context) throws IOException {
+    protected long transfer(InputStream src, OutputStream dest, DownloadContext context) throws IOException {
+        long start = context.getBytesTransferred();
+        boolean completed = copy(src, dest, context);
+        long transferred = context.getBytesTransferred() - start;
+
+        if (!completed) {
+            context.getDownloadTask().onCancel(context, transferred);
+        }
+
+        return transferred;
+    }
+
+    /**
+     * 复制数据流并更新下载进度，不触发取消事件，供分段下载的各个分段共用
+     *
+     * @return 数据流读取完毕时返回 true，线程被中断时返回 false
+     */
+    protected boolean copy(InputStream src, OutputStream dest, DownloadContext context) throws IOException {
         int n = 0;
         int count = 0;
-        int transferred = 0;
         byte[] buf = new byte[DEFAULT_BUFFER_SIZE];
         long currentTime = System.currentTimeMillis();
         long nextTickTime = currentTime + DEFAULT_PROGRESS_TICK_MILLIS;
 
         while(!Thread.interrupted() && n != -1) {
-            while (currentTime < nextTickTime && (n = src.read(buf)) != -1) {
+            while (currentTime < nextTickTime && (n = src.read(buf, 0, context.limitChunk(buf.length))) != -1) {
                 dest.write(buf, 0, n);
                 count += n;
+                if (!throttle(context, n)) {
+                    // 恢复中断状态，由外层循环结束复制
+                    Thread.currentThread().interrupt();
+                    break;
+                }
                 currentTime = System.currentTimeMillis();
             }
 
             long timeMillis = currentTime - nextTickTime + DEFAULT_PROGRESS_TICK_MILLIS;
-            context.getDownloadTask().onProgress(context, count, timeMillis);
+            tick(context, count, timeMillis);
             nextTickTime = currentTime + DEFAULT_PROGRESS_TICK_MILLIS;
-            transferred += count;
             count = 0;
         }
 
-        if (n != -1) {
+        return n == -1;
+    }
+
+    /**
+     * 将数据流写入文件中分段的断点位置，线程被中断时触发取消事件
+     *
+     * @return 本次写入的字节数
+     */
+    long transfer(InputStream src, FileChannel dest, DownloadJournal.Segment segment,
+                 DownloadContext context) throws IOException {
+        // 响应已打开，不等待映射许可，取不到时改用 FileChannel 写入
+        Semaphore region = tryAcquireMappedRegion(segment, context);
+        MappedSegmentWriter mapped = region != null ? new MappedSegmentWriter(dest, segment, context) : null;
+        try {
+            return transfer(src, segmentWriter(dest, segment, mapped, context), context,
+                    BufferPool.sizeFor(segment.remaining()));
+        } finally {
+            if (mapped != null) {
+                try {
+                    mapped.close();
+                } finally {
+                    region.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * 将数据流交给内容消费者，线程被中断时触发取消事件
+     *
+     * @return 本次传输的字节数
+     */
+    long transfer(InputStream src, ContentConsumer dest, DownloadContext context, int bufferSize) throws IOException {
+        long start = context.getBytesTransferred();
+        boolean completed = copy(src, dest, context, bufferSize);
+        long transferred = context.getBytesTransferred() - start;
+
+        if (!completed) {
             context.getDownloadTask().onCancel(context, transferred);
         }
 
         return transferred;
     }
+
+    /**
+     * 按偏移量写入分段，多个分段可共用同一个 FileChannel
+     *
+     * @param mapped 调用方已获取映射许可时按窗口映射写入，否则通过 FileChannel 写入
+     * @return 数据流读取完毕时返回 true，线程被中断时返回 false
+     */
+    boolean copy(InputStream src, FileChannel dest, DownloadJournal.Segment segment,
+                 DownloadContext context, boolean mapped) throws IOException {
+        return copy(src, dest, segment, context, mapped, BufferPool.sizeFor(segment.remaining()));
+    }
+
+    boolean copy(InputStream src, FileChannel dest, DownloadJournal.Segment segment,
+                 DownloadContext context, int bufferSize) throws IOException {
+        return copy(src, dest, segment, context, false, bufferSize);
+    }
+
+    private boolean copy(InputStream src, FileChannel dest, DownloadJournal.Segment segment,
+                         DownloadContext context, boolean mapped, int bufferSize) throws IOException {
+        MappedSegmentWriter writer = mapped ? new MappedSegmentWriter(dest, segment, context) : null;
+        try {
+            return copy(src, segmentWriter(dest, segment, writer, context), context, bufferSize);
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * 任务启用内存映射且分段长度已知时获取一个映射许可，每个许可对应一个同时映射的窗口。
+     * 分段下载在发出分段请求前调用，等待许可时不占用连接
+     *
+     * @return 获取许可的信号量，分段结束后由调用方归还；不使用内存映射时返回 null
+     */
+    Semaphore acquireMappedRegion(DownloadJournal.Segment segment, DownloadContext context)
+            throws InterruptedIOException {
+        if (!MappedSegmentWriter.isApplicable(segment, context)) {
+            return null;
+        }
+        Semaphore regions = mappedRegions;
+        try {
+            regions.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for mapped region");
+        }
+        return regions;
+    }
+
+    /**
+     * 不等待地获取映射许可，用于已打开响应后才确定分段的单流下载
+     *
+     * @return 获取许可的信号量；不使用内存映射或暂无许可时返回 null
+     */
+    private Semaphore tryAcquireMappedRegion(DownloadJournal.Segment segment, DownloadContext context) {
+        if (!MappedSegmentWriter.isApplicable(segment, context)) {
+            return null;
+        }
+        Semaphore regions = mappedRegions;
+        if (!regions.tryAcquire()) {
+            logger.debug("No mapped region available for {}, write through FileChannel",
+                    context.getDownloadTask());
+            return null;
+        }
+        return regions;
+    }
+
+    /**
+     * 从分段的断点位置写入文件，写入前更新摘要，写入后提交断点
+     */
+    private static ContentConsumer segmentWriter(final FileChannel dest, final DownloadJournal.Segment segment,
+                                                 MappedSegmentWriter mapped, final DownloadContext context) {
+        if (mapped != null) {
+            return FileSink.syncing(mapped, dest, context);
+        }
+        return FileSink.syncing(new ContentConsumer() {
+            @Override
+            public void consume(ByteBuffer chunk) throws IOException {
+                ContentDigest digest = context.getDigest();
+                if (digest != null) {
+                    digest.update(segment, chunk);
+                }
+                int n = chunk.remaining();
+                long position = segment.position();
+                while (chunk.hasRemaining()) {
+                    position += dest.write(chunk, position);
+                }
+                segment.commit(n);
+            }
+        }, dest, context);
+    }
+
+    /**
+     * 将数据流逐块交给内容消费者，消费者返回前不再读取，即背压。
+     * 缓冲区从池中获取；读取速度越快，检查时钟的间隔字节数越大，避免每次读取都获取系统时间
+     *
+     * @return 数据流读取完毕时返回 true，线程被中断时返回 false
+     */
+    boolean copy(InputStream src, ContentConsumer dest, DownloadContext context, int bufferSize) throws IOException {
+        ByteBuffer buf = BufferPool.acquire(bufferSize);
+        byte[] array = buf.array();
+        int n = 0;
+        int count = 0;
+        long uncheckedBytes = 0;
+        long bytesPerCheck = 0;
+        long lastTickTime = System.currentTimeMillis();
+        boolean interrupted = false;
+
+        try {
+            while ((n = src.read(array, 0, context.limitChunk(array.length))) != -1) {
+                buf.clear().limit(n);
+                dest.consume(buf);
+                count += n;
+                uncheckedBytes += n;
+                if (!throttle(context, n)) {
+                    interrupted = true;
+                    break;
+                }
+
+                if (uncheckedBytes >= bytesPerCheck) {
+                    uncheckedBytes = 0;
+                    long currentTime = System.currentTimeMillis();
+                    if (currentTime - lastTickTime >= DEFAULT_PROGRESS_TICK_MILLIS) {
+                        tick(context, count, currentTime - lastTickTime);
+                        // 按上一周期的速率估算，每个周期大约检查 4 次时钟
+                        bytesPerCheck = count / 4;
+                        lastTickTime = currentTime;
+                        count = 0;
+                    }
+                    if (Thread.interrupted()) {
+                        interrupted = true;
+                        break;
+                    }
+                }
+            }
+        } catch (ClosedByInterruptException e) {
+            // 写入时被中断，FileChannel 已关闭，按取消处理
+            Thread.interrupted();
+            interrupted = true;
+        } finally {
+            BufferPool.release(buf);
+        }
+
+        tick(context, count, System.currentTimeMillis() - lastTickTime);
+        return !interrupted;
+    }
+
+    /**
+     * 按读取的数据块预留带宽，超出限速时等待
+     *
+     * @return 等待时线程被中断时返回 false
+     */
+    boolean throttle(DownloadContext context, int bytes) {
+        long waitNanos = context.reserveBandwidth(bytes);
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void tick(DownloadContext context, int bytes, long timeMillis) throws IOException {
+        context.addBytesTransferred(bytes);
+        metrics.onBytes(context, bytes);
+        ProgressDispatcher dispatcher = this.progressDispatcher;
+        if (dispatcher != null) {
+            dispatcher.publish(context, bytes, timeMillis);
+        } else {
+            // 分段下载时多个线程共享同一上下文，监听器按顺序接收进度
+            synchronized (context) {
+                context.getDownloadTask().onProgress(context, bytes, timeMillis);
+            }
+        }
+        DownloadJournal journal = context.getJournal();
+        if (journal != null) {
+            journal.checkpoint();
+        }
+    }
 }
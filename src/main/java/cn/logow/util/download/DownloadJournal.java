@@ -0,0 +1,323 @@
+package cn.logow.util.download;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 断点续传日志，记录各分段已写入文件的字节数及服务器文件的校验信息。
+ * <p>
+ * 日志文件保存在下载目录中，以 URL 和目标文件名的摘要命名，
+ * 重新执行相同的下载任务时据此定位未完成的文件。
+ * <p>
+ * 同一 URL 和目标文件名的下载共用一个日志文件，下载期间由该下载独占，
+ * 其他同时进行的相同下载不读取也不保存日志，避免续传到正在写入的文件
+ *
+ * @author logow
+ */
+final class DownloadJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(DownloadJournal.class);
+
+    // 日志文件后缀
+    private static final String JOURNAL_SUFFIX = ".download";
+    // 两次保存日志的最小间隔
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 1000L;
+    // 正在使用的日志文件及其所属的下载
+    private static final ConcurrentMap<String, Object> OWNERS = new ConcurrentHashMap<>();
+
+    private final File file;
+    private final URI url;
+    private final String path;
+    private final String etag;
+    private final String lastModified;
+    private final long length;
+    private final List<Segment> segments;
+    private long lastSaveTime;
+    // 定期同步时为最近一次同步到磁盘的各分段进度，保存日志时只记录已同步的部分
+    private long[] synced;
+
+    private DownloadJournal(File file, URI url, String path, String etag, String lastModified,
+                            long length, List<Segment> segments) {
+        this.file = file;
+        this.url = url;
+        this.path = path;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.segments = Collections.unmodifiableList(segments);
+    }
+
+    /**
+     * 创建新的下载日志，按分段数均分文件，长度未知时只有一个分段
+     */
+    static DownloadJournal create(DownloadTask task, String path, String etag, String lastModified,
+                                  long length, int segmentCount) {
+        List<Segment> segments = new ArrayList<>(segmentCount);
+        if (length < 0) {
+            segments.add(new Segment(0, -1, 0));
+        } else {
+            long segmentSize = length / segmentCount;
+            for (int i = 0; i < segmentCount; i++) {
+                long start = i * segmentSize;
+                long end = i == segmentCount - 1 ? length - 1 : start + segmentSize - 1;
+                segments.add(new Segment(start, end, 0));
+            }
+        }
+        return new DownloadJournal(journalFile(task), task.getUrl(), path, etag, lastModified, length, segments);
+    }
+
+    /**
+     * 读取下载任务未完成的日志
+     * @return 日志不存在、已损坏或目标文件已丢失时返回 null
+     */
+    static DownloadJournal load(DownloadTask task) {
+        File file = journalFile(task);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        Properties props = new Properties();
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            props.load(reader);
+            if (!task.getUrl().toString().equals(props.getProperty("url"))) {
+                return null;
+            }
+
+            String path = props.getProperty("path");
+            if (path == null || !new File(path).isFile()) {
+                file.delete();
+                return null;
+            }
+
+            int count = Integer.parseInt(props.getProperty("segments"));
+            List<Segment> segments = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String[] values = props.getProperty("segment." + i).split(",");
+                segments.add(new Segment(Long.parseLong(values[0]), Long.parseLong(values[1]),
+                        Long.parseLong(values[2])));
+            }
+
+            return new DownloadJournal(file, task.getUrl(), path, props.getProperty("etag"),
+                    props.getProperty("lastModified"), Long.parseLong(props.getProperty("length")), segments);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Discard corrupted download journal '{}'", file, e);
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * 占用下载任务的日志文件，同一下载可重复调用
+     * @param owner 占用日志的下载
+     * @return 日志文件已被其他正在进行的下载占用时返回 false，此时不能读取或保存日志
+     */
+    static boolean acquire(DownloadTask task, Object owner) {
+        Object prev = OWNERS.putIfAbsent(journalFile(task).getAbsolutePath(), owner);
+        return prev == null || prev == owner;
+    }
+
+    /**
+     * 下载结束，释放占用的日志文件，未占用时忽略
+     */
+    static void release(DownloadTask task, Object owner) {
+        OWNERS.remove(journalFile(task).getAbsolutePath(), owner);
+    }
+
+    /**
+     * 下载任务是否有已保存的日志，不读取日志内容
+     */
+    static boolean exists(DownloadTask task) {
+        return journalFile(task).isFile();
+    }
+
+    private static File journalFile(DownloadTask task) {
+        String key = task.getUrl() + "\n" + (task.getFilename() != null ? task.getFilename() : "");
+        return new File(task.getSavePath(), "." + md5Hex(key) + JOURNAL_SUFFIX);
+    }
+
+    private static String md5Hex(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    List<Segment> getSegments() {
+        return segments;
+    }
+
+    boolean isSegmented() {
+        return segments.size() > 1;
+    }
+
+    /**
+     * 各分段已写入文件的字节数之和
+     */
+    long committed() {
+        long committed = 0;
+        for (Segment segment : segments) {
+            committed += segment.committed.get();
+        }
+        return committed;
+    }
+
+    /**
+     * 用于 If-Range 的校验值，弱 ETag 不能用于 If-Range，此时使用 Last-Modified
+     */
+    String getValidator() {
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return lastModified;
+    }
+
+    /**
+     * 距上次保存超过检查点间隔时保存日志
+     */
+    void checkpoint() throws IOException {
+        long now = System.currentTimeMillis();
+        if (now - lastSaveTime >= CHECKPOINT_INTERVAL_MILLIS) {
+            save();
+        }
+    }
+
+    /**
+     * 先写临时文件再原子替换，避免写入中途崩溃导致日志损坏
+     */
+    synchronized void save() throws IOException {
+        store(synced != null ? synced : positions(), false);
+    }
+
+    /**
+     * 将已写入的内容同步到磁盘后保存日志，日志记录的进度不超过磁盘上的内容，系统崩溃后也可据此续传
+     * @param dest 正在写入的文件
+     */
+    synchronized void sync(FileChannel dest) throws IOException {
+        // 同步前记录进度，此前写入的内容都会同步
+        long[] committed = positions();
+        dest.force(false);
+        synced = committed;
+        store(committed, true);
+    }
+
+    private long[] positions() {
+        long[] committed = new long[segments.size()];
+        for (int i = 0; i < committed.length; i++) {
+            committed[i] = segments.get(i).committed.get();
+        }
+        return committed;
+    }
+
+    private void store(long[] committed, boolean force) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("url", url.toString());
+        props.setProperty("path", path);
+        if (etag != null) {
+            props.setProperty("etag", etag);
+        }
+        if (lastModified != null) {
+            props.setProperty("lastModified", lastModified);
+        }
+        props.setProperty("length", String.valueOf(length));
+        props.setProperty("segments", String.valueOf(segments.size()));
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            props.setProperty("segment." + i, segment.start + "," + segment.end + "," + committed[i]);
+        }
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            props.store(writer, null);
+            writer.flush();
+            if (force) {
+                out.getFD().sync();
+            }
+        }
+        Files.move(tmpFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lastSaveTime = System.currentTimeMillis();
+    }
+
+    synchronized void delete() {
+        if (file.exists() && !file.delete()) {
+            logger.warn("Could not delete download journal '{}'", file);
+        }
+    }
+
+    /**
+     * 文件分段，记录已写入的字节数
+     */
+    static final class Segment {
+
+        private final long start;
+        // 长度未知时为 -1
+        private final long end;
+        private final AtomicLong committed;
+
+        Segment(long start, long end, long committed) {
+            this.start = start;
+            this.end = end;
+            this.committed = new AtomicLong(committed);
+        }
+
+        long getStart() {
+            return start;
+        }
+
+        long getEnd() {
+            return end;
+        }
+
+        /**
+         * 下一个待写入字节的文件偏移
+         */
+        long position() {
+            return start + committed.get();
+        }
+
+        /**
+         * 剩余字节数，长度未知时为 -1
+         */
+        long remaining() {
+            return end < 0 ? -1 : end + 1 - position();
+        }
+
+        /**
+         * 累加已写入文件的字节数
+         */
+        void commit(long bytes) {
+            committed.addAndGet(bytes);
+        }
+    }
+}
@@ -12,12 +12,13 @@ public interface DownloadListener {
     void onStart(DownloadContext context);
 
     /**
-     * 下载进度
+     * 下载进度。通过 {@link Downloader} 下载时在单独的进度线程中调用，两次调用之间的进度合并为一次，
+     * 监听器处理缓慢不会阻塞下载；同一任务的进度按顺序调用，且在下载结束的事件之前全部送达
      * @param context
-     * @param bytes 下载字节数
-     * @param timeMillis 下载耗时
+     * @param bytes 自上次调用以来下载的字节数
+     * @param timeMillis 下载耗时，分段下载时为各分段耗时之和
      */
-    void onProgress(DownloadContext context, int bytes, long timeMillis);
+    void onProgress(DownloadContext context, long bytes, long timeMillis);
 
     /**
      * 下载完成
@@ -26,11 +27,12 @@ public interface DownloadListener {
     void onComplete(DownloadContext context);
 
     /**
-     * 下载取消
+     * 下载取消。启用抢占的调度器中断低优先级下载时同样调用，该任务重新排队后再次调用 {@link #onStart}
+     * 并从断点继续，因此同一任务可能依次收到 onCancel、onStart，直到完成、异常或真正取消
      * @param context
      * @param bytesTransferred
      */
-    void onCancel(DownloadContext context, int bytesTransferred);
+    void onCancel(DownloadContext context, long bytesTransferred);
 
     /**
      * 下载异常
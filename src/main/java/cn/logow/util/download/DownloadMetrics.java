@@ -0,0 +1,231 @@
+package cn.logow.util.download;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 下载引擎的指标，包括下载数、字节数、首字节及总耗时分布、各主机的速率，以及线程池和连接池的瞬时值。
+ * <p>
+ * 计数使用 LongAdder，耗时直方图按桶计数，均不加锁；{@link #snapshot()} 读取各项指标时不阻塞下载
+ *
+ * @author logow
+ */
+public class DownloadMetrics implements DownloadMetricsMXBean {
+
+    private final LongAdder started = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder preempted = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final RateMeter throughput = new RateMeter();
+    private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+    private final LatencyHistogram duration = new LatencyHistogram();
+    // 各优先级的排队耗时
+    private final ConcurrentMap<Integer, LatencyHistogram> queueWait = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, RateMeter> hosts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * 注册瞬时值，同名时替换
+     */
+    public void registerGauge(String name, LongSupplier gauge) {
+        if (name == null || gauge == null) {
+            throw new IllegalArgumentException("name and gauge must not be null");
+        }
+        gauges.put(name, gauge);
+    }
+
+    public MetricsSnapshot snapshot() {
+        return new MetricsSnapshot(System.currentTimeMillis(), started.sum(), completed.sum(), failed.sum(),
+                cancelled.sum(), cacheHits.sum(), shed.sum(), preempted.sum(), retries.sum(), throughput.getTotal(),
+                throughput.getRate(), timeToFirstByte.snapshot(), duration.snapshot(), getQueueWait(),
+                getHostThroughput(), getGauges());
+    }
+
+    void onStart(DownloadContext context) {
+        started.increment();
+    }
+
+    /**
+     * 收到响应头，同一下载只记录第一次
+     */
+    void onResponse(DownloadContext context) {
+        if (context.markResponded()) {
+            timeToFirstByte.record(elapsedMicros(context));
+        }
+    }
+
+    void onBytes(DownloadContext context, long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        throughput.add(bytes);
+        String host = context.getDownloadTask().getUrl().getHost();
+        if (host != null) {
+            RateMeter meter = hosts.get(host);
+            if (meter == null) {
+                meter = new RateMeter();
+                RateMeter prev = hosts.putIfAbsent(host, meter);
+                if (prev != null) {
+                    meter = prev;
+                }
+            }
+            meter.add(bytes);
+        }
+    }
+
+    void onComplete(DownloadContext context) {
+        completed.increment();
+        duration.record(elapsedMicros(context));
+    }
+
+    /**
+     * 下载完成时文件来自缓存，同时计入完成数
+     */
+    void onCacheHit(DownloadContext context) {
+        cacheHits.increment();
+    }
+
+    void onError(DownloadContext context) {
+        failed.increment();
+    }
+
+    void onCancel(DownloadContext context) {
+        cancelled.increment();
+    }
+
+    /**
+     * 任务从提交到开始执行的等待时间
+     */
+    void onDequeue(int priority, long waitNanos) {
+        LatencyHistogram histogram = queueWait.get(priority);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram prev = queueWait.putIfAbsent(priority, histogram);
+            if (prev != null) {
+                histogram = prev;
+            }
+        }
+        histogram.record(TimeUnit.NANOSECONDS.toMicros(waitNanos));
+    }
+
+    /**
+     * 任务等待时已过截止时间，不再下载
+     */
+    void onShed() {
+        shed.increment();
+    }
+
+    /**
+     * 正在下载的任务让出给优先级更高的任务，之后重新排队继续
+     */
+    void onPreempt() {
+        preempted.increment();
+    }
+
+    /**
+     * 下载失败后等待重试，从断点继续或重新下载
+     */
+    void onRetry(DownloadContext context) {
+        retries.increment();
+    }
+
+    private static long elapsedMicros(DownloadContext context) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - context.getStartNanos());
+    }
+
+    @Override
+    public long getStarted() {
+        return started.sum();
+    }
+
+    @Override
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getCancelled() {
+        return cancelled.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getShed() {
+        return shed.sum();
+    }
+
+    @Override
+    public long getPreempted() {
+        return preempted.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getBytesTransferred() {
+        return throughput.getTotal();
+    }
+
+    @Override
+    public long getThroughput() {
+        return throughput.getRate();
+    }
+
+    @Override
+    public MetricsSnapshot.Histogram getTimeToFirstByte() {
+        return timeToFirstByte.snapshot();
+    }
+
+    @Override
+    public MetricsSnapshot.Histogram getDuration() {
+        return duration.snapshot();
+    }
+
+    @Override
+    public Map<String, MetricsSnapshot.Histogram> getQueueWait() {
+        Map<String, MetricsSnapshot.Histogram> values = new TreeMap<>();
+        for (Map.Entry<Integer, LatencyHistogram> entry : queueWait.entrySet()) {
+            values.put(String.valueOf(entry.getKey()), entry.getValue().snapshot());
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getHostThroughput() {
+        Map<String, Long> rates = new TreeMap<>();
+        for (Map.Entry<String, RateMeter> entry : hosts.entrySet()) {
+            rates.put(entry.getKey(), entry.getValue().getRate());
+        }
+        return rates;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().getAsLong());
+        }
+        return values;
+    }
+}
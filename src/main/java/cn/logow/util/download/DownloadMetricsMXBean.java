@@ -0,0 +1,56 @@
+package cn.logow.util.download;
+
+import java.util.Map;
+
+/**
+ * 通过 JMX 暴露的下载指标，耗时单位为微秒
+ *
+ * @author logow
+ */
+public interface DownloadMetricsMXBean {
+
+    long getStarted();
+
+    long getCompleted();
+
+    long getFailed();
+
+    long getCancelled();
+
+    long getCacheHits();
+
+    /**
+     * 等待时已过截止时间而放弃的任务数
+     */
+    long getShed();
+
+    /**
+     * 让出给优先级更高的任务的次数
+     */
+    long getPreempted();
+
+    /**
+     * 下载失败后重试的次数
+     */
+    long getRetries();
+
+    long getBytesTransferred();
+
+    /**
+     * 最近几秒的平均每秒下载字节数
+     */
+    long getThroughput();
+
+    MetricsSnapshot.Histogram getTimeToFirstByte();
+
+    MetricsSnapshot.Histogram getDuration();
+
+    /**
+     * 各优先级的排队耗时，键为优先级
+     */
+    Map<String, MetricsSnapshot.Histogram> getQueueWait();
+
+    Map<String, Long> getHostThroughput();
+
+    Map<String, Long> getGauges();
+}
@@ -0,0 +1,644 @@
+package cn.logow.util.download;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * 下载任务调度器，限制全局及单个主机的并发下载数，各主机的等待任务轮流执行。
+ * <p>
+ * 等待的任务按优先级及截止时间排序，优先级高的先执行，相同优先级时截止时间早的先执行；
+ * 开始执行时已过截止时间的任务不再下载。配置为可抢占时，并发数已满时提交的高优先级任务
+ * 中断一个优先级更低、支持断点续传的下载，被中断的下载在下载线程退出后重新排队，之后从断点继续。
+ * <p>
+ * 等待队列已满时按配置阻塞或拒绝提交，下载始终由下载引擎在下载线程或 I/O 线程中执行，不会占用提交任务的线程
+ *
+ * @author logow
+ */
+public class DownloadScheduler implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DownloadScheduler.class);
+
+    /**
+     * 优先级高的在前，相同优先级时截止时间早的在前，未设置截止时间的最后
+     */
+    private static final Comparator<ScheduledDownload> RANK = new Comparator<ScheduledDownload>() {
+        @Override
+        public int compare(ScheduledDownload a, ScheduledDownload b) {
+            int c = Integer.compare(b.priority, a.priority);
+            return c != 0 ? c : Long.compare(a.deadline, b.deadline);
+        }
+    };
+
+    /**
+     * 同一主机的等待队列，排序相同时先提交的在前
+     */
+    private static final Comparator<ScheduledDownload> ORDER = new Comparator<ScheduledDownload>() {
+        @Override
+        public int compare(ScheduledDownload a, ScheduledDownload b) {
+            int c = RANK.compare(a, b);
+            return c != 0 ? c : Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    private final int maxConcurrency;
+    private final int maxPerHost;
+    private final int maxStreamsPerHost;
+    private final int queueCapacity;
+    private final boolean blockWhenFull;
+    private final boolean preemptive;
+    private final DownloadEngine engine;
+    // 按主机选择的下载引擎，其他主机使用默认引擎
+    private final Map<String, DownloadEngine> hostEngines = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Map<String, HostQueue> hosts = new HashMap<>();
+    // 有等待任务且未达到并发上限的主机，按轮询顺序排列
+    private final ArrayDeque<HostQueue> readyHosts = new ArrayDeque<>();
+    // 正在执行的任务，用于选择被抢占的任务
+    private final Set<ScheduledDownload> active = new HashSet<>();
+    private long sequence;
+    private int pending;
+    private int running;
+    private boolean shutdown;
+
+    public DownloadScheduler(DownloaderConfig config, DownloadEngine engine) {
+        this.engine = engine;
+        this.maxConcurrency = config.getMaxConcurrency();
+        this.maxPerHost = config.getMaxConnPerHost();
+        this.maxStreamsPerHost = config.getMaxStreamsPerHost();
+        this.queueCapacity = config.getQueueCapacity();
+        this.blockWhenFull = config.isBlockWhenQueueFull();
+        this.preemptive = config.isPreemptive();
+        this.executor = createExecutor(config);
+    }
+
+    /**
+     * 供阻塞的下载引擎使用，调度器控制提交给执行器的任务数，执行器中最多只有 maxConcurrency 个任务
+     */
+    private ExecutorService createExecutor(DownloaderConfig config) {
+        if (config.isVirtualThreads()) {
+            if (VirtualThreads.isSupported()) {
+                return VirtualThreads.newThreadPerTaskExecutor("download-vthread-");
+            }
+            logger.warn("Virtual threads are not supported by Java {}, fall back to thread pool",
+                    System.getProperty("java.version"));
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "download-thread");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * 指定主机使用的下载引擎，须在提交该主机的任务前设置
+     */
+    void setHostEngine(String host, DownloadEngine engine) {
+        hostEngines.put(host.toLowerCase(Locale.ROOT), engine);
+    }
+
+    private DownloadEngine engineFor(DownloadTask task) {
+        String host = task.getUrl().getHost();
+        DownloadEngine hostEngine = host != null && !hostEngines.isEmpty()
+                ? hostEngines.get(host.toLowerCase(Locale.ROOT)) : null;
+        return hostEngine != null ? hostEngine : engine;
+    }
+
+    /**
+     * 提交下载任务
+     * @param task 下载任务，按其 URL 的主机限制并发，按其优先级及截止时间排序
+     * @return 下载结果，取消时中断正在进行的下载；等待时已过截止时间以 {@link DeadlineExceededException} 结束
+     * @throws RejectedExecutionException 调度器已关闭、队列已满且不阻塞，或等待时被中断
+     */
+    public CompletableFuture<FileEntity> submit(DownloadTask task) {
+        String host = task.getUrl().getHost();
+        List<ScheduledDownload> ready = new ArrayList<>();
+        ScheduledDownload download;
+        List<ScheduledDownload> candidates = null;
+        lock.lock();
+        try {
+            while (pending >= queueCapacity && !shutdown) {
+                // 先放弃已过截止时间的任务腾出空间
+                if (purgeExpired(ready)) {
+                    continue;
+                }
+                if (!blockWhenFull) {
+                    throw new RejectedExecutionException("Download queue is full, capacity=" + queueCapacity);
+                }
+                try {
+                    notFull.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted while waiting for download queue", e);
+                }
+            }
+            if (shutdown) {
+                throw new RejectedExecutionException("Download scheduler was shut down");
+            }
+
+            HostQueue hostQueue = hosts.get(host);
+            if (hostQueue == null) {
+                hostQueue = new HostQueue(host, engineFor(task).isMultiplexed());
+                hosts.put(host, hostQueue);
+            }
+            download = new ScheduledDownload(hostQueue, task, sequence++);
+            hostQueue.queue.add(download);
+            pending++;
+            markReady(hostQueue);
+            dispatch(ready);
+            if (preemptive && hostQueue.queue.contains(download)) {
+                candidates = selectVictims(download);
+            }
+        } finally {
+            lock.unlock();
+            start(ready);
+        }
+
+        if (candidates != null) {
+            ScheduledDownload victim = claimVictim(download, candidates);
+            if (victim != null) {
+                preempt(victim, download);
+            }
+        }
+        return download;
+    }
+
+    /**
+     * 等待下载的任务数
+     */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 正在下载的任务数
+     */
+    public int getRunningCount() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 注册等待任务数、正在下载的任务数，以及执行器的活动线程数和队列长度
+     */
+    void registerGauges(DownloadMetrics metrics) {
+        metrics.registerGauge("scheduler.pending", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return getPendingCount();
+            }
+        });
+        metrics.registerGauge("scheduler.running", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return getRunningCount();
+            }
+        });
+        metrics.registerGauge("executor.activeThreads", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                // 虚拟线程执行器中每个任务一个线程
+                return executor instanceof ThreadPoolExecutor
+                        ? ((ThreadPoolExecutor) executor).getActiveCount() : getRunningCount();
+            }
+        });
+        metrics.registerGauge("executor.queueSize", new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return executor instanceof ThreadPoolExecutor
+                        ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+            }
+        });
+    }
+
+    /**
+     * 主机的并发下载数上限，启用自适应并发时随主机的响应调整；复用连接的引擎按并发流数限制
+     */
+    private int hostLimit(HostQueue hostQueue) {
+        if (hostQueue.multiplexed) {
+            return maxStreamsPerHost;
+        }
+        AdaptiveConcurrency concurrency = engine.getAdaptiveConcurrency();
+        return concurrency != null ? concurrency.limit(hostQueue.host) : maxPerHost;
+    }
+
+    private void markReady(HostQueue hostQueue) {
+        if (!hostQueue.ready && !hostQueue.queue.isEmpty() && hostQueue.active < hostLimit(hostQueue)) {
+            hostQueue.ready = true;
+            readyHosts.add(hostQueue);
+        }
+    }
+
+    /**
+     * 在全局并发数允许的范围内，从就绪主机中选择队首任务排序最前的主机取出任务，排序相同的主机轮流执行；
+     * 已过截止时间的任务不再执行。调用时须持有锁
+     * @param ready 待开始的任务，须在释放锁后调用 {@link #start(List)}，避免在锁内执行监听器
+     */
+    private void dispatch(List<ScheduledDownload> ready) {
+        long now = System.currentTimeMillis();
+        while (running < maxConcurrency && !readyHosts.isEmpty()) {
+            HostQueue hostQueue = nextHost();
+            hostQueue.ready = false;
+            ScheduledDownload download = hostQueue.queue.poll();
+            if (download == null) {
+                removeIfIdle(hostQueue);
+                continue;
+            }
+            pending--;
+            notFull.signal();
+
+            if (download.isExpired(now)) {
+                download.shed = true;
+                ready.add(download);
+                markReady(hostQueue);
+                removeIfIdle(hostQueue);
+                continue;
+            }
+            engine.getMetrics().onDequeue(download.priority, System.nanoTime() - download.enqueueNanos);
+            hostQueue.active++;
+            running++;
+            active.add(download);
+            markReady(hostQueue);
+            ready.add(download);
+        }
+    }
+
+    private HostQueue nextHost() {
+        HostQueue next = null;
+        for (HostQueue hostQueue : readyHosts) {
+            if (next == null || rank(hostQueue.queue.peek(), next.queue.peek()) < 0) {
+                next = hostQueue;
+            }
+        }
+        readyHosts.remove(next);
+        return next;
+    }
+
+    private static int rank(ScheduledDownload a, ScheduledDownload b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : 1) : -1;
+        }
+        return RANK.compare(a, b);
+    }
+
+    /**
+     * 从等待队列中移除已过截止时间的任务，调用时须持有锁
+     * @return 是否移除了任务
+     */
+    private boolean purgeExpired(List<ScheduledDownload> shed) {
+        long now = System.currentTimeMillis();
+        boolean purged = false;
+        for (HostQueue hostQueue : hosts.values()) {
+            Iterator<ScheduledDownload> it = hostQueue.queue.iterator();
+            while (it.hasNext()) {
+                ScheduledDownload download = it.next();
+                if (download.isExpired(now)) {
+                    it.remove();
+                    pending--;
+                    download.shed = true;
+                    shed.add(download);
+                    purged = true;
+                }
+            }
+        }
+        if (purged) {
+            // 腾出的位置可能多于当前提交所需，唤醒其他等待的提交
+            notFull.signalAll();
+        }
+        return purged;
+    }
+
+    /**
+     * 为无法立即执行的任务列出可被抢占的任务：优先级低于该任务、支持断点续传且尚未被抢占，
+     * 按优先级从低到高、相同优先级时最晚开始的在前排列。主机并发数已满时只能抢占同一主机的任务。调用时须持有锁
+     * @return 没有可抢占的任务时返回 null
+     */
+    private List<ScheduledDownload> selectVictims(ScheduledDownload waiting) {
+        boolean hostFull = waiting.hostQueue.active >= hostLimit(waiting.hostQueue);
+        if (!hostFull && running < maxConcurrency) {
+            return null;
+        }
+        List<ScheduledDownload> candidates = null;
+        for (ScheduledDownload download : active) {
+            if (download.priority >= waiting.priority || (hostFull && download.hostQueue != waiting.hostQueue)
+                    || !download.isPreemptible()) {
+                continue;
+            }
+            if (candidates == null) {
+                candidates = new ArrayList<>();
+            }
+            candidates.add(download);
+        }
+        if (candidates != null) {
+            candidates.sort(new Comparator<ScheduledDownload>() {
+                @Override
+                public int compare(ScheduledDownload a, ScheduledDownload b) {
+                    int c = Integer.compare(a.priority, b.priority);
+                    return c != 0 ? c : Long.compare(b.sequence, a.sequence);
+                }
+            });
+        }
+        return candidates;
+    }
+
+    /**
+     * 在锁外检查候选任务是否已保存断点日志，再在锁内确认等待的任务仍未开始、候选任务仍可抢占后标记为被抢占
+     * @return 没有可抢占的任务时返回 null
+     */
+    private ScheduledDownload claimVictim(ScheduledDownload waiting, List<ScheduledDownload> candidates) {
+        for (ScheduledDownload candidate : candidates) {
+            if (!DownloadJournal.exists(candidate.task)) {
+                continue;
+            }
+            lock.lock();
+            try {
+                if (!waiting.hostQueue.queue.contains(waiting)) {
+                    return null;
+                }
+                if (candidate.isPreemptible() && active.contains(candidate)) {
+                    candidate.preempted = true;
+                    return candidate;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return null;
+    }
+
+    private void preempt(ScheduledDownload victim, ScheduledDownload waiting) {
+        logger.info("Preempt download {} for higher priority download {}", victim.task, waiting.task);
+        engine.getMetrics().onPreempt();
+        victim.execution.cancel(true);
+    }
+
+    /**
+     * 被抢占的下载线程退出后释放并发数，重新排队等待继续下载；取消前已下载完成时直接返回结果
+     */
+    private void requeue(ScheduledDownload download, DownloadEngine.Execution execution, Future<FileEntity> job) {
+        // 取消时文件已提交，结果被取消的执行丢弃，不再重新下载
+        FileEntity completed = execution.getCompletedFile();
+        if (completed != null) {
+            afterExecute(download);
+            download.complete(completed);
+            return;
+        }
+        if (!job.isCancelled()) {
+            afterExecute(download);
+            try {
+                download.complete(job.get());
+            } catch (ExecutionException e) {
+                download.completeExceptionally(e.getCause());
+            } catch (InterruptedException e) {
+                download.completeExceptionally(e);
+            }
+            return;
+        }
+
+        HostQueue hostQueue = download.hostQueue;
+        List<ScheduledDownload> ready = new ArrayList<>();
+        boolean requeued = false;
+        lock.lock();
+        try {
+            hostQueue.active--;
+            running--;
+            active.remove(download);
+            download.preempted = false;
+            download.execution = null;
+            if (!download.isDone() && !shutdown) {
+                download.enqueueNanos = System.nanoTime();
+                hostQueue.queue.add(download);
+                pending++;
+                requeued = true;
+            }
+            markReady(hostQueue);
+            removeIfIdle(hostQueue);
+            dispatch(ready);
+        } finally {
+            lock.unlock();
+        }
+        start(ready);
+        if (!requeued) {
+            download.cancel(false);
+        }
+    }
+
+    private void removeIfIdle(HostQueue hostQueue) {
+        if (hostQueue.active == 0 && hostQueue.queue.isEmpty()) {
+            hosts.remove(hostQueue.host);
+            readyHosts.remove(hostQueue);
+            hostQueue.ready = false;
+        }
+    }
+
+    private void start(List<ScheduledDownload> ready) {
+        for (ScheduledDownload download : ready) {
+            download.start();
+        }
+    }
+
+    private void afterExecute(ScheduledDownload download) {
+        HostQueue hostQueue = download.hostQueue;
+        List<ScheduledDownload> ready = new ArrayList<>();
+        lock.lock();
+        try {
+            hostQueue.active--;
+            running--;
+            active.remove(download);
+            markReady(hostQueue);
+            removeIfIdle(hostQueue);
+            dispatch(ready);
+        } finally {
+            lock.unlock();
+        }
+        start(ready);
+    }
+
+    /**
+     * 取消尚未执行的任务时立即从队列中移除，释放队列空间
+     */
+    private void afterCancel(ScheduledDownload download) {
+        lock.lock();
+        try {
+            HostQueue hostQueue = download.hostQueue;
+            if (hostQueue.queue.remove(download)) {
+                pending--;
+                notFull.signal();
+                removeIfIdle(hostQueue);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        List<ScheduledDownload> queued = new ArrayList<>();
+        lock.lock();
+        try {
+            shutdown = true;
+            notFull.signalAll();
+            for (HostQueue hostQueue : hosts.values()) {
+                queued.addAll(hostQueue.queue);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (ScheduledDownload download : queued) {
+            download.cancel(false);
+        }
+        executor.shutdownNow();
+    }
+
+    private static class HostQueue {
+        final String host;
+        final PriorityQueue<ScheduledDownload> queue = new PriorityQueue<>(11, ORDER);
+        // 主机的下载引擎是否在一个连接上并发多个下载
+        final boolean multiplexed;
+        int active;
+        boolean ready;
+
+        HostQueue(String host, boolean multiplexed) {
+            this.host = host;
+            this.multiplexed = multiplexed;
+        }
+    }
+
+    private class ScheduledDownload extends CompletableFuture<FileEntity> {
+
+        private final HostQueue hostQueue;
+        private final DownloadTask task;
+        private final long sequence;
+        // 提交时的优先级及截止时间，排队期间不随任务设置变化
+        private final int priority;
+        private final long deadline;
+        private long enqueueNanos = System.nanoTime();
+        // 以下两项在锁内修改
+        private boolean shed;
+        private volatile boolean preempted;
+        private volatile CompletableFuture<FileEntity> execution;
+
+        ScheduledDownload(HostQueue hostQueue, DownloadTask task, long sequence) {
+            this.hostQueue = hostQueue;
+            this.task = task;
+            this.sequence = sequence;
+            this.priority = task.getPriority();
+            this.deadline = task.getDeadline() > 0 ? task.getDeadline() : Long.MAX_VALUE;
+        }
+
+        boolean isExpired(long now) {
+            return now >= deadline;
+        }
+
+        /**
+         * 只抢占在下载线程中执行、支持断点续传的文件下载，重新执行时从断点继续。
+         * 是否已保存断点日志需读取文件，由 {@link #claimVictim} 在锁外检查
+         */
+        boolean isPreemptible() {
+            return !preempted && execution instanceof DownloadEngine.Execution && !execution.isDone()
+                    && !task.isDone() && task.isResumable() && !task.isStreaming()
+                    && task.getCompression() == DownloadTask.Compression.NONE;
+        }
+
+        void start() {
+            if (shed) {
+                logger.info("Shed download {}, deadline exceeded while waiting", task);
+                engine.getMetrics().onShed();
+                completeExceptionally(new DeadlineExceededException(task));
+                return;
+            }
+            if (isDone()) {
+                afterExecute(this);
+                return;
+            }
+
+            final CompletableFuture<FileEntity> execution;
+            try {
+                execution = engineFor(task).executeAsync(task, executor);
+            } catch (RuntimeException e) {
+                afterExecute(this);
+                completeExceptionally(e);
+                return;
+            }
+            this.execution = execution;
+            // 开始前已被取消
+            if (isCancelled()) {
+                execution.cancel(true);
+            }
+
+            execution.whenComplete(new BiConsumer<FileEntity, Throwable>() {
+                @Override
+                public void accept(FileEntity fileEntity, Throwable e) {
+                    if (preempted) {
+                        // 等待下载线程保存断点并退出，避免与继续下载同时写入文件
+                        ((DownloadEngine.Execution) execution).stopped().thenAccept(
+                                new Consumer<Future<FileEntity>>() {
+                                    @Override
+                                    public void accept(Future<FileEntity> job) {
+                                        requeue(ScheduledDownload.this, (DownloadEngine.Execution) execution, job);
+                                    }
+                                });
+                        return;
+                    }
+                    afterExecute(ScheduledDownload.this);
+                    if (e == null) {
+                        complete(fileEntity);
+                    } else {
+                        completeExceptionally(e instanceof CompletionException && e.getCause() != null
+                                ? e.getCause() : e);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                CompletableFuture<FileEntity> execution = this.execution;
+                if (execution != null) {
+                    execution.cancel(true);
+                } else {
+                    afterCancel(this);
+                }
+            }
+            return cancelled;
+        }
+    }
+}
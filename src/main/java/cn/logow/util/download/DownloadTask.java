@@ -3,10 +3,63 @@ package cn.logow.util.download;
 import java.io.File;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
 
 public class DownloadTask implements DownloadListener {
 
+    /**
+     * 传输压缩方式
+     */
+    public enum Compression {
+        /**
+         * 不压缩，请求不声明 Accept-Encoding
+         */
+        NONE,
+        /**
+         * 请求压缩传输，写入时按 Content-Encoding 解码，保存原始内容
+         */
+        DECODE,
+        /**
+         * 请求压缩传输，不解码，保存服务器返回的压缩数据
+         */
+        RAW
+    }
+
+    /**
+     * 文件写入后同步到磁盘的方式
+     */
+    public enum Durability {
+        /**
+         * 不主动同步，由操作系统决定何时写入磁盘
+         */
+        NONE,
+        /**
+         * 下载完成时同步文件内容，使用临时文件时在重命名前同步，重命名后同步目录
+         */
+        ON_COMPLETE,
+        /**
+         * 每写入一定字节数同步一次，完成时同步，断点日志记录的进度不超过已同步的内容太多
+         */
+        PERIODIC
+    }
+
+    /**
+     * 后台预取等可延后的任务
+     */
+    public static final int PRIORITY_LOW = -10;
+    /**
+     * 默认优先级
+     */
+    public static final int PRIORITY_NORMAL = 0;
+    /**
+     * 用户正在等待的任务
+     */
+    public static final int PRIORITY_HIGH = 10;
+
     private static final int NEW = 0;
     private static final int RUNNING = 1;
     private static final int COMPLETED = 2;
@@ -15,6 +68,12 @@ public class DownloadTask implements DownloadListener {
     private static final int INTERRUPTED = 6;
 
     private static final DownloadListener DEFAULT_LISTENER = new DefaultDownloadListener();
+    // 默认分段下载时每个分段的最小字节数
+    private static final long DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024 * 4;
+    // 默认定期同步的间隔字节数
+    private static final long DEFAULT_SYNC_INTERVAL = 1024 * 1024 * 64;
+    // 内存映射写入的最小窗口
+    private static final int MIN_MAPPED_WINDOW_SIZE = 1024 * 64;
 
     private final URI url;
     private final String savePath;
@@ -22,11 +81,33 @@ public class DownloadTask implements DownloadListener {
     private volatile int state = NEW;
     private DownloadListener listener = DEFAULT_LISTENER;
     private Object attachment;
+    private int segments = 1;
+    private long minSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+    private boolean resumable = true;
+    private boolean cacheable = true;
+    private final BandwidthLimiter limiter = new BandwidthLimiter(0);
+    private final ContentConsumer consumer;
+    private DigestAlgorithm digestAlgorithm;
+    private String expectedDigest;
+    private Compression compression = Compression.NONE;
+    private int priority = PRIORITY_NORMAL;
+    // 截止时间，毫秒时间戳，为 0 时不限
+    private long deadline;
+    private boolean tempFile;
+    private Durability durability = Durability.NONE;
+    private long syncInterval = DEFAULT_SYNC_INTERVAL;
+    // 内存映射写入的窗口大小，为 0 时通过 FileChannel 写入
+    private int mappedWindowSize;
 
     private DownloadTask(URI url, String savePath, String filename) {
+        this(url, savePath, filename, null);
+    }
+
+    private DownloadTask(URI url, String savePath, String filename, ContentConsumer consumer) {
         this.url = url;
         this.savePath = savePath;
         this.filename = filename;
+        this.consumer = consumer;
     }
 
     public static DownloadTask create(String url, String saveTo) throws IOException {
@@ -60,6 +141,85 @@ public class DownloadTask implements DownloadListener {
         return new DownloadTask(uri, saveDir.getPath(), filename);
     }
 
+    /**
+     * 创建流式下载任务，响应内容交给消费者处理，不写入磁盘。
+     * 流式下载不分段、不支持断点续传和下载缓存，完成时返回的 FileEntity 没有文件路径
+     * @param consumer 内容消费者
+     */
+    public static DownloadTask create(String url, ContentConsumer consumer) {
+        if (url == null || url.isEmpty()) {
+            throw new IllegalArgumentException("url must not be empty");
+        }
+        if (consumer == null) {
+            throw new IllegalArgumentException("consumer must not be null");
+        }
+
+        return new DownloadTask(Utils.resolveURL(url), null, null, consumer);
+    }
+
+    /**
+     * 创建流式下载任务，响应内容写入 Channel，下载结束后不关闭
+     * @param channel 阻塞模式的 Channel
+     */
+    public static DownloadTask create(String url, final WritableByteChannel channel) {
+        if (channel == null) {
+            throw new IllegalArgumentException("channel must not be null");
+        }
+        return create(url, new ContentConsumer() {
+            @Override
+            public void consume(ByteBuffer chunk) throws IOException {
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+            }
+        });
+    }
+
+    /**
+     * 创建流式下载任务，响应内容写入输出流，下载结束后不刷新也不关闭
+     */
+    public static DownloadTask create(String url, final OutputStream out) {
+        if (out == null) {
+            throw new IllegalArgumentException("out must not be null");
+        }
+        return create(url, new ContentConsumer() {
+            @Override
+            public void consume(ByteBuffer chunk) throws IOException {
+                if (chunk.hasArray()) {
+                    out.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+                    chunk.position(chunk.limit());
+                } else {
+                    byte[] bytes = new byte[chunk.remaining()];
+                    chunk.get(bytes);
+                    out.write(bytes);
+                }
+            }
+        });
+    }
+
+    /**
+     * 复制下载地址、保存位置及下载设置，绑定新的监听器，用于合并相同 URL 的下载
+     */
+    static DownloadTask copyOf(DownloadTask task, DownloadListener listener) {
+        DownloadTask copy = new DownloadTask(task.url, task.savePath, task.filename, task.consumer);
+        copy.segments = task.segments;
+        copy.minSegmentSize = task.minSegmentSize;
+        copy.resumable = task.resumable;
+        copy.cacheable = task.cacheable;
+        copy.limiter.setRate(task.limiter.getRate());
+        copy.digestAlgorithm = task.digestAlgorithm;
+        copy.expectedDigest = task.expectedDigest;
+        copy.compression = task.compression;
+        copy.priority = task.priority;
+        copy.deadline = task.deadline;
+        copy.tempFile = task.tempFile;
+        copy.durability = task.durability;
+        copy.syncInterval = task.syncInterval;
+        copy.mappedWindowSize = task.mappedWindowSize;
+        copy.listener = listener;
+        return copy;
+    }
+
     public Object attachment() {
         return attachment;
     }
@@ -91,6 +251,174 @@ public class DownloadTask implements DownloadListener {
         this.attachment = attachment;
     }
 
+    /**
+     * 设置分段下载的分段数，服务器支持 Range 请求时将使用多个连接并行下载
+     * @param segments 最大分段数，默认为 1 即不分段
+     */
+    public void setSegments(int segments) {
+        if (segments < 1) {
+            throw new IllegalArgumentException("segments must be positive");
+        }
+        if (state != NEW) {
+            throw new IllegalStateException("task was running or done");
+        }
+        this.segments = segments;
+    }
+
+    /**
+     * 设置分段下载时每个分段的最小字节数，文件较小时将减少实际分段数
+     * @param minSegmentSize 分段最小字节数
+     */
+    public void setMinSegmentSize(long minSegmentSize) {
+        if (minSegmentSize < 1) {
+            throw new IllegalArgumentException("minSegmentSize must be positive");
+        }
+        if (state != NEW) {
+            throw new IllegalStateException("task was running or done");
+        }
+        this.minSegmentSize = minSegmentSize;
+    }
+
+    /**
+     * 设置是否支持断点续传，默认开启。
+     * 下载中断后保留未完成的文件和断点日志，重新执行相同 URL 和保存位置的任务时从断点继续
+     * @param resumable 是否支持断点续传
+     */
+    public void setResumable(boolean resumable) {
+        if (state != NEW) {
+            throw new IllegalStateException("task was running or done");
+        }
+        this.resumable = resumable;
+    }
+
+    /**
+     * 设置是否使用下载缓存，默认开启，下载器未配置缓存时忽略
+     * @param cacheable 是否使用下载缓存
+     */
+    public void setCacheable(boolean cacheable) {
+        if (state != NEW) {
+            throw new IllegalStateException("task was running or done");
+        }
+        this.cacheable = cacheable;
+    }
+
+    /**
+     * 设置任务的最大下载速率，分段下载时所有分段共享，下载过程中可随时调整
+     * @param bytesPerSecond 每秒字节数，不大于 0 时不限速
+     */
+    public void setRateLimit(long bytesPerSecond) {
+        limiter.setRate(bytesPerSecond);
+    }
+
+    /**
+     * 设置下载时计算的内容摘要，写入数据时同时计算，完成后通过 {@link FileEntity#getDigest()} 获取，无需再读取文件。
+     * 分段下载时只有 CRC32C 可以合并各分段的结果，其他算法在下载完成后读取文件计算
+     * @param algorithm 摘要算法
+     * @param expected 期望的十六进制摘要，不区分大小写，为 null 时只计算不校验；
+     *                 不一致时删除文件并以 {@link DigestMismatchException} 触发下载异常事件
+     */
+    public void setDigest(DigestAlgorithm algorithm, String expected) {
+        if (algorithm == null) {
+            throw new IllegalArgumentException("algorithm must not be null");
+        }
+        if (state != NEW) {
+            throw new IllegalStateException("task was running or done");
+        }
+        this.digestAlgorithm = algorithm;
+        this.expectedDigest = expected;
+    }
+
+    /**
+     * 设置传输压缩方式，默认不压缩。文本类文件压缩传输可大幅减少传输量；
+     * 压缩传输时不分段、不支持断点续传，非阻塞引擎只支持 NONE 和 RAW
+     * @param compression 压缩方式
+     */
+    public void setCompression(Compression compression) {
+        if (compression == null) {
+            throw new IllegalArgumentException("compression must not be null");
+        }
+        if (state != NEW) {
+            throw new IllegalStateException("task was running or done");
+        }
+        this.compression = compression;
+    }
+
+    /**
+     * 设置调度优先级，等待执行时优先级高的任务先执行，相同优先级时截止时间早的先执行
+     * @param priority 优先级，数值越大越优先，默认为 {@link #PRIORITY_NORMAL}
+     */
+    public void setPriority(int priority) {
+        if (state != NEW) {
+            throw new IllegalStateException("task was running or done");
+        }
+        this.priority = priority;
+    }
+
+    /**
+     * 设置截止时间，到期时仍在等待执行的任务不再下载，以 {@link DeadlineExceededException} 结束
+     * @param timeout 从现在起的时长
+     */
+    public void setDeadline(long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        if (state != NEW) {
+            throw new IllegalStateException("task was running or done");
+        }
+        this.deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+    }
+
+    /**
+     * 设置是否先写入临时文件（目标文件名加 .part 后缀），下载完成并校验后原子重命名为目标文件，
+     * 目标文件存在即表示内容完整。断点续传时继续写入临时文件
+     */
+    public void setTempFile(boolean tempFile) {
+        if (state != NEW) {
+            throw new IllegalStateException("task was running or done");
+        }
+        this.tempFile = tempFile;
+    }
+
+    /**
+     * 设置文件同步到磁盘的方式，默认不主动同步
+     */
+    public void setDurability(Durability durability) {
+        if (durability == null) {
+            throw new IllegalArgumentException("durability must not be null");
+        }
+        if (state != NEW) {
+            throw new IllegalStateException("task was running or done");
+        }
+        this.durability = durability;
+    }
+
+    /**
+     * 设置定期同步的间隔字节数，默认 64MB，分段下载时每个分段分别计算
+     */
+    public void setSyncInterval(long bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("syncInterval must be positive");
+        }
+        if (state != NEW) {
+            throw new IllegalStateException("task was running or done");
+        }
+        this.syncInterval = bytes;
+    }
+
+    /**
+     * 设置内存映射写入的窗口大小，适用于长度已知的超大文件。文件设置长度后各分段按窗口依次映射，
+     * 读入缓冲区的数据复制到映射区域，省去逐块 write；同时映射的区域数由下载器统一限制。默认为 0，通过 FileChannel 写入
+     */
+    public void setMappedWindowSize(int bytes) {
+        if (bytes != 0 && bytes < MIN_MAPPED_WINDOW_SIZE) {
+            throw new IllegalArgumentException("mappedWindowSize must be 0 or at least " + MIN_MAPPED_WINDOW_SIZE);
+        }
+        if (state != NEW) {
+            throw new IllegalStateException("task was running or done");
+        }
+        this.mappedWindowSize = bytes;
+    }
+
     @Override
     public void onStart(DownloadContext context) {
         state = RUNNING;
@@ -98,25 +426,28 @@ public class DownloadTask implements DownloadListener {
     }
 
     @Override
-    public void onProgress(DownloadContext context, int bytes, long timeMillis) {
+    public void onProgress(DownloadContext context, long bytes, long timeMillis) {
         listener.onProgress(context, bytes, timeMillis);
     }
 
     @Override
     public void onComplete(DownloadContext context) {
         state = COMPLETED;
+        ProgressDispatcher.flush(context);
         listener.onComplete(context);
     }
 
     @Override
-    public void onCancel(DownloadContext context, int bytesTransferred) {
+    public void onCancel(DownloadContext context, long bytesTransferred) {
         state = INTERRUPTED;
+        ProgressDispatcher.flush(context);
         listener.onCancel(context, bytesTransferred);
     }
 
     @Override
     public void onError(DownloadContext context, Throwable e) throws DownloadException {
         state = EXCEPTIONAL;
+        ProgressDispatcher.flush(context);
         listener.onError(context, e);
     }
 
@@ -132,6 +463,83 @@ public class DownloadTask implements DownloadListener {
         return filename;
     }
 
+    public int getSegments() {
+        return segments;
+    }
+
+    public long getMinSegmentSize() {
+        return minSegmentSize;
+    }
+
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    public boolean isCacheable() {
+        return cacheable;
+    }
+
+    public long getRateLimit() {
+        return limiter.getRate();
+    }
+
+    public DigestAlgorithm getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    public String getExpectedDigest() {
+        return expectedDigest;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * 截止时间，毫秒时间戳，未设置时为 0
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public boolean isTempFile() {
+        return tempFile;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+
+    /**
+     * 内存映射写入的窗口大小，为 0 时不使用内存映射
+     */
+    public int getMappedWindowSize() {
+        return mappedWindowSize;
+    }
+
+    /**
+     * 是否为流式下载，响应内容交给消费者处理而不写入文件
+     */
+    public boolean isStreaming() {
+        return consumer != null;
+    }
+
+    ContentConsumer getConsumer() {
+        return consumer;
+    }
+
+    BandwidthLimiter getLimiter() {
+        return limiter;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder(64);
@@ -4,10 +4,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * 文件下载器，支持 HTTP/HTTPS 批量下载、异步下载
@@ -20,30 +30,127 @@ public class Downloader implements AutoCloseable {
 
     private static final boolean ENABLE_UNSAFE_MODE = false;
 
-    private static final int MAX_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2 + 1;
-
-    private ExecutorService executor;
+    private DownloadScheduler scheduler;
 
     private DownloadEngine downloadEngine;
 
+    private ObjectName jmxName;
+
+    private DownloadCache cache;
+
+    private DownloadCoalescer coalescer;
+
+    private ProgressDispatcher progressDispatcher;
+
+    private final Map<DownloaderConfig.EngineType, DownloadEngine> hostEngines =
+            new EnumMap<>(DownloaderConfig.EngineType.class);
+
     public Downloader() {
-        executor = initDownloadExecutor();
-        downloadEngine = new HttpClientEngine(ENABLE_UNSAFE_MODE);
+        this(new DownloaderConfig());
+    }
+
+    public Downloader(DownloaderConfig config) {
+        downloadEngine = createEngine(config.getEngineType(), config);
+        if (config.getCacheDir() != null) {
+            initCache(config);
+        }
+        downloadEngine.getBandwidthThrottle().setGlobalRate(config.getRateLimit());
+        downloadEngine.getBandwidthThrottle().setDefaultHostRate(config.getHostRateLimit());
+        if (config.getRetryPolicy() != null) {
+            if (!(downloadEngine instanceof HttpClientEngine)) {
+                logger.warn("Retry policy is not supported by {}", downloadEngine.getClass().getSimpleName());
+            }
+            downloadEngine.setRetryPolicy(config.getRetryPolicy());
+        }
+        downloadEngine.setMaxMappedRegions(config.getMaxMappedRegions());
+        if (config.getProgressIntervalMillis() > 0) {
+            progressDispatcher = new ProgressDispatcher(config.getProgressIntervalMillis());
+            downloadEngine.setProgressDispatcher(progressDispatcher);
+        }
+        if (config.isAdaptiveConnPerHost()) {
+            downloadEngine.setAdaptiveConcurrency(new AdaptiveConcurrency(config.getMinConnPerHost(),
+                    config.getAdaptiveMaxConnPerHost(), config.getMaxConnPerHost(), downloadEngine));
+        }
+        // 超过并发限制的任务在有界队列中等待，队列已满时阻塞或拒绝提交
+        scheduler = new DownloadScheduler(config, downloadEngine);
+        initHostEngines(config);
+        scheduler.registerGauges(downloadEngine.getMetrics());
+        if (config.isCoalesceDuplicates()) {
+            coalescer = new DownloadCoalescer(scheduler);
+        }
+        if (config.getJmxName() != null) {
+            registerMBean(config.getJmxName());
+        }
         logger.info("Downloader initialized");
     }
 
-    private ExecutorService initDownloadExecutor() {
-        // 最大支持 MAX_POOL_SIZE 并发下载，超过限制时将使用调用线程串行下载
-        return new ThreadPoolExecutor(0, MAX_POOL_SIZE, 1, TimeUnit.MINUTES,
-                new SynchronousQueue<Runnable>(),
-                new ThreadFactory() {
-                    @Override
-                    public Thread newThread(Runnable r) {
-                        Thread thread = new Thread(r, "download-thread");
-                        thread.setDaemon(true);
-                        return thread;
-                    }
-                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    /**
+     * 为按主机设置的引擎类型各创建一个引擎，与默认引擎共用限速、指标等状态
+     */
+    private void initHostEngines(DownloaderConfig config) {
+        for (Map.Entry<String, DownloaderConfig.EngineType> entry : config.getHostEngineTypes().entrySet()) {
+            DownloaderConfig.EngineType type = entry.getValue();
+            if (type == config.getEngineType()) {
+                continue;
+            }
+            DownloadEngine engine = hostEngines.get(type);
+            if (engine == null) {
+                engine = createEngine(type, config);
+                engine.shareWith(downloadEngine);
+                hostEngines.put(type, engine);
+                if (config.getRetryPolicy() != null && !(engine instanceof HttpClientEngine)) {
+                    logger.warn("Retry policy is not supported by {}", engine.getClass().getSimpleName());
+                }
+            }
+            scheduler.setHostEngine(entry.getKey(), engine);
+            if (downloadEngine.getAdaptiveConcurrency() != null) {
+                downloadEngine.getAdaptiveConcurrency().setHostEngine(entry.getKey(), engine);
+            }
+        }
+    }
+
+    private void initCache(DownloaderConfig config) {
+        if (!(downloadEngine instanceof HttpClientEngine)) {
+            logger.warn("Download cache is not supported by {}", downloadEngine.getClass().getSimpleName());
+            return;
+        }
+        try {
+            cache = new DownloadCache(new File(config.getCacheDir()), config.getCacheMaxSize());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error opening download cache " + config.getCacheDir(), e);
+        }
+        ((HttpClientEngine) downloadEngine).setCache(cache);
+    }
+
+    private void registerMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName("cn.logow.util.download:type=Downloader,name="
+                    + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(downloadEngine.getMetrics(), objectName);
+            jmxName = objectName;
+        } catch (JMException e) {
+            logger.warn("Error registering download metrics to JMX as '{}'", name, e);
+        }
+    }
+
+    private DownloadEngine createEngine(DownloaderConfig.EngineType type, DownloaderConfig config) {
+        // 自适应并发时连接池按最大值创建，之后随并发数调整各路由的最大连接数
+        int maxConnPerHost = config.isAdaptiveConnPerHost()
+                ? Math.max(config.getMaxConnPerHost(), config.getAdaptiveMaxConnPerHost()) : config.getMaxConnPerHost();
+        if (type == DownloaderConfig.EngineType.HTTP2) {
+            // 同一主机的下载复用一个连接，并发下载数即并发流数
+            return new Http2ClientEngine(ENABLE_UNSAFE_MODE);
+        }
+        if (type == DownloaderConfig.EngineType.HTTP_ASYNC_CLIENT) {
+            return new HttpAsyncClientEngine(ENABLE_UNSAFE_MODE, maxConnPerHost,
+                    config.getMaxConcurrency());
+        }
+        if (config.isVirtualThreads()) {
+            // 虚拟线程不再限制并发数，连接池需容纳全部并发下载
+            return new HttpClientEngine(ENABLE_UNSAFE_MODE, maxConnPerHost,
+                    config.getMaxConcurrency());
+        }
+        return new HttpClientEngine(ENABLE_UNSAFE_MODE, maxConnPerHost);
     }
 
     /**
@@ -67,27 +174,24 @@ public class Downloader implements AutoCloseable {
      * 异步下载
      * @param task 下载任务
      * @return 操作
+     * @throws RejectedExecutionException 下载器已关闭，或等待队列已满且配置为不阻塞
      */
-    public Future<FileEntity> submit(final DownloadTask task) {
-        return executor.submit(new Callable<FileEntity>() {
-            @Override
-            public FileEntity call() throws IOException {
-                return downloadEngine.execute(task);
-            }
-        });
+    public CompletableFuture<FileEntity> submit(DownloadTask task) {
+        if (coalescer != null) {
+            return coalescer.submit(task);
+        }
+        return scheduler.submit(task);
     }
 
     /**
-     * 批量下载，支持并发
+     * 批量下载，支持并发，任一任务失败时抛出异常
      * @param batch 批量下载任务
      * @return 批量下载的文件实体
      * @throws IOException 下载异常
      */
     public List<FileEntity> executeBatch(BatchDownload batch) throws IOException {
-        final List<Future<FileEntity>> futures = new ArrayList<>(batch.size());
-        for (DownloadTask task : batch) {
-            futures.add(submit(task));
-        }
+        warmUp(batch);
+        final List<CompletableFuture<FileEntity>> futures = submitAll(batch);
 
         List<FileEntity> results = new ArrayList<>(batch.size());
         try {
@@ -101,6 +205,164 @@ public class Downloader implements AutoCloseable {
         return results;
     }
 
+    /**
+     * 批量下载，支持并发，等待全部任务结束后按添加顺序返回各任务的结果，单个任务失败不影响其他任务。
+     * <p>
+     * 持久化的批量下载跳过之前已完成的任务，各任务的状态随下载进度记录在清单中
+     * @param batch 批量下载任务
+     * @return 各任务的结果
+     * @throws InterruptedException 等待时被中断，已提交的任务继续下载
+     */
+    public List<BatchResult> runBatch(BatchDownload batch) throws InterruptedException {
+        warmUp(batch);
+        List<Boolean> skipped = new ArrayList<>(batch.size());
+        for (DownloadTask task : batch) {
+            skipped.add(batch.isCompleted(task));
+        }
+        List<CompletableFuture<FileEntity>> futures = submitAll(batch);
+
+        List<BatchResult> results = new ArrayList<>(futures.size());
+        int i = 0;
+        for (DownloadTask task : batch) {
+            CompletableFuture<FileEntity> future = futures.get(i);
+            FileEntity fileEntity = null;
+            Throwable error = null;
+            try {
+                fileEntity = future.get();
+            } catch (ExecutionException e) {
+                error = e.getCause() != null ? e.getCause() : e;
+            } catch (CancellationException e) {
+                error = e;
+            }
+            results.add(new BatchResult(task, fileEntity, error, skipped.get(i++)));
+        }
+        return results;
+    }
+
+    /**
+     * 批量下载，按完成顺序将各任务的结果交给调用线程处理，处理结果的同时其他任务继续下载。
+     * <p>
+     * 提交任务的间隙处理已完成的结果，全部提交后逐个等待，全部任务结束后返回
+     * @param batch 批量下载任务
+     * @param consumer 处理单个任务的结果，抛出的异常中止等待，已提交的任务继续下载
+     * @throws InterruptedException 等待时被中断，已提交的任务继续下载
+     */
+    public void executeBatch(BatchDownload batch, Consumer<? super BatchResult> consumer) throws InterruptedException {
+        warmUp(batch);
+        BatchCompletion completion = new BatchCompletion(batch.size());
+        for (DownloadTask task : batch) {
+            submitTo(completion, batch, task);
+            BatchResult result;
+            while ((result = completion.poll()) != null) {
+                consumer.accept(result);
+            }
+        }
+
+        BatchResult result;
+        while ((result = completion.take()) != null) {
+            consumer.accept(result);
+        }
+    }
+
+    /**
+     * 提交批量下载的全部任务，通过返回的队列按完成顺序获取各任务的结果
+     * @param batch 批量下载任务
+     * @return 按完成顺序的结果队列
+     */
+    public BatchCompletion submitBatch(BatchDownload batch) {
+        warmUp(batch);
+        BatchCompletion completion = new BatchCompletion(batch.size());
+        for (DownloadTask task : batch) {
+            submitTo(completion, batch, task);
+        }
+        return completion;
+    }
+
+    private void submitTo(BatchCompletion completion, BatchDownload batch, DownloadTask task) {
+        boolean skipped = batch.isCompleted(task);
+        CompletableFuture<FileEntity> future;
+        try {
+            future = submit(batch, task);
+        } catch (RuntimeException e) {
+            // 提交被拒绝时作为该任务的失败结果
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        completion.add(task, future, skipped);
+    }
+
+    /**
+     * 批量下载设置了预热连接数时，为未完成的任务预先建立连接，结果记录在批量下载中
+     */
+    private void warmUp(BatchDownload batch) {
+        batch.setWarmUpResult(null);
+        if (batch.getWarmUpConnections() < 1) {
+            return;
+        }
+        List<URI> urls = new ArrayList<>(batch.size());
+        for (DownloadTask task : batch) {
+            if (!batch.isCompleted(task)) {
+                urls.add(task.getUrl());
+            }
+        }
+        WarmUpResult result = downloadEngine.warmUp(urls, batch.getWarmUpConnections());
+        if (result == null) {
+            logger.warn("Connection warm-up is not supported by {}", downloadEngine.getClass().getSimpleName());
+            return;
+        }
+        batch.setWarmUpResult(result);
+        logger.info("Warmed up connections for batch of {} tasks: {}", urls.size(), result);
+    }
+
+    /**
+     * 提交批量下载的全部任务
+     */
+    private List<CompletableFuture<FileEntity>> submitAll(BatchDownload batch) {
+        List<CompletableFuture<FileEntity>> futures = new ArrayList<>(batch.size());
+        for (DownloadTask task : batch) {
+            futures.add(submit(batch, task));
+        }
+        return futures;
+    }
+
+    /**
+     * 提交批量下载的任务，持久化的批量下载中已完成的任务直接返回清单中的文件
+     */
+    private CompletableFuture<FileEntity> submit(BatchDownload batch, final DownloadTask task) {
+        final BatchManifest manifest = batch.getManifest();
+        final BatchManifest.Entry entry = batch.entry(task);
+        if (entry == null) {
+            return submit(task);
+        }
+        if (entry.isCompleted()) {
+            return CompletableFuture.completedFuture(entry.toFileEntity());
+        }
+
+        try {
+            manifest.running(entry);
+        } catch (IOException e) {
+            logger.warn("Error writing batch manifest for {}", task, e);
+        }
+        // 记录状态后才返回结果，结果返回后即可关闭清单
+        return submit(task).whenComplete(new BiConsumer<FileEntity, Throwable>() {
+            @Override
+            public void accept(FileEntity fileEntity, Throwable e) {
+                try {
+                    if (fileEntity != null) {
+                        manifest.done(entry, fileEntity);
+                    } else {
+                        // 未完成的部分由断点续传日志记录，下次执行时继续
+                        DownloadJournal journal = DownloadJournal.load(task);
+                        manifest.failed(entry, journal != null ? journal.committed() : 0,
+                                e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                    }
+                } catch (IOException ex) {
+                    logger.warn("Error writing batch manifest for {}", task, ex);
+                }
+            }
+        });
+    }
+
     private void handleDownloadError(Throwable err) throws IOException {
         Throwable cause = err;
         if (err instanceof ExecutionException && err.getCause() != null) {
@@ -112,6 +374,20 @@ public class Downloader implements AutoCloseable {
         throw new IllegalStateException("Unexpected error while downloading", cause);
     }
 
+    /**
+     * 全局及按主机的带宽限制，可在运行时调整
+     */
+    public BandwidthThrottle getBandwidthThrottle() {
+        return downloadEngine.getBandwidthThrottle();
+    }
+
+    /**
+     * 下载指标
+     */
+    public DownloadMetrics getMetrics() {
+        return downloadEngine.getMetrics();
+    }
+
     public FileEntity downloadTo(String url, String saveTo) throws IOException {
         return execute(DownloadTask.create(url, saveTo));
     }
@@ -122,12 +398,37 @@ public class Downloader implements AutoCloseable {
 
     @Override
     public void close() {
-        executor.shutdownNow();
+        scheduler.close();
+        if (jmxName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.unregisterMBean(jmxName);
+            } catch (JMException e) {
+                logger.warn("Error unregistering download metrics {}", jmxName, e);
+            }
+        }
         try {
             downloadEngine.close();
         } catch (Exception e) {
             logger.error("Error closing DownloadEngine", e);
         }
+        for (DownloadEngine engine : hostEngines.values()) {
+            try {
+                engine.close();
+            } catch (Exception e) {
+                logger.error("Error closing DownloadEngine", e);
+            }
+        }
+        if (progressDispatcher != null) {
+            progressDispatcher.close();
+        }
+        if (cache != null) {
+            try {
+                cache.close();
+            } catch (IOException e) {
+                logger.warn("Error saving download cache index", e);
+            }
+        }
         logger.info("Downloader closed");
     }
 }
@@ -0,0 +1,347 @@
+package cn.logow.util.download;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 下载器配置
+ *
+ * @author logow
+ */
+public class DownloaderConfig {
+
+    /**
+     * 下载引擎类型
+     */
+    public enum EngineType {
+        /**
+         * 基于 HttpClient 的阻塞引擎，每个下载占用一个线程，支持分段下载和断点续传
+         */
+        HTTP_CLIENT,
+        /**
+         * 基于 HttpAsyncClient 的非阻塞引擎，少量 I/O 线程即可支撑大量并发的小文件下载
+         */
+        HTTP_ASYNC_CLIENT,
+        /**
+         * 基于 HttpClient 5 的 HTTP/2 非阻塞引擎，同一主机的下载作为多个流复用一个连接，适合从少数主机下载大量小文件
+         */
+        HTTP2
+    }
+
+    // 默认最大并发下载数
+    private static final int DEFAULT_MAX_CONCURRENCY = Runtime.getRuntime().availableProcessors() * 2 + 1;
+    // 默认单个主机的最大并发下载数，与 HttpClient 单路由最大连接数一致
+    private static final int DEFAULT_MAX_CONN_PER_HOST = 5;
+    // 默认下载缓存上限
+    private static final long DEFAULT_CACHE_MAX_SIZE = 1024L * 1024 * 1024;
+    // 默认 HTTP/2 主机的最大并发下载数，与常见服务器的最大并发流数一致
+    private static final int DEFAULT_MAX_STREAMS_PER_HOST = 100;
+    // 默认等待队列容量
+    private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    // 默认向监听器发送进度的间隔
+    private static final long DEFAULT_PROGRESS_INTERVAL_MILLIS = 100;
+
+    private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+    private int maxConnPerHost = DEFAULT_MAX_CONN_PER_HOST;
+    private int maxStreamsPerHost = DEFAULT_MAX_STREAMS_PER_HOST;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private boolean blockWhenQueueFull = true;
+    private EngineType engineType = EngineType.HTTP_CLIENT;
+    private boolean virtualThreads;
+    private long rateLimit;
+    private long hostRateLimit;
+    private String jmxName;
+    private String cacheDir;
+    private long cacheMaxSize = DEFAULT_CACHE_MAX_SIZE;
+    private boolean coalesceDuplicates;
+    private boolean preemptive;
+    private int minConnPerHost;
+    private int adaptiveMaxConnPerHost;
+    private RetryPolicy retryPolicy;
+    private long progressIntervalMillis = DEFAULT_PROGRESS_INTERVAL_MILLIS;
+    private int maxMappedRegions = DownloadEngine.DEFAULT_MAX_MAPPED_REGIONS;
+    private final Map<String, EngineType> hostEngineTypes = new LinkedHashMap<>();
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * 设置最大并发下载数，即下载线程数
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be positive");
+        }
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public int getMaxConnPerHost() {
+        return maxConnPerHost;
+    }
+
+    /**
+     * 设置单个主机的最大并发下载数，同时作为 HttpClient 单路由的最大连接数
+     */
+    public void setMaxConnPerHost(int maxConnPerHost) {
+        if (maxConnPerHost < 1) {
+            throw new IllegalArgumentException("maxConnPerHost must be positive");
+        }
+        this.maxConnPerHost = maxConnPerHost;
+    }
+
+    public int getMaxStreamsPerHost() {
+        return maxStreamsPerHost;
+    }
+
+    /**
+     * 设置使用 HTTP2 引擎的主机的最大并发下载数，即同一连接上的并发流数，默认 100。
+     * 超过服务器允许的并发流数时多出的请求在连接上排队
+     */
+    public void setMaxStreamsPerHost(int maxStreamsPerHost) {
+        if (maxStreamsPerHost < 1) {
+            throw new IllegalArgumentException("maxStreamsPerHost must be positive");
+        }
+        this.maxStreamsPerHost = maxStreamsPerHost;
+    }
+
+    public int getMaxMappedRegions() {
+        return maxMappedRegions;
+    }
+
+    /**
+     * 设置内存映射写入时所有下载同时映射的区域数，默认 16。
+     * 占用的地址空间不超过区域数乘以任务的映射窗口大小。每个分段在发出请求前获取一个区域，区域用完时分段等待其他分段结束，
+     * 单流下载不等待，改用 FileChannel 写入
+     * @see DownloadTask#setMappedWindowSize(int)
+     */
+    public void setMaxMappedRegions(int maxMappedRegions) {
+        if (maxMappedRegions < 1) {
+            throw new IllegalArgumentException("maxMappedRegions must be positive");
+        }
+        this.maxMappedRegions = maxMappedRegions;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * 设置等待下载的任务数上限
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be positive");
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    public boolean isBlockWhenQueueFull() {
+        return blockWhenQueueFull;
+    }
+
+    /**
+     * 设置等待队列已满时提交任务的行为，true 时阻塞直到队列有空位，false 时抛出 RejectedExecutionException
+     */
+    public void setBlockWhenQueueFull(boolean blockWhenQueueFull) {
+        this.blockWhenQueueFull = blockWhenQueueFull;
+    }
+
+    public EngineType getEngineType() {
+        return engineType;
+    }
+
+    /**
+     * 设置下载引擎类型，使用非阻塞引擎时最大并发下载数不再受线程数限制，可设置为数千
+     */
+    public void setEngineType(EngineType engineType) {
+        if (engineType == null) {
+            throw new IllegalArgumentException("engineType must not be null");
+        }
+        this.engineType = engineType;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * 设置是否在虚拟线程中执行下载，需要 JDK 21 及以上版本，低版本运行时仍使用下载线程池。
+     * <p>
+     * 启用后每个下载任务使用一个虚拟线程，并发数只受最大并发下载数和单个主机的最大并发下载数限制，可设置为数万
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public long getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * 设置所有下载共享的最大速率，运行时通过 {@link Downloader#getBandwidthThrottle()} 调整
+     * @param bytesPerSecond 每秒字节数，不大于 0 时不限速
+     */
+    public void setRateLimit(long bytesPerSecond) {
+        this.rateLimit = bytesPerSecond;
+    }
+
+    public long getHostRateLimit() {
+        return hostRateLimit;
+    }
+
+    /**
+     * 设置单个主机的最大下载速率，每个主机分别计算
+     * @param bytesPerSecond 每秒字节数，不大于 0 时不限速
+     */
+    public void setHostRateLimit(long bytesPerSecond) {
+        this.hostRateLimit = bytesPerSecond;
+    }
+
+    public String getJmxName() {
+        return jmxName;
+    }
+
+    /**
+     * 设置后通过 JMX 暴露下载指标，ObjectName 为 {@code cn.logow.util.download:type=Downloader,name=<jmxName>}
+     * @param jmxName 同一 JVM 中各下载器的名称须不同，为 null 时不注册
+     */
+    public void setJmxName(String jmxName) {
+        this.jmxName = jmxName;
+    }
+
+    public String getCacheDir() {
+        return cacheDir;
+    }
+
+    /**
+     * 设置下载缓存目录，相同 URL 再次下载且服务器返回 304 时使用缓存文件，仅 HTTP_CLIENT 引擎支持
+     * @param cacheDir 缓存目录，为 null 时不使用缓存
+     */
+    public void setCacheDir(String cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    public long getCacheMaxSize() {
+        return cacheMaxSize;
+    }
+
+    /**
+     * 设置下载缓存的总字节数上限，超过时淘汰最久未使用的文件，默认 1GB
+     */
+    public void setCacheMaxSize(long cacheMaxSize) {
+        if (cacheMaxSize < 1) {
+            throw new IllegalArgumentException("cacheMaxSize must be positive");
+        }
+        this.cacheMaxSize = cacheMaxSize;
+    }
+
+    public boolean isCoalesceDuplicates() {
+        return coalesceDuplicates;
+    }
+
+    /**
+     * 设置是否合并同时提交的相同 URL 的下载，只下载一次，完成后复制到各任务的保存位置，默认不合并
+     */
+    public void setCoalesceDuplicates(boolean coalesceDuplicates) {
+        this.coalesceDuplicates = coalesceDuplicates;
+    }
+
+    public boolean isPreemptive() {
+        return preemptive;
+    }
+
+    /**
+     * 设置并发数已满时，优先级更高的任务是否抢占正在下载的低优先级任务，默认不抢占。
+     * 只抢占支持断点续传的阻塞下载，被抢占的任务保存断点后重新排队，之后从断点继续
+     */
+    public void setPreemptive(boolean preemptive) {
+        this.preemptive = preemptive;
+    }
+
+    public boolean isAdaptiveConnPerHost() {
+        return adaptiveMaxConnPerHost > 0;
+    }
+
+    public int getMinConnPerHost() {
+        return minConnPerHost;
+    }
+
+    public int getAdaptiveMaxConnPerHost() {
+        return adaptiveMaxConnPerHost;
+    }
+
+    /**
+     * 设置按主机自适应调整并发下载数，从 maxConnPerHost 开始，服务器响应良好时逐步增加，
+     * 收到 429、503 响应或连接失败、超时时减半，默认不调整。
+     * <p>
+     * 调整后的值同时限制主机的并发下载数、分段数及连接池的单路由最大连接数
+     * @param min 最小并发数
+     * @param max 最大并发数
+     */
+    public void setAdaptiveConnPerHost(int min, int max) {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("require 1 <= min <= max");
+        }
+        this.minConnPerHost = min;
+        this.adaptiveMaxConnPerHost = max;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * 设置下载失败后的重试策略，支持断点续传时从断点继续，仅 HTTP_CLIENT 引擎支持
+     * @param retryPolicy 为 null 时不重试，只保留 HttpClient 对连接失败的重试
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public long getProgressIntervalMillis() {
+        return progressIntervalMillis;
+    }
+
+    /**
+     * 设置向监听器发送下载进度的间隔，默认 100 毫秒。
+     * <p>
+     * 进度由单独的线程发送，间隔内的进度合并为一次，监听器处理缓慢不会阻塞下载。
+     * 下载线程约每 100 毫秒更新一次进度，更短的间隔不会更频繁地收到进度
+     * @param interval 为 0 时在下载线程中直接通知监听器
+     */
+    public void setProgressInterval(long interval, TimeUnit unit) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("interval must not be negative");
+        }
+        this.progressIntervalMillis = interval > 0 ? Math.max(1, unit.toMillis(interval)) : 0;
+    }
+
+    /**
+     * 按主机设置的下载引擎类型，主机名为小写
+     */
+    public Map<String, EngineType> getHostEngineTypes() {
+        return Collections.unmodifiableMap(hostEngineTypes);
+    }
+
+    /**
+     * 设置指定主机使用的下载引擎，其他主机使用 {@link #setEngineType(EngineType)} 设置的引擎。
+     * 如对提供大量小文件的 CDN 使用 HTTP2，其他主机仍使用支持分段下载和断点续传的 HTTP_CLIENT。
+     * <p>
+     * 各引擎共用并发限制、带宽限制和下载指标
+     * @param engineType 为 null 时取消该主机的设置
+     */
+    public void setHostEngineType(String host, EngineType engineType) {
+        if (host == null || host.isEmpty()) {
+            throw new IllegalArgumentException("host must not be empty");
+        }
+        if (engineType == null) {
+            hostEngineTypes.remove(host.toLowerCase(Locale.ROOT));
+        } else {
+            hostEngineTypes.put(host.toLowerCase(Locale.ROOT), engineType);
+        }
+    }
+}
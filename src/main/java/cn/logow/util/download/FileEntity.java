@@ -4,9 +4,10 @@ import java.io.File;
 
 public class FileEntity {
 
-    private final String path;
+    private volatile String path;
     private final String filename;
-    private final long fileSize;
+    private volatile long fileSize;
+    private volatile String digest;
 
     FileEntity(String path, String filename, long fileSize) {
         this.path = path;
@@ -14,19 +15,50 @@ public class FileEntity {
         this.fileSize = fileSize;
     }
 
+    /**
+     * 文件路径，流式下载时为 null
+     */
     public String getPath() {
         return path;
     }
 
+    /**
+     * 临时文件重命名为目标文件后更新路径
+     */
+    void setPath(String path) {
+        this.path = path;
+    }
+
     public String getFilename() {
         return filename;
     }
 
+    /**
+     * 文件字节数，下载完成前可能为响应头中的长度，未知时为 -1
+     */
     public long getFileSize() {
         return fileSize;
     }
 
+    /**
+     * 下载完成后更新为实际写入的字节数，用于分块传输或解码后长度与响应头不同的情况
+     */
+    void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * 下载时计算的十六进制摘要，算法由下载任务指定，未指定时为 null
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    void setDigest(String digest) {
+        this.digest = digest;
+    }
+
     public boolean delete() {
-        return new File(path).delete();
+        return path != null && new File(path).delete();
     }
 }
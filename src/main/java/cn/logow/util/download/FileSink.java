@@ -0,0 +1,134 @@
+package cn.logow.util.download;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 下载文件的写入方式：按内容长度设置文件长度、按任务的持久化方式同步到磁盘，
+ * 以及使用临时文件时在下载完成后原子重命名为目标文件
+ *
+ * @author logow
+ */
+final class FileSink {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileSink.class);
+
+    /**
+     * 临时文件后缀
+     */
+    static final String TEMP_SUFFIX = ".part";
+
+    private FileSink() {
+    }
+
+    /**
+     * 下载时实际写入的路径，使用临时文件时为目标文件加后缀
+     */
+    static String writePath(DownloadTask task, String path) {
+        return task.isTempFile() && !path.endsWith(TEMP_SUFFIX) ? path + TEMP_SUFFIX : path;
+    }
+
+    /**
+     * 将文件长度设置为内容长度，各分段可直接按偏移量写入，完成前文件长度不再变化。
+     * 只写入最后一个字节，支持稀疏文件的文件系统上不会实际分配磁盘空间，不能保证之后写入时磁盘空间充足，
+     * 也不能避免碎片；Java 没有可移植的 fallocate，实际分配由文件系统在写入时完成。
+     * 下载中断或失败时由调用方截断到实际写入的位置
+     * @param length 内容长度，未知时不处理
+     */
+    static void preallocate(FileChannel dest, long length) throws IOException {
+        if (length > 0 && dest.size() < length) {
+            dest.write(ByteBuffer.allocate(1), length - 1);
+        }
+    }
+
+    /**
+     * 包装分段的写入，定期同步时每写入间隔字节数同步一次，有断点日志时同步后保存已同步的进度。
+     * 写入方缓存了数据（如内存映射的窗口）时先刷新再同步
+     */
+    static ContentConsumer syncing(final ContentConsumer writer, final FileChannel dest,
+                                   final DownloadContext context) {
+        DownloadTask task = context.getDownloadTask();
+        if (task.getDurability() != DownloadTask.Durability.PERIODIC) {
+            return writer;
+        }
+        final long interval = task.getSyncInterval();
+        return new ContentConsumer() {
+            private long unsynced;
+
+            @Override
+            public void consume(ByteBuffer chunk) throws IOException {
+                int n = chunk.remaining();
+                writer.consume(chunk);
+                unsynced += n;
+                if (unsynced >= interval) {
+                    unsynced = 0;
+                    if (writer instanceof Flushable) {
+                        ((Flushable) writer).flush();
+                    }
+                    DownloadJournal journal = context.getJournal();
+                    if (journal != null) {
+                        journal.sync(dest);
+                    } else {
+                        dest.force(false);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * 下载完成，按持久化方式同步文件，使用临时文件时重命名为目标文件并更新文件路径
+     */
+    static void commit(DownloadTask task, FileEntity fileEntity) throws IOException {
+        String path = fileEntity.getPath();
+        if (path == null) {
+            return;
+        }
+        boolean sync = task.getDurability() != DownloadTask.Durability.NONE;
+        Path source = Paths.get(path);
+        if (sync) {
+            try (FileChannel channel = FileChannel.open(source, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+        }
+        if (!task.isTempFile() || !path.endsWith(TEMP_SUFFIX)) {
+            return;
+        }
+
+        Path target = Paths.get(path.substring(0, path.length() - TEMP_SUFFIX.length()));
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        fileEntity.setPath(target.toString());
+        if (sync) {
+            syncDirectory(target.toAbsolutePath().getParent());
+        }
+    }
+
+    /**
+     * 同步目录使重命名持久化，部分平台不支持打开目录，忽略
+     */
+    private static void syncDirectory(Path dir) {
+        if (dir == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            logger.debug("Could not sync directory '{}': {}", dir, e.toString());
+        }
+    }
+}
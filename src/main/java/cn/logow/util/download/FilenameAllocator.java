@@ -0,0 +1,146 @@
+package cn.logow.util.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 按保存目录分配不重复的文件名，同名时依次尝试 name_2、name_3 …
+ * <p>
+ * 每个目录首次分配时扫描一次目录，之后在内存中记录已占用的文件名及每个文件名下一个待尝试的序号，
+ * 大量下载解析为同一文件名时无需逐个检查文件是否存在。分配时以 CREATE_NEW 创建空文件占用文件名，
+ * 并发的下载及其他进程都不会得到相同的文件名。
+ * <p>
+ * 文件名与加上临时文件后缀的文件名视为同一个，使用临时文件的下载占用的是临时文件名。
+ * <p>
+ * 最多记录最近使用的 {@value #MAX_DIRECTORIES} 个目录，超出时淘汰最久未使用的目录，再次使用时重新扫描。
+ * 被淘汰的目录即使仍有下载在分配，也只是不再共用序号，创建文件时的 CREATE_NEW 仍保证文件名不重复
+ *
+ * @author logow
+ */
+final class FilenameAllocator {
+
+    static final int MAX_DIRECTORIES = 256;
+
+    // 按访问顺序排列，访问时须同步
+    private static final Map<String, FilenameAllocator> DIRECTORIES =
+            new LinkedHashMap<String, FilenameAllocator>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, FilenameAllocator> eldest) {
+                    return size() > MAX_DIRECTORIES;
+                }
+            };
+
+    private final File dir;
+    // 首次分配时扫描目录
+    private Set<String> taken;
+    // 文件名到下一个待尝试的序号
+    private final Map<String, Integer> counters = new HashMap<>();
+
+    private FilenameAllocator(File dir) {
+        this.dir = dir;
+    }
+
+    static int directoryCount() {
+        synchronized (DIRECTORIES) {
+            return DIRECTORIES.size();
+        }
+    }
+
+    static FilenameAllocator forDirectory(String dirPath) {
+        File dir = new File(dirPath).getAbsoluteFile();
+        synchronized (DIRECTORIES) {
+            FilenameAllocator allocator = DIRECTORIES.get(dir.getPath());
+            if (allocator == null) {
+                allocator = new FilenameAllocator(dir);
+                DIRECTORIES.put(dir.getPath(), allocator);
+            }
+            return allocator;
+        }
+    }
+
+    /**
+     * 分配不重复的文件名并创建空文件占用
+     * @param suffix 实际创建的文件的后缀，如临时文件后缀，不需要时为空字符串
+     * @return 不含后缀的文件名
+     */
+    synchronized String allocate(String filename, String suffix) throws IOException {
+        if (taken == null || (isTaken(filename) && !exists(filename))) {
+            // 首次分配，或目录中的文件已被删除，重新扫描
+            scan();
+        }
+
+        String baseName = Utils.getBaseName(filename);
+        String extension = Utils.getExtension(filename);
+        String fn = filename;
+        Integer next = null;
+        while (true) {
+            if (!isTaken(fn)) {
+                try {
+                    Files.createFile(new File(dir, fn + suffix).toPath());
+                    break;
+                } catch (FileAlreadyExistsException e) {
+                    // 其他进程创建了同名文件
+                    taken.add(fn + suffix);
+                } catch (NoSuchFileException e) {
+                    // 目录已被删除，重新创建后重试
+                    scan();
+                    continue;
+                }
+            }
+            if (next == null) {
+                next = counters.get(filename);
+                if (next == null) {
+                    next = 2;
+                }
+            }
+            fn = baseName + "_" + next + (extension != null ? "." + extension : "");
+            next++;
+        }
+        if (next != null) {
+            counters.put(filename, next);
+        }
+        taken.add(fn + suffix);
+        return fn;
+    }
+
+    /**
+     * 已删除分配的文件，之后可重新分配该文件名
+     */
+    synchronized void release(String filename) {
+        if (taken != null) {
+            taken.remove(filename);
+            taken.remove(filename + FileSink.TEMP_SUFFIX);
+        }
+    }
+
+    private boolean isTaken(String fn) {
+        return taken.contains(fn) || taken.contains(fn + FileSink.TEMP_SUFFIX);
+    }
+
+    private boolean exists(String fn) {
+        return new File(dir, fn).exists() || new File(dir, fn + FileSink.TEMP_SUFFIX).exists();
+    }
+
+    private void scan() throws IOException {
+        Utils.mkdirs(dir);
+        String[] names = dir.list();
+        if (names == null) {
+            throw new IOException("Could not list directory: " + dir);
+        }
+        taken = new HashSet<>(names.length * 2);
+        for (String name : names) {
+            taken.add(name);
+        }
+        counters.clear();
+    }
+}
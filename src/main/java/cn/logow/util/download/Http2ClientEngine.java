@@ -0,0 +1,601 @@
+package cn.logow.util.download;
+
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.ssl.DefaultClientTlsStrategy;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.nio.AsyncResponseConsumer;
+import org.apache.hc.core5.http.nio.CapacityChannel;
+import org.apache.hc.core5.http.nio.support.AsyncRequestBuilder;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * 基于 Apache HttpClient 5 实现的 HTTP/2 非阻塞下载引擎。
+ * <p>
+ * 同一主机的下载作为多个流复用一个连接，没有 HTTP/1.1 的队头阻塞和逐个连接的握手开销，
+ * 适合从少数主机下载大量小文件。每个流的接收窗口默认 1MB，大部分小文件无需等待窗口更新即可一次发送完毕，
+ * 连接的接收窗口由 HttpCore 保持在最大值。限速时暂缓为流扩大窗口，只暂停该流，不影响同一连接上的其他流。
+ * <p>
+ * HTTPS 通过 ALPN 协商 HTTP/2，需要支持 ALPN 的 JDK（8u252 及以上）；HTTP 使用明文 HTTP/2（h2c），服务器须支持。
+ * 分配文件名、打开文件及完成时的校验和提交在文件线程池中执行，不阻塞 I/O 线程。
+ * 暂不支持分段下载、断点续传和解码压缩内容，监听器和流式下载的内容消费者在 I/O 线程中回调
+ *
+ * @author logow
+ */
+public class Http2ClientEngine extends AbstractHttpEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(Http2ClientEngine.class);
+    // 默认 I/O 线程数
+    private static final int DEFAULT_IO_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+    // 默认每个流的接收窗口
+    static final int DEFAULT_STREAM_WINDOW_SIZE = 1024 * 1024;
+    // 接收的最大帧长度，较大的帧减少帧头和 I/O 次数
+    private static final int MAX_FRAME_SIZE = 64 * 1024;
+
+    private final CloseableHttpAsyncClient httpClient;
+    // 已写入的字节数达到窗口的一半时归还给接收窗口
+    private final int windowUpdateThreshold;
+    // 限速时暂缓扩大流的接收窗口，到期后恢复
+    private final ScheduledExecutorService throttleTimer;
+    private final ExecutorService fileExecutor = newFileExecutor("download-h2-file");
+
+    Http2ClientEngine(boolean unsafeMode) {
+        this(unsafeMode, DEFAULT_STREAM_WINDOW_SIZE);
+    }
+
+    /**
+     * @param streamWindowSize 每个流的接收窗口，即不等待窗口更新时服务器可连续发送的字节数
+     */
+    @SuppressWarnings("deprecation")
+    Http2ClientEngine(boolean unsafeMode, int streamWindowSize) {
+        if (streamWindowSize < 65535) {
+            throw new IllegalArgumentException("streamWindowSize must not be less than 65535");
+        }
+        windowUpdateThreshold = streamWindowSize / 2;
+        H2Config h2Config = H2Config.custom()
+                .setPushEnabled(false)
+                .setInitialWindowSize(streamWindowSize)
+                .setMaxFrameSize(MAX_FRAME_SIZE)
+                .build();
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(DEFAULT_IO_THREAD_COUNT)
+                .setSoTimeout(Timeout.ofMilliseconds(DEFAULT_READ_TIMEOUT))
+                .build();
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(Timeout.ofMilliseconds(DEFAULT_CONN_TIMEOUT))
+                .setResponseTimeout(Timeout.ofMilliseconds(DEFAULT_READ_TIMEOUT))
+                .build();
+
+        httpClient = HttpAsyncClients.customHttp2()
+                .setH2Config(h2Config)
+                .setIOReactorConfig(ioReactorConfig)
+                .setDefaultRequestConfig(requestConfig)
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(Timeout.ofMilliseconds(DEFAULT_CONN_TIMEOUT))
+                        .setSocketTimeout(Timeout.ofMilliseconds(DEFAULT_READ_TIMEOUT))
+                        .build())
+                .setTlsStrategy(unsafeMode
+                        ? new DefaultClientTlsStrategy(unsafeSSLContext(), new UnsafeHttps())
+                        : DefaultClientTlsStrategy.getDefault())
+                .setUserAgent(DEFAULT_USER_AGENT)
+                .disableAutomaticRetries()
+                .evictIdleConnections(TimeValue.ofMinutes(1))
+                .build();
+        httpClient.start();
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "download-h2-throttle");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        throttleTimer = timer;
+    }
+
+    private Future<FileEntity> send(DownloadTask task, StreamConsumer consumer,
+                                    FutureCallback<FileEntity> callback) {
+        return httpClient.execute(AsyncRequestBuilder.get(task.getUrl())
+                        .setHeader(HttpHeaders.ACCEPT_ENCODING, acceptEncoding(task))
+                        .build(),
+                consumer, callback);
+    }
+
+    @Override
+    protected FileEntity doExecute(DownloadTask task, DownloadContext context) throws IOException {
+        Future<FileEntity> future = send(task, new StreamConsumer(context), null);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            task.onCancel(context, context.getBytesTransferred());
+            return context.getFileEntity();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * 非阻塞下载，不占用线程池中的线程
+     */
+    @Override
+    public CompletableFuture<FileEntity> executeAsync(final DownloadTask task, Executor executor) {
+        final CompletableFuture<FileEntity> result = new CompletableFuture<>();
+        final DownloadContext context;
+        try {
+            context = start(task);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        final Future<FileEntity> future = send(task, new StreamConsumer(context),
+                new FutureCallback<FileEntity>() {
+                    @Override
+                    public void completed(final FileEntity completed) {
+                        runFileTask(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    FileEntity fileEntity;
+                                    try {
+                                        fileEntity = commitFile(context, verifyDigest(context, completed));
+                                    } catch (IOException e) {
+                                        fail(context, e);
+                                        fileEntity = null;
+                                    }
+                                    result.complete(finish(context, fileEntity));
+                                } catch (RuntimeException e) {
+                                    result.completeExceptionally(e);
+                                } finally {
+                                    releaseConcurrency(context);
+                                }
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        try {
+                            fail(context, e instanceof IOException ? (IOException) e : new IOException(e));
+                            result.complete(finish(context, null));
+                        } catch (RuntimeException ex) {
+                            result.completeExceptionally(ex);
+                        } finally {
+                            releaseConcurrency(context);
+                        }
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        getMetrics().onCancel(context);
+                        releaseConcurrency(context);
+                        task.onCancel(context, context.getBytesTransferred());
+                        result.cancel(false);
+                    }
+                });
+        result.whenComplete(new BiConsumer<FileEntity, Throwable>() {
+            @Override
+            public void accept(FileEntity fileEntity, Throwable e) {
+                if (result.isCancelled()) {
+                    future.cancel(true);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 在文件线程池中执行，引擎已关闭时在当前线程执行
+     */
+    private void runFileTask(Runnable task) {
+        try {
+            fileExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    @Override
+    boolean isMultiplexed() {
+        return true;
+    }
+
+    /**
+     * 在 I/O 线程中解码需要阻塞读取，暂不支持
+     */
+    @Override
+    protected boolean supportsDecoding() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        throttleTimer.shutdownNow();
+        fileExecutor.shutdown();
+        httpClient.close(CloseMode.GRACEFUL);
+    }
+
+    /**
+     * 在 I/O 线程中将一个流的响应内容写入文件或交给内容消费者，按已写入的字节数为流扩大接收窗口。
+     * 收到响应头后在文件线程池中分配文件名并打开文件，期间收到的内容暂存在内存中，打开后由文件线程按序写入；
+     * 暂存的内容写入前不归还接收窗口，占用的内存不超过流的接收窗口
+     */
+    private class StreamConsumer implements AsyncResponseConsumer<FileEntity> {
+
+        private final DownloadContext context;
+        private FutureCallback<FileEntity> resultCallback;
+        private String filename;
+        private long contentLength;
+        private FileEntity fileEntity;
+        private FileChannel dest;
+        private ContentConsumer consumer;
+        private ContentDigest digest;
+        private long position;
+        private int count;
+        private long lastTickTime;
+        // 以下五项在锁内访问：文件已打开且暂存的内容已写入、打开前收到的内容、内容已接收完毕、打开或写入文件失败、资源已释放
+        private boolean ready;
+        private List<ByteBuffer> pending = new ArrayList<>();
+        private boolean ended;
+        private IOException fileError;
+        private boolean released;
+        // 已写入、尚未归还给接收窗口的字节数，I/O 线程、文件线程与限速定时器共用
+        private final AtomicInteger consumed = new AtomicInteger();
+        private volatile long throttledUntilNanos;
+        private volatile boolean resumeScheduled;
+        private volatile CapacityChannel capacityChannel;
+
+        StreamConsumer(DownloadContext context) {
+            this.context = context;
+        }
+
+        @Override
+        public void consumeResponse(HttpResponse resp, EntityDetails entityDetails, HttpContext httpContext,
+                                    FutureCallback<FileEntity> resultCallback) throws IOException {
+            if (resp.getCode() != HttpStatus.SC_OK) {
+                recordRetryAfter(context, headerValue(resp, HttpHeaders.RETRY_AFTER));
+                throw new HttpStatusException(resp.getCode(), resp.getReasonPhrase());
+            }
+            if (entityDetails == null) {
+                throw new IOException("HttpResponse contains no content");
+            }
+            this.resultCallback = resultCallback;
+            // HTTP/2 的实体信息不含长度，从响应头读取
+            contentLength = -1;
+            String length = headerValue(resp, HttpHeaders.CONTENT_LENGTH);
+            if (length != null) {
+                try {
+                    contentLength = Long.parseLong(length.trim());
+                } catch (NumberFormatException e) {
+                    logger.debug("Invalid Content-Length '{}' of {}", length, context.getDownloadTask());
+                }
+            }
+            getMetrics().onResponse(context);
+            context.setValidators(headerValue(resp, HttpHeaders.ETAG), headerValue(resp, HttpHeaders.LAST_MODIFIED));
+            filename = resolveFilename(context.getDownloadTask().getUrl(), headerValue(resp, CONTENT_DISPOSITION));
+            lastTickTime = System.currentTimeMillis();
+            // 流式下载不创建文件，直接在 I/O 线程中准备
+            if (context.getDownloadTask().isStreaming()) {
+                fileEntity = initFileEntity(context, filename, contentLength, null);
+                consumer = streamConsumer(context);
+                ready = true;
+                return;
+            }
+            runFileTask(new Runnable() {
+                @Override
+                public void run() {
+                    openFile();
+                }
+            });
+        }
+
+        /**
+         * 分配文件名、打开并预分配文件，再写入打开前暂存的内容，在文件线程池中执行
+         */
+        private void openFile() {
+            try {
+                FileEntity entity = initFileEntity(context, filename, contentLength, null);
+                FileChannel channel = FileChannel.open(Paths.get(entity.getPath()), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                try {
+                    FileSink.preallocate(channel, entity.getFileSize());
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+                ContentDigest contentDigest = ContentDigest.create(context.getDownloadTask(), entity.getPath());
+                context.setDigest(contentDigest);
+                synchronized (this) {
+                    fileEntity = entity;
+                    digest = contentDigest;
+                    // 已接收完毕时 I/O 线程不再使用文件，由文件线程写完后关闭
+                    if (released && !ended) {
+                        channel.close();
+                        return;
+                    }
+                    dest = channel;
+                }
+                drain();
+            } catch (IOException e) {
+                abort(e);
+            } catch (RuntimeException e) {
+                abort(new IOException(e));
+            }
+        }
+
+        /**
+         * 按序写入暂存的内容，写完后由 I/O 线程直接写入；内容已接收完毕时完成下载
+         */
+        private void drain() throws IOException {
+            boolean complete;
+            while (true) {
+                List<ByteBuffer> chunks;
+                synchronized (this) {
+                    if (pending.isEmpty()) {
+                        pending = null;
+                        ready = true;
+                        complete = ended;
+                        break;
+                    }
+                    chunks = pending;
+                    pending = new ArrayList<>();
+                }
+                int n = 0;
+                for (ByteBuffer chunk : chunks) {
+                    n += chunk.remaining();
+                    write(chunk);
+                }
+                written(n);
+            }
+            if (complete) {
+                closeFile();
+                complete();
+            }
+        }
+
+        /**
+         * 打开或写入文件失败。内容已接收完毕时直接结束下载，否则归还暂存内容占用的窗口，
+         * 由 I/O 线程收到后续内容时抛出异常结束该流
+         */
+        private void abort(IOException e) {
+            int discarded = 0;
+            boolean complete;
+            synchronized (this) {
+                fileError = e;
+                if (pending != null) {
+                    for (ByteBuffer chunk : pending) {
+                        discarded += chunk.remaining();
+                    }
+                    pending = null;
+                }
+                complete = ended;
+            }
+            if (complete) {
+                closeFile();
+                FutureCallback<FileEntity> callback = resultCallback;
+                if (callback != null) {
+                    callback.failed(e);
+                }
+                return;
+            }
+            try {
+                written(discarded);
+            } catch (IOException ex) {
+                logger.debug("Error updating stream window of {}: {}", context.getDownloadTask(), ex.toString());
+            }
+        }
+
+        @Override
+        public void informationResponse(HttpResponse response, HttpContext httpContext) {
+        }
+
+        @Override
+        public void consume(ByteBuffer src) throws IOException {
+            int n = src.remaining();
+            received(n);
+            synchronized (this) {
+                if (fileError != null) {
+                    throw fileError;
+                }
+                if (!ready) {
+                    // 文件尚未打开，复制后暂存
+                    ByteBuffer copy = ByteBuffer.allocate(n);
+                    copy.put(src).flip();
+                    pending.add(copy);
+                    return;
+                }
+            }
+            if (consumer != null) {
+                consumer.consume(src);
+            } else {
+                write(src);
+            }
+            written(n);
+        }
+
+        private void write(ByteBuffer src) throws IOException {
+            if (digest != null) {
+                digest.update(src);
+            }
+            while (src.hasRemaining()) {
+                position += dest.write(src, position);
+            }
+        }
+
+        /**
+         * 收到内容时计入限速和下载进度
+         */
+        private void received(int n) throws IOException {
+            count += n;
+            long waitNanos = context.reserveBandwidth(n);
+            if (waitNanos > 0) {
+                throttledUntilNanos = System.nanoTime() + waitNanos;
+            }
+            long currentTime = System.currentTimeMillis();
+            if (currentTime - lastTickTime >= DEFAULT_PROGRESS_TICK_MILLIS) {
+                tick(context, count, currentTime - lastTickTime);
+                lastTickTime = currentTime;
+                count = 0;
+            }
+        }
+
+        /**
+         * 内容已写入，累计达到半个窗口时归还
+         */
+        private void written(int n) throws IOException {
+            int pending = consumed.addAndGet(n);
+            if (capacityChannel != null && pending >= windowUpdateThreshold) {
+                releaseCapacity();
+            }
+        }
+
+        /**
+         * 接收窗口低于一半时由 HttpCore 在写入当前帧之前调用。此时只保存窗口通道，
+         * 之后每写入半个窗口归还一次，不会遗漏最后一帧的字节
+         */
+        @Override
+        public void updateCapacity(CapacityChannel capacityChannel) throws IOException {
+            this.capacityChannel = capacityChannel;
+            releaseCapacity();
+        }
+
+        /**
+         * 归还已写入的字节数；超出限速时到期后再归还，期间服务器暂停发送该流
+         */
+        private void releaseCapacity() throws IOException {
+            long waitNanos = throttledUntilNanos - System.nanoTime();
+            if (waitNanos <= 0) {
+                int increment = consumed.getAndSet(0);
+                if (increment > 0) {
+                    capacityChannel.update(increment);
+                }
+                return;
+            }
+            if (resumeScheduled) {
+                return;
+            }
+            resumeScheduled = true;
+            throttleTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    resumeScheduled = false;
+                    try {
+                        releaseCapacity();
+                    } catch (IOException e) {
+                        logger.debug("Error updating stream window of {}: {}", context.getDownloadTask(), e.toString());
+                    }
+                }
+            }, waitNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void streamEnd(List<? extends Header> trailers) throws IOException {
+            tick(context, count, System.currentTimeMillis() - lastTickTime);
+            count = 0;
+            synchronized (this) {
+                if (fileError != null) {
+                    throw fileError;
+                }
+                if (!ready) {
+                    // 由文件线程写完暂存的内容后完成
+                    ended = true;
+                    return;
+                }
+            }
+            // 与文件线程一致，提交前先关闭文件
+            closeFile();
+            complete();
+        }
+
+        private void complete() {
+            // 分块传输时长度未知
+            if (fileEntity.getFileSize() < 0) {
+                fileEntity.setFileSize(consumer != null ? context.getBytesTransferred() : position);
+            }
+            FutureCallback<FileEntity> callback = resultCallback;
+            if (callback != null) {
+                callback.completed(fileEntity);
+            }
+        }
+
+        @Override
+        public void failed(Exception cause) {
+            FutureCallback<FileEntity> callback = resultCallback;
+            if (callback != null) {
+                callback.failed(cause);
+            }
+        }
+
+        @Override
+        public void releaseResources() {
+            synchronized (this) {
+                released = true;
+                // 文件线程尚在写入暂存的内容，由其关闭文件
+                if (ended) {
+                    return;
+                }
+            }
+            closeFile();
+        }
+
+        private void closeFile() {
+            FileChannel channel;
+            synchronized (this) {
+                channel = dest;
+                dest = null;
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logger.warn("Error closing file {}", fileEntity.getPath(), e);
+                }
+            }
+        }
+    }
+
+    private static String headerValue(HttpResponse resp, String name) {
+        Header header = resp.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+}
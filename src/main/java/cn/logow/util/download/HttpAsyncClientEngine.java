@@ -0,0 +1,449 @@
+package cn.logow.util.download;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.FileContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * 基于 Apache HttpAsyncClient 实现的非阻塞下载引擎。
+ * <p>
+ * 由少量 I/O 线程驱动所有连接，响应内容在 I/O 线程中直接写入 FileChannel，
+ * 分配文件名、打开文件及完成时的同步和重命名在单独的线程池中执行，期间暂停读取该连接。
+ * 适合大量并发的小文件下载。暂不支持分段下载和断点续传，监听器和流式下载的内容消费者在 I/O 线程中回调，不应执行耗时操作
+ *
+ * @author logow
+ */
+public class HttpAsyncClientEngine extends AbstractHttpEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpAsyncClientEngine.class);
+    // 默认 I/O 线程数
+    private static final int DEFAULT_IO_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private final CloseableHttpAsyncClient httpClient;
+    // 限速时暂停读取连接，到期后恢复
+    private final ScheduledExecutorService throttleTimer;
+    // 执行可能阻塞的文件操作
+    private final ExecutorService fileExecutor = newFileExecutor("download-async-file");
+
+    HttpAsyncClientEngine(boolean unsafeMode, int maxConnPerRoute, int maxConnTotal) {
+        RequestConfig requestConfig = RequestConfig.copy(RequestConfig.DEFAULT)
+                .setConnectTimeout(DEFAULT_CONN_TIMEOUT)
+                .setSocketTimeout(DEFAULT_READ_TIMEOUT)
+                .build();
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(DEFAULT_IO_THREAD_COUNT)
+                .setConnectTimeout(DEFAULT_CONN_TIMEOUT)
+                .setSoTimeout(DEFAULT_READ_TIMEOUT)
+                .build();
+
+        SSLIOSessionStrategy sslStrategy = unsafeMode
+                ? new SSLIOSessionStrategy(unsafeSSLContext(), SSL_PROTOCOLS, null, new UnsafeHttps())
+                : SSLIOSessionStrategy.getDefaultStrategy();
+        // 自行创建连接池，以便统计连接数
+        PoolingNHttpClientConnectionManager connManager;
+        try {
+            connManager = new PoolingNHttpClientConnectionManager(
+                    new DefaultConnectingIOReactor(ioReactorConfig),
+                    RegistryBuilder.<SchemeIOSessionStrategy>create()
+                            .register("http", NoopIOSessionStrategy.INSTANCE)
+                            .register("https", sslStrategy)
+                            .build());
+        } catch (IOReactorException e) {
+            throw new IllegalStateException("Unable to create I/O reactor", e);
+        }
+        connManager.setDefaultMaxPerRoute(maxConnPerRoute);
+        connManager.setMaxTotal(Math.max(maxConnTotal, maxConnPerRoute));
+        registerPoolGauges(connManager);
+
+        HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+                .setUserAgent(DEFAULT_USER_AGENT)
+                .setConnectionManager(connManager)
+                .setDefaultRequestConfig(requestConfig);
+
+        httpClient = builder.build();
+        httpClient.start();
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "download-throttle");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        throttleTimer = timer;
+    }
+
+    @Override
+    protected FileEntity doExecute(DownloadTask task, DownloadContext context) throws IOException {
+        FileConsumer consumer = new FileConsumer(context);
+        Future<FileEntity> future = httpClient.execute(
+                HttpAsyncMethods.create(newRequest(task)), consumer, null);
+        try {
+            future.get();
+            return consumer.complete();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            task.onCancel(context, context.getBytesTransferred());
+            return context.getFileEntity();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * 非阻塞下载，不占用线程池中的线程，完成时在文件线程池中校验、同步和重命名
+     */
+    @Override
+    public CompletableFuture<FileEntity> executeAsync(final DownloadTask task, Executor executor) {
+        final CompletableFuture<FileEntity> result = new CompletableFuture<>();
+        final DownloadContext context;
+        try {
+            context = start(task);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        final FileConsumer consumer = new FileConsumer(context);
+        final Future<FileEntity> future = httpClient.execute(
+                HttpAsyncMethods.create(newRequest(task)), consumer,
+                new FutureCallback<FileEntity>() {
+                    @Override
+                    public void completed(FileEntity ignored) {
+                        runFileTask(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    FileEntity fileEntity;
+                                    try {
+                                        fileEntity = commitFile(context, verifyDigest(context, consumer.complete()));
+                                    } catch (IOException e) {
+                                        fail(context, e);
+                                        fileEntity = null;
+                                    }
+                                    result.complete(finish(context, fileEntity));
+                                } catch (RuntimeException e) {
+                                    result.completeExceptionally(e);
+                                } finally {
+                                    releaseConcurrency(context);
+                                }
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        try {
+                            fail(context, e instanceof IOException ? (IOException) e : new IOException(e));
+                            result.complete(finish(context, null));
+                        } catch (RuntimeException ex) {
+                            result.completeExceptionally(ex);
+                        } finally {
+                            releaseConcurrency(context);
+                        }
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        getMetrics().onCancel(context);
+                        releaseConcurrency(context);
+                        task.onCancel(context, context.getBytesTransferred());
+                        result.cancel(false);
+                    }
+                });
+        result.whenComplete(new BiConsumer<FileEntity, Throwable>() {
+            @Override
+            public void accept(FileEntity fileEntity, Throwable e) {
+                if (result.isCancelled()) {
+                    future.cancel(true);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 在文件线程池中执行，引擎已关闭时在当前线程执行
+     */
+    private void runFileTask(Runnable task) {
+        try {
+            fileExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * 在 I/O 线程中解码需要阻塞读取，暂不支持
+     */
+    @Override
+    protected boolean supportsDecoding() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        throttleTimer.shutdownNow();
+        fileExecutor.shutdown();
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            logger.error("Closing HttpAsyncClient threw exception: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 在 I/O 线程中将响应内容写入文件或交给内容消费者，写入文件时若连接未加密且非分块传输，由 FileChannel 直接从连接读取。
+     * 收到第一块内容时暂停读取连接，在文件线程池中分配文件名并打开文件，完成后恢复读取
+     */
+    private class FileConsumer extends AbstractAsyncResponseConsumer<FileEntity> {
+
+        private final DownloadContext context;
+        private HttpResponse response;
+        private long contentLength;
+        private boolean entityEnclosed;
+        private boolean opening;
+        // 文件已打开或打开失败，之后 I/O 线程才读取下列字段
+        private volatile boolean opened;
+        private volatile IOException openError;
+        private FileEntity fileEntity;
+        private FileChannel dest;
+        private ContentConsumer consumer;
+        private ContentDigest digest;
+        // 已释放资源，此后打开的文件立即关闭，由打开文件的线程和 I/O 线程共用
+        private boolean released;
+        private ByteBuffer buf;
+        private long position;
+        private int count;
+        private long lastTickTime;
+
+        FileConsumer(DownloadContext context) {
+            this.context = context;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse resp) throws IOException {
+            StatusLine statusLine = resp.getStatusLine();
+            if (statusLine.getStatusCode() != HttpStatus.SC_OK) {
+                recordRetryAfter(context, resp);
+                throw new HttpResponseException(statusLine.getStatusCode(), statusLine.getReasonPhrase());
+            }
+            this.response = resp;
+        }
+
+        @Override
+        protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+            entityEnclosed = true;
+            contentLength = entity.getContentLength();
+            lastTickTime = System.currentTimeMillis();
+            // 流式下载不创建文件，直接在 I/O 线程中准备
+            if (context.getDownloadTask().isStreaming()) {
+                fileEntity = initFileEntity(context, response, contentLength, null);
+                consumer = streamConsumer(context);
+                opened = true;
+            }
+        }
+
+        /**
+         * 分配文件名、打开并预分配文件，在文件线程池中执行
+         */
+        private void openFile() throws IOException {
+            FileEntity entity = initFileEntity(context, response, contentLength, null);
+            FileChannel channel = FileChannel.open(Paths.get(entity.getPath()), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                FileSink.preallocate(channel, entity.getFileSize());
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            ContentDigest contentDigest = ContentDigest.create(context.getDownloadTask(), entity.getPath());
+            context.setDigest(contentDigest);
+            synchronized (this) {
+                fileEntity = entity;
+                digest = contentDigest;
+                if (released) {
+                    channel.close();
+                } else {
+                    dest = channel;
+                }
+            }
+        }
+
+        @Override
+        protected void onContentReceived(ContentDecoder decoder, final IOControl ioctrl) throws IOException {
+            if (!opened) {
+                if (!opening) {
+                    opening = true;
+                    ioctrl.suspendInput();
+                    runFileTask(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                openFile();
+                            } catch (IOException e) {
+                                openError = e;
+                            } catch (RuntimeException e) {
+                                openError = new IOException(e);
+                            }
+                            opened = true;
+                            ioctrl.requestInput();
+                        }
+                    });
+                }
+                return;
+            }
+            if (openError != null) {
+                throw openError;
+            }
+
+            long n;
+            // 计算摘要时须经过缓冲区，不能由 FileChannel 直接读取
+            if (dest != null && digest == null && decoder instanceof FileContentDecoder) {
+                n = ((FileContentDecoder) decoder).transfer(dest, position, context.limitChunk(Integer.MAX_VALUE));
+                position += Math.max(n, 0);
+            } else {
+                if (buf == null) {
+                    buf = BufferPool.acquire(BufferPool.sizeFor(fileEntity.getFileSize()));
+                }
+                buf.clear().limit(context.limitChunk(buf.capacity()));
+                n = decoder.read(buf);
+                buf.flip();
+                if (consumer != null) {
+                    if (buf.hasRemaining()) {
+                        consumer.consume(buf);
+                    }
+                } else {
+                    if (digest != null) {
+                        digest.update(buf);
+                    }
+                    while (buf.hasRemaining()) {
+                        position += dest.write(buf, position);
+                    }
+                }
+            }
+            if (n > 0) {
+                count += n;
+                throttle(ioctrl, decoder, (int) n);
+            }
+
+            long currentTime = System.currentTimeMillis();
+            if (decoder.isCompleted() || currentTime - lastTickTime >= DEFAULT_PROGRESS_TICK_MILLIS) {
+                tick(context, count, currentTime - lastTickTime);
+                lastTickTime = currentTime;
+                count = 0;
+            }
+        }
+
+        /**
+         * 超出限速时暂停读取连接，不阻塞 I/O 线程
+         */
+        private void throttle(final IOControl ioctrl, ContentDecoder decoder, int bytes) {
+            long waitNanos = context.reserveBandwidth(bytes);
+            // 响应已读取完毕时连接将归还连接池，不再暂停
+            if (waitNanos > 0 && !decoder.isCompleted()) {
+                ioctrl.suspendInput();
+                throttleTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        ioctrl.requestInput();
+                    }
+                }, waitNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /**
+         * 文件在 I/O 线程之外创建，结果由 {@link #complete()} 取得
+         */
+        @Override
+        protected FileEntity buildResult(HttpContext httpContext) {
+            return null;
+        }
+
+        /**
+         * 响应读取完毕后在 I/O 线程之外取得下载的文件，响应内容为空时此前未打开文件，在此创建
+         */
+        FileEntity complete() throws IOException {
+            if (!entityEnclosed) {
+                throw new ClientProtocolException("HttpResponse contains no content");
+            }
+            if (!opened) {
+                openFile();
+                opened = true;
+            }
+            if (openError != null) {
+                throw openError;
+            }
+            // 分块传输时长度未知
+            if (fileEntity.getFileSize() < 0) {
+                fileEntity.setFileSize(consumer != null ? context.getBytesTransferred() : position);
+            }
+            return fileEntity;
+        }
+
+        @Override
+        protected void releaseResources() {
+            if (buf != null) {
+                BufferPool.release(buf);
+                buf = null;
+            }
+            synchronized (this) {
+                released = true;
+                if (dest != null) {
+                    try {
+                        dest.close();
+                    } catch (IOException e) {
+                        logger.warn("Error closing file {}", fileEntity.getPath(), e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -1,105 +1,639 @@
 package cn.logow.util.download;
 
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.http.*;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.StandardHttpRequestRetryHandler;
-import org.apache.http.ssl.SSLContexts;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.net.ssl.*;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.net.URI;
-import java.nio.charset.StandardCharsets;
-import java.security.KeyManagementException;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
-import java.util.concurrent.TimeUnit;
+import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 基于 Apache HttpClient 实现的下载引擎
  *
  * @author hailong.wu
  */
-public class HttpClientEngine extends DownloadEngine {
+public class HttpClientEngine extends AbstractHttpEngine {
 
     private static final Logger logger = LoggerFactory.getLogger(HttpClientEngine.class);
-    // 默认使用 Chrome 浏览器的 UserAgent，兼容性最佳
-    private static final String DEFAULT_USER_AGENT = "Mozilla/5.0 (Windows NT 6.1; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/72.0.3626.121 Safari/537.36";
-    // 所支持的 HTTPS 传输层安全协议
-    private static final String[] SSL_PROTOCOLS = {"TLSv1", "TLSv1.1", "TLSv1.2"};
-    // 下载响应头
-    private static final String CONTENT_DISPOSITION = "Content-Disposition";
-    // 下载响应头类型
-    private static final String CONTENT_DISPOSITION_ATTACHMENT = "attachment";
-    // 下载响应头类型
-    private static final String CONTENT_DISPOSITION_INLINE = "inline";
-    // 默认连接超时
-    private static final int DEFAULT_CONN_TIMEOUT = 10000;
-    // 默认响应超时
-    private static final int DEFAULT_READ_TIMEOUT = 30000;
     // 默认下载重试次数
     private static final int DEFAULT_RETRY_COUNT = 2;
+    // 默认单路由最大连接数
+    private static final int DEFAULT_MAX_CONN_PER_ROUTE = 5;
+    // 默认连接池最大连接数
+    private static final int DEFAULT_MAX_CONN_TOTAL = 100;
+    // 保存断点日志的最小文件长度
+    private static final long MIN_RESUMABLE_SIZE = 1024 * 1024;
+    // 域名解析结果的缓存时间
+    private static final long DNS_CACHE_TTL_SECONDS = 60;
+    // 预热的连接在连接池中保持的时间，与空闲连接的清理时间一致
+    private static final long WARM_UP_KEEP_ALIVE_SECONDS = 60;
 
     private CloseableHttpClient httpClient;
 
+    private final PoolingHttpClientConnectionManager connManager;
+
+    private final CachingDnsResolver dnsResolver = new CachingDnsResolver(DNS_CACHE_TTL_SECONDS, TimeUnit.SECONDS);
+
+    private final int maxConnPerRoute;
+
+    private ExecutorService segmentExecutor;
+
+    private volatile DownloadCache cache;
+
     HttpClientEngine(boolean unsafeMode) {
+        this(unsafeMode, DEFAULT_MAX_CONN_PER_ROUTE);
+    }
+
+    HttpClientEngine(boolean unsafeMode, int maxConnPerRoute) {
+        this(unsafeMode, maxConnPerRoute, DEFAULT_MAX_CONN_TOTAL);
+    }
+
+    HttpClientEngine(boolean unsafeMode, int maxConnPerRoute, int maxConnTotal) {
+        this.maxConnPerRoute = maxConnPerRoute;
         RequestConfig requestConfig = RequestConfig.copy(RequestConfig.DEFAULT)
                 .setConnectTimeout(DEFAULT_CONN_TIMEOUT)
                 .setSocketTimeout(DEFAULT_READ_TIMEOUT)
                 .build();
 
+        SSLConnectionSocketFactory sslSocketFactory = unsafeMode
+                ? new SSLConnectionSocketFactory(unsafeSSLContext(), SSL_PROTOCOLS, null, new UnsafeHttps())
+                : SSLConnectionSocketFactory.getSocketFactory();
+        // 自行创建连接池，以便统计连接数及预热连接；同一引擎的 HTTPS 连接共用 SSLContext，可恢复之前的 TLS 会话
+        connManager = new PoolingHttpClientConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                        .register("https", sslSocketFactory)
+                        .build(), dnsResolver);
+        connManager.setDefaultMaxPerRoute(maxConnPerRoute);
+        connManager.setMaxTotal(Math.max(maxConnTotal, maxConnPerRoute));
+        registerPoolGauges(connManager);
+
+        // 由下载任务的压缩方式控制 Accept-Encoding 和解码，避免对分段请求的响应自动解压
         HttpClientBuilder builder = HttpClientBuilder.create()
+                .disableContentCompression()
                 .setUserAgent(DEFAULT_USER_AGENT)
-                .setMaxConnPerRoute(5)
-                .setMaxConnTotal(100)
+                .setConnectionManager(connManager)
                 .evictIdleConnections(1, TimeUnit.MINUTES)
                 .setDefaultRequestConfig(requestConfig)
                 .setRetryHandler(new StandardHttpRequestRetryHandler(DEFAULT_RETRY_COUNT, true));
-        if (unsafeMode) {
-            builder.setSSLSocketFactory(new SSLConnectionSocketFactory(
-                    unsafeSSLContext(), SSL_PROTOCOLS, null, new UnsafeHttps()));
-        }
 
         httpClient = builder.build();
+        segmentExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "download-segment");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 设置下载缓存，相同 URL 再次下载时发送条件请求，未修改时使用缓存文件
+     * @param cache 下载缓存，为 null 时不使用缓存
+     */
+    public void setCache(DownloadCache cache) {
+        this.cache = cache;
+    }
+
+    public DownloadCache getCache() {
+        return cache;
+    }
+
+    /**
+     * 按路由并行建立连接后放回连接池，每个主机只解析一次域名，HTTPS 连接在预热时完成 TLS 握手。
+     * 预热的连接数不超过路由的任务数、单路由最大连接数及连接池的剩余容量
+     */
+    @Override
+    WarmUpResult warmUp(Collection<URI> urls, int connectionsPerRoute) {
+        long start = System.nanoTime();
+        Map<HttpRoute, Integer> routes = new LinkedHashMap<>();
+        for (URI url : urls) {
+            if (url.getHost() == null) {
+                continue;
+            }
+            HttpRoute route = route(url);
+            Integer count = routes.get(route);
+            routes.put(route, count != null ? count + 1 : 1);
+        }
+
+        PoolStats total = connManager.getTotalStats();
+        int capacity = total.getMax() - total.getLeased();
+        int failed = 0;
+        List<Future<WarmConnection>> futures = new ArrayList<>();
+        for (Map.Entry<HttpRoute, Integer> entry : routes.entrySet()) {
+            HttpRoute route = entry.getKey();
+            int target = Math.min(Math.min(entry.getValue(), connectionsPerRoute),
+                    Math.min(connManager.getMaxPerRoute(route), capacity));
+            if (target < 1) {
+                continue;
+            }
+            capacity -= target;
+            try {
+                // 先解析一次，之后的连接使用缓存的结果
+                dnsResolver.resolve(route.getTargetHost().getHostName());
+            } catch (UnknownHostException e) {
+                logger.debug("Could not resolve {} for warm-up: {}", route.getTargetHost(), e.toString());
+                failed += target;
+                continue;
+            }
+            for (int i = 0; i < target; i++) {
+                futures.add(segmentExecutor.submit(new WarmUpWorker(route)));
+            }
+        }
+
+        // 全部连接建立后再放回连接池，避免同一路由重复租用同一个连接
+        int opened = 0;
+        int reused = 0;
+        long setupNanos = 0;
+        for (Future<WarmConnection> future : futures) {
+            try {
+                WarmConnection warm = future.get();
+                if (warm.setupNanos > 0) {
+                    opened++;
+                    setupNanos += warm.setupNanos;
+                } else {
+                    reused++;
+                }
+                connManager.releaseConnection(warm.conn, null, WARM_UP_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                logger.debug("Error warming up connection: {}", e.getCause().toString());
+                failed++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed++;
+            }
+        }
+        return new WarmUpResult(routes.size(), opened, reused, failed, setupNanos, System.nanoTime() - start);
     }
 
     @Override
     protected FileEntity doExecute(final DownloadTask task, final DownloadContext context) throws IOException {
-        HttpGet req = new HttpGet(task.getUrl());
+        // 保存压缩数据的文件与原始内容不同，不缓存
+        DownloadCache cache = task.isCacheable() && !task.isStreaming()
+                && task.getCompression() != DownloadTask.Compression.RAW ? this.cache : null;
+        FileEntity fileEntity = verifyDigest(context, download(task, context, cache));
+        if (cache != null && fileEntity != null && !task.isCancelled() && !context.isCacheHit()) {
+            try {
+                // 下载时已计算 SHA-256 的不再读取文件
+                String sha256 = task.getDigestAlgorithm() == DigestAlgorithm.SHA_256 ? fileEntity.getDigest() : null;
+                cache.put(task.getUrl(), context.getEtag(), context.getLastModified(), fileEntity.getFilename(),
+                        new File(fileEntity.getPath()), sha256);
+            } catch (IOException e) {
+                logger.warn("Error caching download {}", task, e);
+            }
+        }
+        return fileEntity;
+    }
+
+    private FileEntity download(DownloadTask task, DownloadContext context, DownloadCache cache) throws IOException {
+        if (task.isStreaming()) {
+            return executeSingle(task, context);
+        }
+        if (task.isResumable() && task.getCompression() == DownloadTask.Compression.NONE) {
+            if (DownloadJournal.acquire(task, context)) {
+                DownloadJournal journal = DownloadJournal.load(task);
+                if (journal != null) {
+                    return resume(journal, context);
+                }
+            } else {
+                logger.info("Download journal of {} is in use by another download, downloading to a new file", task);
+            }
+        }
+        if (cache != null) {
+            DownloadCache.Entry entry = cache.get(task.getUrl());
+            if (entry != null) {
+                return revalidate(cache, entry, context);
+            }
+        }
+        return executeFresh(task, context);
+    }
+
+    /**
+     * 按缓存的 ETag 和 Last-Modified 发送条件请求，未修改时从缓存恢复文件，否则直接下载响应内容
+     */
+    private FileEntity revalidate(DownloadCache cache, DownloadCache.Entry entry, DownloadContext context)
+            throws IOException {
+        DownloadTask task = context.getDownloadTask();
+        HttpGet req = newRequest(task);
+        if (entry.etag != null) {
+            req.setHeader(HttpHeaders.IF_NONE_MATCH, entry.etag);
+        }
+        if (entry.lastModified != null) {
+            req.setHeader(HttpHeaders.IF_MODIFIED_SINCE, entry.lastModified);
+        }
+
+        try (CloseableHttpResponse resp = httpClient.execute(req)) {
+            if (resp.getStatusLine().getStatusCode() != HttpStatus.SC_NOT_MODIFIED) {
+                return handleSingleResponse(resp, context, null);
+            }
+            getMetrics().onResponse(context);
+            FileEntity fileEntity = initFileEntity(context, entry.filename, entry.size, null);
+            if (cache.restore(entry, new File(fileEntity.getPath()))) {
+                // 缓存文件未经本次下载写入，校验时读取整个文件
+                context.setDigest(ContentDigest.create(task, fileEntity.getPath()));
+                context.markCacheHit();
+                getMetrics().onCacheHit(context);
+                logger.info("Restored {} from cache to '{}'", task, fileEntity.getPath());
+                return fileEntity;
+            }
+        }
+
+        // 缓存文件已丢失，重新下载
+        return executeFresh(task, context);
+    }
+
+    private FileEntity executeFresh(DownloadTask task, DownloadContext context) throws IOException {
+        if (task.getSegments() > 1 && task.getCompression() == DownloadTask.Compression.NONE) {
+            return executeRanged(task, context);
+        }
+        return executeSingle(task, context);
+    }
+
+    private FileEntity executeSingle(final DownloadTask task, final DownloadContext context) throws IOException {
+        HttpGet req = newRequest(task);
         return httpClient.execute(req, new ResponseHandler<FileEntity>() {
             @Override
             public FileEntity handleResponse(HttpResponse resp) throws IOException {
-                StatusLine statusLine = resp.getStatusLine();
-                HttpEntity entity = resp.getEntity();
-                if (statusLine.getStatusCode() != 200) {
-                    throw new HttpResponseException(statusLine.getStatusCode(), statusLine.getReasonPhrase());
+                return handleSingleResponse(resp, context, null);
+            }
+        });
+    }
+
+    /**
+     * 处理完整文件的响应
+     * @param path 目标文件路径，为 null 时根据下载任务和响应头确定
+     */
+    private FileEntity handleSingleResponse(HttpResponse resp, DownloadContext context, String path) throws IOException {
+        StatusLine statusLine = resp.getStatusLine();
+        HttpEntity entity = resp.getEntity();
+        if (statusLine.getStatusCode() != HttpStatus.SC_OK && !isWholeContent(resp)) {
+            recordRetryAfter(context, resp);
+            throw new HttpResponseException(statusLine.getStatusCode(), statusLine.getReasonPhrase());
+        }
+        if (entity == null) {
+            throw new ClientProtocolException("HttpResponse contains no content");
+        }
+
+        DownloadTask task = context.getDownloadTask();
+        InputStream content = decodeContent(resp, entity.getContent(), context);
+        // 解码后的长度未知
+        long contentLength = context.isDecoding() ? -1 : entity.getContentLength();
+        FileEntity fileEntity = initFileEntity(context, resp, contentLength, path);
+        if (task.isStreaming()) {
+            transfer(content, streamConsumer(context), context, BufferPool.sizeFor(contentLength));
+            if (contentLength < 0) {
+                fileEntity.setFileSize(context.getBytesTransferred());
+            }
+            return fileEntity;
+        }
+        DownloadJournal journal = createJournal(context, resp, fileEntity, 1);
+        DownloadJournal.Segment segment = journal.getSegments().get(0);
+        writeStream(content, fileEntity.getPath(), segment, context);
+        if (contentLength < 0) {
+            fileEntity.setFileSize(segment.position());
+        }
+        return fileEntity;
+    }
+
+    /**
+     * 按任务的压缩方式解码响应内容，解码时统计从连接读取的字节数
+     */
+    private InputStream decodeContent(HttpResponse resp, InputStream content, DownloadContext context)
+            throws IOException {
+        String encoding = headerValue(resp, HttpHeaders.CONTENT_ENCODING);
+        if (context.getDownloadTask().getCompression() != DownloadTask.Compression.DECODE
+                || encoding == null || "identity".equalsIgnoreCase(encoding.trim())) {
+            return content;
+        }
+        context.markDecoding();
+        return ContentDecoders.decode(encoding, new WireCountingInputStream(content, context));
+    }
+
+    /**
+     * 从分段的断点开始写入整个响应流，单流下载时使用
+     */
+    private void writeStream(InputStream content, String path, DownloadJournal.Segment segment,
+                             DownloadContext context) throws IOException {
+        boolean finished = false;
+        try {
+            // 内存映射写入需要可读的 FileChannel
+            try (FileChannel dest = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // 丢弃断点之后可能残留的数据
+                dest.truncate(segment.position());
+                FileSink.preallocate(dest, segment.getEnd() + 1);
+                transfer(content, dest, segment, context);
+            }
+            finished = segment.remaining() <= 0;
+        } finally {
+            if (!finished) {
+                // 预分配后中断或失败时文件长度不能代表已下载的数据，截断到实际写入的位置
+                truncateQuietly(path, segment.position());
+            }
+        }
+    }
+
+    /**
+     * 文件被中断关闭的 FileChannel 无法再使用，重新打开后截断
+     */
+    private static void truncateQuietly(String path, long length) {
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            if (file.length() > length) {
+                file.setLength(length);
+            }
+        } catch (IOException e) {
+            logger.warn("Error truncating '{}' to {}: {}", path, length, e.toString());
+        }
+    }
+
+    /**
+     * 分段下载，先以 Range: bytes=0- 探测服务器是否支持范围请求并获取文件长度。
+     * 探测请求的响应作为第一个分段继续读取；不分段或服务器忽略 Range 时直接使用其完整响应下载
+     */
+    private FileEntity executeRanged(DownloadTask task, DownloadContext context) throws IOException {
+        HttpGet probe = newRequest(task);
+        probe.setHeader(HttpHeaders.RANGE, "bytes=0-");
+
+        CloseableHttpResponse resp = httpClient.execute(probe);
+        try {
+            int statusCode = resp.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_PARTIAL_CONTENT) {
+                long length = contentRangeLength(resp);
+                int segments = segmentCount(task, length);
+                if (segments > 1) {
+                    FileEntity fileEntity = initFileEntity(context, resp, length, null);
+                    DownloadJournal journal = createJournal(context, resp, fileEntity, segments);
+                    logger.debug("Downloading {} in {} segments, length={}", task,
+                            journal.getSegments().size(), journal.getLength());
+                    // 预分配文件空间，各分段按偏移量写入
+                    try (RandomAccessFile file = new RandomAccessFile(fileEntity.getPath(), "rw")) {
+                        file.setLength(journal.getLength());
+                    }
+                    // 包含整个文件的响应交由第一个分段读取并关闭
+                    CloseableHttpResponse first = isWholeContent(resp) ? resp : null;
+                    if (first == null) {
+                        resp.close();
+                    }
+                    resp = null;
+                    return downloadSegments(fileEntity, journal, context, probe, first);
                 }
-                if (entity == null) {
-                    throw new ClientProtocolException("HttpResponse contains no content");
+                if (isWholeContent(resp)) {
+                    return handleSingleResponse(resp, context, null);
                 }
+            } else if (statusCode != HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                return handleSingleResponse(resp, context, null);
+            }
+        } finally {
+            // 未读完的响应在关闭时断开连接
+            if (resp != null) {
+                resp.close();
+            }
+        }
 
-                FileEntity fileEntity = initFileEntity(context, resp);
-                try (OutputStream dest = new FileOutputStream(fileEntity.getPath())) {
-                    transfer(entity.getContent(), dest, context);
+        // 空文件（416）或长度未知、服务器只返回了部分内容时重新请求完整文件
+        return executeSingle(task, context);
+    }
+
+    /**
+     * 根据断点日志继续下载。请求携带 If-Range，服务器文件已变化时将返回完整文件，此时重新下载
+     */
+    private FileEntity resume(DownloadJournal journal, DownloadContext context) throws IOException {
+        DownloadTask task = context.getDownloadTask();
+        // 单流下载直接从断点继续，分段下载只需确认文件未变化
+        DownloadJournal.Segment stream = journal.isSegmented() ? null : journal.getSegments().get(0);
+        long offset = stream != null ? stream.position() : 0;
+        HttpGet req = newRequest(task);
+        req.setHeader(HttpHeaders.RANGE, stream != null ? "bytes=" + offset + "-" : "bytes=0-0");
+        req.setHeader(HttpHeaders.IF_RANGE, journal.getValidator());
+
+        FileEntity fileEntity = null;
+        try (CloseableHttpResponse resp = httpClient.execute(req)) {
+            int statusCode = resp.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_PARTIAL_CONTENT && contentRangeStart(resp) == offset
+                    && (journal.getLength() < 0 || contentRangeLength(resp) == journal.getLength())) {
+                logger.info("Resuming download {} to '{}' at offset {}", task, journal.getPath(), offset);
+                fileEntity = initFileEntity(context, resp, journal.getLength(), journal.getPath());
+                context.setJournal(journal);
+                context.setDigest(ContentDigest.create(task, fileEntity.getPath(), journal.getSegments()));
+                if (stream != null) {
+                    writeStream(resp.getEntity().getContent(), fileEntity.getPath(), stream, context);
+                    return fileEntity;
+                }
+                EntityUtils.consume(resp.getEntity());
+            } else {
+                logger.info("Discard download journal of {}, server file changed or range not supported", task);
+                journal.delete();
+                if (statusCode != HttpStatus.SC_PARTIAL_CONTENT
+                        && statusCode != HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                    return handleSingleResponse(resp, context, journal.getPath());
                 }
-                return fileEntity;
             }
-        });
+        }
+
+        if (fileEntity == null) {
+            new File(journal.getPath()).delete();
+            return executeFresh(task, context);
+        }
+        return downloadSegments(fileEntity, journal, context, null, null);
+    }
+
+    /**
+     * 小文件重新下载的代价很低，只为较大且有校验信息的文件保存断点日志
+     */
+    private DownloadJournal createJournal(DownloadContext context, HttpResponse resp, FileEntity fileEntity,
+                                          int segments) throws IOException {
+        DownloadTask task = context.getDownloadTask();
+        long length = fileEntity.getFileSize();
+        DownloadJournal journal = DownloadJournal.create(task, fileEntity.getPath(),
+                headerValue(resp, HttpHeaders.ETAG), headerValue(resp, HttpHeaders.LAST_MODIFIED), length, segments);
+        context.setDigest(ContentDigest.create(task, fileEntity.getPath(), journal.getSegments()));
+        if (task.isResumable() && task.getCompression() == DownloadTask.Compression.NONE
+                && journal.getValidator() != null
+                && (length < 0 || length >= MIN_RESUMABLE_SIZE)
+                && DownloadJournal.acquire(task, context)) {
+            journal.save();
+            context.setJournal(journal);
+        }
+        return journal;
+    }
+
+    /**
+     * @param probe 探测请求，其响应 {@code first} 从文件开头开始，由第一个分段读取；为 null 时各分段分别请求
+     */
+    private FileEntity downloadSegments(FileEntity fileEntity, DownloadJournal journal, DownloadContext context,
+                                        HttpGet probe, CloseableHttpResponse first) throws IOException {
+        // 各分段共用同一个 FileChannel 按偏移量写入，内存映射写入需要可读
+        try (FileChannel dest = FileChannel.open(Paths.get(fileEntity.getPath()),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            List<SegmentWorker> workers = new ArrayList<>(journal.getSegments().size());
+            List<Future<Void>> futures = new ArrayList<>(journal.getSegments().size());
+            for (DownloadJournal.Segment segment : journal.getSegments()) {
+                if (segment.remaining() > 0) {
+                    SegmentWorker worker = new SegmentWorker(dest, segment, journal.getValidator(), context);
+                    if (first != null && segment.position() == 0) {
+                        worker.reuse(probe, first);
+                        first = null;
+                    }
+                    workers.add(worker);
+                    futures.add(segmentExecutor.submit(worker));
+                }
+            }
+            awaitSegments(workers, futures, context);
+        } finally {
+            if (first != null) {
+                closeQuietly(first);
+            }
+        }
+        return fileEntity;
+    }
+
+    /**
+     * 等待全部分段完成。任一分段失败或等待被中断时，取消其余分段并等待正在执行的分段退出后再返回，
+     * 此后不再有分段写入即将关闭的 FileChannel 或提交断点
+     */
+    private void awaitSegments(List<SegmentWorker> workers, List<Future<Void>> futures,
+                               DownloadContext context) throws IOException {
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            cancelSegments(workers, futures);
+            context.getDownloadTask().onCancel(context, context.getBytesTransferred());
+        } catch (ExecutionException e) {
+            cancelSegments(workers, futures);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new DownloadException("Unexpected error while downloading segment", cause);
+        }
+    }
+
+    private void cancelSegments(List<SegmentWorker> workers, List<Future<Void>> futures) {
+        for (SegmentWorker worker : workers) {
+            worker.abort();
+        }
+        for (Future<Void> future : futures) {
+            future.cancel(true);
+        }
+        boolean interrupted = false;
+        for (SegmentWorker worker : workers) {
+            while (true) {
+                try {
+                    worker.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int segmentCount(DownloadTask task, long length) {
+        if (length <= 0) {
+            return 1;
+        }
+        // 分段数不超过单路由最大连接数，否则多余分段只能排队等待连接；自适应并发时不超过主机当前的并发数
+        AdaptiveConcurrency concurrency = getAdaptiveConcurrency();
+        int maxSegments = concurrency != null ? concurrency.limit(task.getUrl().getHost()) : maxConnPerRoute;
+        long count = Math.min(length / task.getMinSegmentSize(),
+                Math.min(task.getSegments(), maxSegments));
+        return (int) Math.max(1, count);
+    }
+
+    private static void closeQuietly(CloseableHttpResponse resp) {
+        try {
+            resp.close();
+        } catch (IOException e) {
+            logger.debug("Error closing response: {}", e.toString());
+        }
+    }
+
+    /**
+     * 从头开始且包含整个文件的 206 响应，可与 200 响应一样处理
+     */
+    private boolean isWholeContent(HttpResponse resp) {
+        HttpEntity entity = resp.getEntity();
+        long length = contentRangeLength(resp);
+        return resp.getStatusLine().getStatusCode() == HttpStatus.SC_PARTIAL_CONTENT
+                && contentRangeStart(resp) == 0 && length > 0
+                && entity != null && entity.getContentLength() == length;
+    }
+
+    private long contentRangeStart(HttpResponse resp) {
+        String value = headerValue(resp, HttpHeaders.CONTENT_RANGE);
+        if (value == null || !value.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = value.indexOf('-');
+        try {
+            return Long.parseLong(value.substring("bytes ".length(), dash).trim());
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private long contentRangeLength(HttpResponse resp) {
+        String value = headerValue(resp, HttpHeaders.CONTENT_RANGE);
+        if (value == null) {
+            return -1;
+        }
+        int slash = value.lastIndexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            // 长度未知，如 bytes 0-0/*
+            return -1;
+        }
     }
 
     @Override
     public void close() {
+        segmentExecutor.shutdownNow();
         try {
             httpClient.close();
         } catch (IOException e) {
@@ -107,111 +641,214 @@ public class HttpClientEngine extends DownloadEngine {
         }
     }
 
-    private FileEntity initFileEntity(DownloadContext context, HttpResponse resp) {
-        DownloadTask task = context.getDownloadTask();
-        String filename = resolveFilename(task.getUrl(), resp);
-        String path = null;
-        if (task.getFilename() == null) {
-            String ufn = Utils.uniqueFilename(task.getSavePath(), filename);
-            path = new File(task.getSavePath(), ufn).getAbsolutePath();
-        } else {
-            path = new File(task.getSavePath(), task.getFilename()).getAbsolutePath();
-        }
+    /**
+     * 租用路由的一个连接，连接池中没有可用连接时建立新连接
+     */
+    private class WarmUpWorker implements Callable<WarmConnection> {
 
-        FileEntity fileEntity = new FileEntity(path, filename, resp.getEntity().getContentLength());
-        context.setFileEntity(fileEntity);
-        return fileEntity;
-    }
+        private final HttpRoute route;
 
-    private String resolveFilename(URI uri, HttpResponse resp) {
-        String fileName = null;
-        // 优先考虑下载响应头
-        if (resp != null) {
-            fileName = resolveDownloadHeader(resp);
+        WarmUpWorker(HttpRoute route) {
+            this.route = route;
         }
-        // 其次解析下载 URL
-        if (fileName == null || fileName.isEmpty()) {
-            fileName = Utils.resolveFilename(uri);
-        }
-        // 默认生成随机文件名
-        if (fileName == null || fileName.isEmpty()) {
-            fileName = "download_" + System.currentTimeMillis();
+
+        @Override
+        public WarmConnection call() throws Exception {
+            ConnectionRequest request = connManager.requestConnection(route, null);
+            HttpClientConnection conn = request.get(DEFAULT_CONN_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (conn.isOpen()) {
+                return new WarmConnection(conn, 0);
+            }
+            long start = System.nanoTime();
+            try {
+                HttpClientContext context = HttpClientContext.create();
+                connManager.connect(conn, route, DEFAULT_CONN_TIMEOUT, context);
+                connManager.routeComplete(conn, route, context);
+            } catch (IOException e) {
+                connManager.releaseConnection(conn, null, 0, TimeUnit.MILLISECONDS);
+                throw e;
+            }
+            return new WarmConnection(conn, Math.max(1, System.nanoTime() - start));
         }
+    }
 
-        return fileName;
+    private static final class WarmConnection {
+
+        final HttpClientConnection conn;
+        // 新建连接的耗时，连接池中已有的连接为 0
+        final long setupNanos;
+
+        WarmConnection(HttpClientConnection conn, long setupNanos) {
+            this.conn = conn;
+            this.setupNanos = setupNanos;
+        }
     }
 
-    private String resolveDownloadHeader(HttpResponse resp) {
-        Header header = resp.getFirstHeader(CONTENT_DISPOSITION);
-        if (header == null) {
-            return null;
+    /**
+     * 从断点开始下载单个分段并写入文件的对应偏移位置
+     */
+    private class SegmentWorker implements Callable<Void> {
+
+        private final FileChannel dest;
+        private final DownloadJournal.Segment segment;
+        private final String validator;
+        private final DownloadContext context;
+        // 开始执行或已取消，两者只有一个生效
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private volatile HttpGet request;
+        private volatile boolean aborted;
+        // 从分段开头开始的已打开响应，由本分段读取后关闭
+        private CloseableHttpResponse response;
+
+        SegmentWorker(FileChannel dest, DownloadJournal.Segment segment, String validator, DownloadContext context) {
+            this.dest = dest;
+            this.segment = segment;
+            this.validator = validator;
+            this.context = context;
         }
 
-        HeaderElement[] elements = header.getElements();
-        if (elements == null || elements.length == 0) {
-            return null;
+        /**
+         * 读取已打开的响应，不再发出分段请求
+         */
+        void reuse(HttpGet req, CloseableHttpResponse resp) {
+            request = req;
+            response = resp;
         }
 
-        HeaderElement ele = elements[0];
-        if (!CONTENT_DISPOSITION_ATTACHMENT.equalsIgnoreCase(ele.getName())
-                || !CONTENT_DISPOSITION_INLINE.equalsIgnoreCase(ele.getName())) {
-            return null;
+        /**
+         * 取消分段，正在读取响应时中止请求，不必等待读取超时
+         */
+        void abort() {
+            aborted = true;
+            HttpGet req = request;
+            if (req != null) {
+                req.abort();
+            }
         }
 
-        String rawFilename = null;
-        String filename = null;
-        NameValuePair filenameParam = ele.getParameterByName("filename*");
-        if (filenameParam != null && filenameParam.getValue() != null) {
-            String[] tokens = filenameParam.getValue().split("'");
-            if (tokens.length == 3) {
-                rawFilename = tokens[2];
-                filename = Utils.decodeURL(rawFilename, tokens[0]);
+        /**
+         * 等待分段退出，尚未开始的分段不再执行
+         */
+        void join() throws InterruptedException {
+            if (!claimed.compareAndSet(false, true)) {
+                finished.await();
+            } else if (response != null) {
+                closeQuietly(response);
             }
         }
 
-        if (filename == null) {
-            // back compatibility
-            filenameParam = ele.getParameterByName("filename");
-            if (filenameParam != null && filenameParam.getValue() != null) {
-                rawFilename = filenameParam.getValue();
-                if (Utils.isAsciiString(rawFilename)) {
-                    filename = Utils.decodeURL(rawFilename, "UTF-8");
-                } else {
-                    filename = new String(rawFilename.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+        @Override
+        public Void call() throws IOException {
+            if (!claimed.compareAndSet(false, true)) {
+                return null;
+            }
+            try {
+                return download();
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        private Void download() throws IOException {
+            if (response != null) {
+                // 响应已打开，不等待映射许可；只读取到分段结束，关闭时断开连接
+                try {
+                    if (aborted) {
+                        throw new InterruptedIOException("Segment download cancelled");
+                    }
+                    return read(new BoundedInputStream(response.getEntity().getContent(), segment.remaining()), false);
+                } finally {
+                    closeQuietly(response);
+                }
+            }
+            // 先获取映射许可再发出请求，等待许可时不占用连接池中的连接
+            Semaphore region = acquireMappedRegion(segment, context);
+            try {
+                return download(region != null);
+            } finally {
+                if (region != null) {
+                    region.release();
                 }
             }
         }
 
-        return filename != null ? filename : rawFilename;
-    }
+        private Void download(final boolean mapped) throws IOException {
+            HttpGet req = newRequest(context.getDownloadTask());
+            request = req;
+            if (aborted) {
+                throw new InterruptedIOException("Segment download cancelled");
+            }
+            req.setHeader(HttpHeaders.RANGE, "bytes=" + segment.position() + "-" + segment.getEnd());
+            if (validator != null) {
+                req.setHeader(HttpHeaders.IF_RANGE, validator);
+            }
+            return httpClient.execute(req, new ResponseHandler<Void>() {
+                @Override
+                public Void handleResponse(HttpResponse resp) throws IOException {
+                    StatusLine statusLine = resp.getStatusLine();
+                    HttpEntity entity = resp.getEntity();
+                    // 不使用 HttpResponseException，避免 HttpClient 为复用连接而读完整个响应
+                    if (statusLine.getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT) {
+                        recordRetryAfter(context, resp);
+                        throw new HttpStatusException(statusLine.getStatusCode(),
+                                "Range request not honored: " + statusLine);
+                    }
+                    if (entity == null) {
+                        throw new ClientProtocolException("HttpResponse contains no content");
+                    }
+                    return read(entity.getContent(), mapped);
+                }
+            });
+        }
 
-    private SSLContext unsafeSSLContext() {
-        SSLContext context = SSLContexts.createDefault();
-        try {
-            context.init(null, new TrustManager[]{new UnsafeHttps()}, null);
-        } catch (KeyManagementException e) {
-            throw new IllegalStateException(e.getMessage(), e);
+        private Void read(InputStream content, boolean mapped) throws IOException {
+            if (!copy(content, dest, segment, context, mapped)) {
+                throw new InterruptedIOException("Segment download interrupted");
+            }
+            if (segment.remaining() != 0) {
+                throw new IOException("Premature end of segment " + segment.getStart() + "-"
+                        + segment.getEnd() + ", " + segment.remaining() + " bytes remaining");
+            }
+            return null;
         }
-        return context;
     }
 
-    static class UnsafeHttps implements X509TrustManager, HostnameVerifier {
-        @Override
-        public X509Certificate[] getAcceptedIssuers() {
-            return null;
+    /**
+     * 统计从连接读取的压缩数据字节数
+     */
+    private static class WireCountingInputStream extends FilterInputStream {
+
+        private final DownloadContext context;
+
+        WireCountingInputStream(InputStream in, DownloadContext context) {
+            super(in);
+            this.context = context;
         }
 
         @Override
-        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                context.addWireBytes(1);
+            }
+            return b;
         }
 
         @Override
-        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                context.addWireBytes(n);
+            }
+            return n;
         }
 
         @Override
-        public boolean verify(String s, SSLSession sslSession) {
-            return true;
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            context.addWireBytes(skipped);
+            return skipped;
         }
     }
 }
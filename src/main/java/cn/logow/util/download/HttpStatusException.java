@@ -0,0 +1,26 @@
+package cn.logow.util.download;
+
+import java.io.IOException;
+
+/**
+ * 服务器返回了意外的响应状态。
+ * <p>
+ * 与 HttpClient 的 HttpResponseException 不同，在响应处理器中抛出时不会为复用连接而读完响应内容
+ *
+ * @author logow
+ */
+public class HttpStatusException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    public HttpStatusException(int statusCode, String message) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+}
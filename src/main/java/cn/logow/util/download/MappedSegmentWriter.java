@@ -0,0 +1,177 @@
+package cn.logow.util.download;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 通过内存映射写入分段，适用于已设置长度的超大文件。
+ * <p>
+ * 分段按窗口依次映射，从连接读入池化堆缓冲区的数据再复制到映射区域，省去逐块 write 的系统调用，
+ * 写回由操作系统按页完成；数据仍经过一次堆内复制，并非由连接直接写入映射区域。
+ * 同一分段同时只映射一个窗口，调用方在发出分段请求前从引擎共享的信号量获取一个许可，分段结束后归还，
+ * 同时映射的区域数及占用的地址空间有上限，等待许可时不占用连接。
+ * 窗口写满或分段结束时立即解除映射，不等待垃圾回收。
+ * <p>
+ * 定期同步时先强制写回当前窗口再同步文件，完成时同步由 {@link FileSink#commit} 负责
+ *
+ * @author logow
+ */
+final class MappedSegmentWriter implements ContentConsumer, Flushable, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedSegmentWriter.class);
+
+    // 解除映射的方法，不支持时为 null，映射区域在垃圾回收时释放
+    private static final Unmapper UNMAPPER = Unmapper.create();
+
+    private final FileChannel dest;
+    private final DownloadJournal.Segment segment;
+    private final DownloadContext context;
+    private final int windowSize;
+    private final boolean forceOnUnmap;
+    private MappedByteBuffer window;
+    // 下一个待写入字节的文件偏移
+    private long position;
+
+    /**
+     * 调用方须已通过 {@link DownloadEngine#acquireMappedRegion} 获取映射许可
+     */
+    MappedSegmentWriter(FileChannel dest, DownloadJournal.Segment segment, DownloadContext context) {
+        DownloadTask task = context.getDownloadTask();
+        this.dest = dest;
+        this.segment = segment;
+        this.context = context;
+        this.windowSize = task.getMappedWindowSize();
+        this.forceOnUnmap = task.getDurability() != DownloadTask.Durability.NONE;
+        this.position = segment.position();
+    }
+
+    /**
+     * 分段长度已知且任务启用内存映射时才能按窗口映射
+     */
+    static boolean isApplicable(DownloadJournal.Segment segment, DownloadContext context) {
+        return context.getDownloadTask().getMappedWindowSize() > 0 && segment.getEnd() >= 0;
+    }
+
+    @Override
+    public void consume(ByteBuffer chunk) throws IOException {
+        ContentDigest digest = context.getDigest();
+        if (digest != null) {
+            digest.update(segment, chunk);
+        }
+        int n = chunk.remaining();
+        while (chunk.hasRemaining()) {
+            if (window == null || !window.hasRemaining()) {
+                unmap();
+                map();
+            }
+            int limit = chunk.limit();
+            if (chunk.remaining() > window.remaining()) {
+                chunk.limit(chunk.position() + window.remaining());
+            }
+            position += chunk.remaining();
+            window.put(chunk);
+            chunk.limit(limit);
+        }
+        segment.commit(n);
+    }
+
+    private void map() throws IOException {
+        long size = Math.min(windowSize, segment.getEnd() + 1 - position);
+        if (size <= 0) {
+            throw new IOException("Segment " + segment.getStart() + "-" + segment.getEnd()
+                    + " received more data than requested");
+        }
+        window = dest.map(FileChannel.MapMode.READ_WRITE, position, size);
+    }
+
+    private void unmap() {
+        MappedByteBuffer buffer = window;
+        if (buffer == null) {
+            return;
+        }
+        window = null;
+        if (forceOnUnmap) {
+            buffer.force();
+        }
+        if (UNMAPPER != null) {
+            UNMAPPER.unmap(buffer);
+        }
+    }
+
+    /**
+     * 强制写回当前窗口，定期同步时在同步文件前调用
+     */
+    @Override
+    public void flush() {
+        if (window != null) {
+            window.force();
+        }
+    }
+
+    /**
+     * 解除当前窗口的映射，分段结束、失败或取消时都需调用
+     */
+    @Override
+    public void close() {
+        unmap();
+    }
+
+    /**
+     * 立即解除映射。Java 9 及以上通过 Unsafe.invokeCleaner，Java 8 通过 DirectBuffer 的 Cleaner
+     */
+    private static final class Unmapper {
+
+        private final Object target;
+        private final Method method;
+        private final boolean cleaner;
+
+        private Unmapper(Object target, Method method, boolean cleaner) {
+            this.target = target;
+            this.method = method;
+            this.cleaner = cleaner;
+        }
+
+        static Unmapper create() {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                return new Unmapper(field.get(null), invokeCleaner, false);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // Java 8
+            }
+            try {
+                Method cleanerMethod = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                return new Unmapper(null, cleanerMethod, true);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                logger.debug("Unmapping is not supported, mapped regions are released on GC: {}", e.toString());
+                return null;
+            }
+        }
+
+        void unmap(MappedByteBuffer buffer) {
+            try {
+                if (cleaner) {
+                    Object c = method.invoke(buffer);
+                    if (c != null) {
+                        c.getClass().getMethod("clean").invoke(c);
+                    }
+                } else {
+                    method.invoke(target, buffer);
+                }
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                logger.debug("Error unmapping buffer: {}", e.toString());
+            }
+        }
+    }
+}
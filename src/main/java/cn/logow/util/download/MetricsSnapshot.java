@@ -0,0 +1,227 @@
+package cn.logow.util.download;
+
+import java.beans.ConstructorProperties;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * 下载指标在某一时刻的快照
+ *
+ * @author logow
+ */
+public class MetricsSnapshot {
+
+    private final long timestamp;
+    private final long started;
+    private final long completed;
+    private final long failed;
+    private final long cancelled;
+    private final long cacheHits;
+    private final long shed;
+    private final long preempted;
+    private final long retries;
+    private final long bytesTransferred;
+    private final long throughput;
+    private final Histogram timeToFirstByte;
+    private final Histogram duration;
+    private final Map<String, Histogram> queueWait;
+    private final Map<String, Long> hostThroughput;
+    private final Map<String, Long> gauges;
+
+    MetricsSnapshot(long timestamp, long started, long completed, long failed, long cancelled,
+                    long cacheHits, long shed, long preempted, long retries, long bytesTransferred, long throughput,
+                    Histogram timeToFirstByte, Histogram duration, Map<String, Histogram> queueWait,
+                    Map<String, Long> hostThroughput, Map<String, Long> gauges) {
+        this.timestamp = timestamp;
+        this.started = started;
+        this.completed = completed;
+        this.failed = failed;
+        this.cancelled = cancelled;
+        this.cacheHits = cacheHits;
+        this.shed = shed;
+        this.preempted = preempted;
+        this.retries = retries;
+        this.bytesTransferred = bytesTransferred;
+        this.throughput = throughput;
+        this.timeToFirstByte = timeToFirstByte;
+        this.duration = duration;
+        this.queueWait = Collections.unmodifiableMap(queueWait);
+        this.hostThroughput = Collections.unmodifiableMap(hostThroughput);
+        this.gauges = Collections.unmodifiableMap(gauges);
+    }
+
+    /**
+     * 快照时间，毫秒
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    public long getCompleted() {
+        return completed;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 由下载缓存完成的任务数
+     */
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * 等待时已过截止时间而放弃的任务数
+     */
+    public long getShed() {
+        return shed;
+    }
+
+    /**
+     * 让出给优先级更高的任务的次数
+     */
+    public long getPreempted() {
+        return preempted;
+    }
+
+    /**
+     * 下载失败后重试的次数
+     */
+    public long getRetries() {
+        return retries;
+    }
+
+    /**
+     * 正在下载的任务数
+     */
+    public long getActive() {
+        return Math.max(0, started - completed - failed - cancelled);
+    }
+
+    /**
+     * 累计下载字节数
+     */
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    /**
+     * 最近几秒的平均每秒下载字节数
+     */
+    public long getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * 从开始下载到收到响应头的耗时，微秒
+     */
+    public Histogram getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    /**
+     * 下载完成的总耗时，微秒
+     */
+    public Histogram getDuration() {
+        return duration;
+    }
+
+    /**
+     * 各优先级从提交到开始执行的等待时间，微秒，键为优先级
+     */
+    public Map<String, Histogram> getQueueWait() {
+        return queueWait;
+    }
+
+    /**
+     * 各主机最近几秒的平均每秒下载字节数
+     */
+    public Map<String, Long> getHostThroughput() {
+        return hostThroughput;
+    }
+
+    /**
+     * 线程池、连接池等瞬时值，如 {@code scheduler.pending}、{@code connections.leased}
+     */
+    public Map<String, Long> getGauges() {
+        return gauges;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsSnapshot{started=" + started + ", completed=" + completed + ", failed=" + failed
+                + ", cancelled=" + cancelled + ", cacheHits=" + cacheHits + ", shed=" + shed + ", preempted=" + preempted
+                + ", retries=" + retries + ", bytesTransferred=" + bytesTransferred + ", throughput=" + throughput
+                + ", timeToFirstByte=" + timeToFirstByte
+                + ", duration=" + duration + ", queueWait=" + queueWait + ", hostThroughput=" + hostThroughput + ", gauges=" + gauges + "}";
+    }
+
+    /**
+     * 耗时分布
+     */
+    public static class Histogram {
+
+        private final long count;
+        private final long mean;
+        private final long max;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long p999;
+
+        @ConstructorProperties({"count", "mean", "max", "p50", "p90", "p99", "p999"})
+        public Histogram(long count, long mean, long max, long p50, long p90, long p99, long p999) {
+            this.count = count;
+            this.mean = mean;
+            this.max = max;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.p999 = p999;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMean() {
+            return mean;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        @Override
+        public String toString() {
+            return "{count=" + count + ", mean=" + mean + ", max=" + max + ", p50=" + p50
+                    + ", p90=" + p90 + ", p99=" + p99 + ", p999=" + p999 + "}";
+        }
+    }
+}
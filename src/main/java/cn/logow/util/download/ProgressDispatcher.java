@@ -0,0 +1,106 @@
+package cn.logow.util.download;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在单独的线程中向监听器发送下载进度。
+ * <p>
+ * 下载线程只将进度累加到下载上下文的计数器，上下文在两次发送之间首次有进度时加入无锁队列，
+ * 之后的进度只累加不再入队，队列长度不超过正在下载的任务数。发送线程按间隔取出队列中的上下文，
+ * 将期间累计的字节数和耗时合并为一次进度事件，监听器处理缓慢时只会合并更多进度，不会阻塞下载。
+ * <p>
+ * 下载结束时先在下载线程中补发未发送的进度，再发送完成、取消或异常事件，监听器收到的进度总和与下载的字节数一致
+ *
+ * @author logow
+ */
+final class ProgressDispatcher implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProgressDispatcher.class);
+
+    private final Queue<DownloadContext> pending = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param intervalMillis 向同一任务的监听器发送进度的最小间隔
+     */
+    ProgressDispatcher(long intervalMillis) {
+        if (intervalMillis < 1) {
+            throw new IllegalArgumentException("intervalMillis must be positive");
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "download-progress");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 累加下载进度，由下载线程调用，不等待监听器
+     */
+    void publish(DownloadContext context, long bytes, long timeMillis) {
+        if (context.addPendingProgress(bytes, timeMillis)) {
+            pending.offer(context);
+        }
+    }
+
+    /**
+     * 发送全部上下文累计的进度
+     */
+    void drain() {
+        DownloadContext context;
+        while ((context = pending.poll()) != null) {
+            // 先清除入队标记，发送期间新增的进度会再次入队
+            context.clearProgressQueued();
+            try {
+                flush(context);
+            } catch (RuntimeException e) {
+                logger.warn("Error dispatching progress of {}", context.getDownloadTask(), e);
+            }
+        }
+    }
+
+    /**
+     * 发送上下文累计的进度，下载结束时由下载线程在通知监听器前调用。
+     * 同一上下文的进度按顺序发送，发送线程正在调用该任务的监听器时等待其返回
+     */
+    static void flush(DownloadContext context) {
+        synchronized (context) {
+            long bytes = context.takePendingBytes();
+            long timeMillis = context.takePendingMillis();
+            if (bytes != 0 || timeMillis != 0) {
+                context.getDownloadTask().onProgress(context, bytes, timeMillis);
+            }
+        }
+    }
+
+    /**
+     * 停止发送线程并发送剩余的进度
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        drain();
+    }
+}
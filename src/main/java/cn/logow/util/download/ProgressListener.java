@@ -2,10 +2,11 @@ package cn.logow.util.download;
 
 public class ProgressListener extends DefaultDownloadListener {
 
-    private long startTime;
-    private long endTime;
-    private int bytesTransferred;
-    private long millisElapsed;
+    private volatile long startTime;
+    private volatile long endTime;
+    // 大于 2GB 的文件不溢出
+    private volatile long bytesTransferred;
+    private volatile long millisElapsed;
 
     @Override
     public void onStart(DownloadContext context) {
@@ -13,7 +14,7 @@ public class ProgressListener extends DefaultDownloadListener {
     }
 
     @Override
-    public void onProgress(DownloadContext context, int bytes, long timeMillis) {
+    public void onProgress(DownloadContext context, long bytes, long timeMillis) {
         bytesTransferred += bytes;
         millisElapsed += timeMillis;
     }
@@ -31,7 +32,7 @@ public class ProgressListener extends DefaultDownloadListener {
         return endTime;
     }
 
-    public int getBytesTransferred() {
+    public long getBytesTransferred() {
         return bytesTransferred;
     }
 
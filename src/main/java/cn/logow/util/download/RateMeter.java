@@ -0,0 +1,62 @@
+package cn.logow.util.download;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按秒分桶统计的速率，返回最近几秒的平均每秒字节数
+ *
+ * @author logow
+ */
+final class RateMeter {
+
+    private static final int SLOTS = 8;
+    // 计算速率的秒数，不包括当前这一秒
+    private static final int WINDOW_SECONDS = 5;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray seconds = new AtomicLongArray(SLOTS);
+    private final LongAdder total = new LongAdder();
+
+    RateMeter() {
+        for (int i = 0; i < SLOTS; i++) {
+            seconds.set(i, Long.MIN_VALUE);
+        }
+    }
+
+    void add(long bytes) {
+        total.add(bytes);
+        long second = currentSecond();
+        int slot = (int) (second & (SLOTS - 1));
+        long slotSecond = seconds.get(slot);
+        // 进入新的一秒时清空复用的桶，并发时可能少计少量字节
+        if (slotSecond != second && seconds.compareAndSet(slot, slotSecond, second)) {
+            counts.set(slot, 0);
+        }
+        counts.addAndGet(slot, bytes);
+    }
+
+    long getTotal() {
+        return total.sum();
+    }
+
+    /**
+     * @return 最近几秒的平均每秒字节数
+     */
+    long getRate() {
+        long second = currentSecond();
+        long bytes = 0;
+        for (int i = 1; i <= WINDOW_SECONDS; i++) {
+            int slot = (int) ((second - i) & (SLOTS - 1));
+            if (seconds.get(slot) == second - i) {
+                bytes += counts.get(slot);
+            }
+        }
+        return bytes / WINDOW_SECONDS;
+    }
+
+    private static long currentSecond() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+    }
+}
@@ -0,0 +1,71 @@
+package cn.logow.util.download;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 按主机的重试预算。每个下载为其主机存入一定比例的重试次数，每次重试取出一次，不足一次时不再重试
+ *
+ * @author logow
+ */
+final class RetryBudget {
+
+    private final RetryPolicy policy;
+    private final ConcurrentMap<String, Balance> hosts = new ConcurrentHashMap<>();
+
+    RetryBudget(RetryPolicy policy) {
+        this.policy = policy;
+    }
+
+    RetryPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * 开始下载，为主机积累重试次数
+     */
+    void deposit(String host) {
+        balance(host).deposit(policy.getBudgetRatio(), policy.getBudgetReserve());
+    }
+
+    /**
+     * 取出一次重试
+     * @return 主机的预算已用完时返回 false
+     */
+    boolean withdraw(String host) {
+        return balance(host).withdraw();
+    }
+
+    private Balance balance(String host) {
+        Balance balance = hosts.get(host);
+        if (balance == null) {
+            balance = new Balance(policy.getBudgetReserve());
+            Balance prev = hosts.putIfAbsent(host, balance);
+            if (prev != null) {
+                balance = prev;
+            }
+        }
+        return balance;
+    }
+
+    private static final class Balance {
+
+        private double tokens;
+
+        Balance(double tokens) {
+            this.tokens = tokens;
+        }
+
+        synchronized void deposit(double ratio, int reserve) {
+            tokens = Math.min(reserve, tokens + ratio);
+        }
+
+        synchronized boolean withdraw() {
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
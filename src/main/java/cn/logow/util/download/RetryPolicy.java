@@ -0,0 +1,137 @@
+package cn.logow.util.download;
+
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.MalformedChunkCodingException;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.TruncatedChunkException;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 下载失败后的重试策略。
+ * <p>
+ * 连接失败、超时、传输中断及 408、429、5xx 响应时重试，等待时间按指数退避并加入随机抖动（decorrelated jitter），
+ * 服务器返回 Retry-After 时至少等待指定的时间。已下载部分内容且支持断点续传时从断点继续。
+ * <p>
+ * 每个主机的重试次数受预算限制：每个下载为其主机积累一定比例的重试次数，预算用完时不再重试，
+ * 避免故障的服务器占满下载线程
+ *
+ * @author logow
+ */
+public final class RetryPolicy {
+
+    private static final int DEFAULT_MAX_RETRIES = 3;
+    private static final long DEFAULT_BASE_DELAY_MILLIS = 200;
+    private static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+    private static final double DEFAULT_BUDGET_RATIO = 0.2;
+    private static final int DEFAULT_BUDGET_RESERVE = 10;
+
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private long baseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+    private long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+    private double budgetRatio = DEFAULT_BUDGET_RATIO;
+    private int budgetReserve = DEFAULT_BUDGET_RESERVE;
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * 设置单个下载的最大重试次数，默认 3 次
+     */
+    public void setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries must not be negative");
+        }
+        this.maxRetries = maxRetries;
+    }
+
+    public long getBaseDelayMillis() {
+        return baseDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    /**
+     * 设置重试的等待时间，默认最短 200 毫秒、最长 30 秒。
+     * 服务器要求的 Retry-After 超过最长等待时间时不再重试
+     * @param baseDelay 首次重试的最短等待时间
+     * @param maxDelay 每次重试的最长等待时间
+     */
+    public void setBackoff(long baseDelay, long maxDelay, TimeUnit unit) {
+        if (baseDelay < 1 || maxDelay < baseDelay) {
+            throw new IllegalArgumentException("require 0 < baseDelay <= maxDelay");
+        }
+        this.baseDelayMillis = unit.toMillis(baseDelay);
+        this.maxDelayMillis = unit.toMillis(maxDelay);
+    }
+
+    public double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    public int getBudgetReserve() {
+        return budgetReserve;
+    }
+
+    /**
+     * 设置每个主机的重试预算，默认每个下载积累 0.2 次，最多积累 10 次
+     * @param ratio 每个下载为其主机积累的重试次数
+     * @param reserve 主机最多积累的重试次数，也是新主机的初始预算
+     */
+    public void setRetryBudget(double ratio, int reserve) {
+        if (ratio < 0 || reserve < 1) {
+            throw new IllegalArgumentException("require ratio >= 0 and reserve >= 1");
+        }
+        this.budgetRatio = ratio;
+        this.budgetReserve = reserve;
+    }
+
+    /**
+     * 下一次重试的等待时间，在最短等待时间与上次等待时间的 3 倍之间随机选取
+     * @param prevDelay 上次的等待时间，首次重试时为 0
+     */
+    long nextDelay(long prevDelay) {
+        long upper = Math.max(baseDelayMillis, prevDelay * 3);
+        long delay = upper > baseDelayMillis
+                ? ThreadLocalRandom.current().nextLong(baseDelayMillis, upper + 1) : baseDelayMillis;
+        return Math.min(maxDelayMillis, delay);
+    }
+
+    /**
+     * 失败是否可能在重试后恢复：服务器暂时不可用或限流，连接失败、超时或传输中断
+     */
+    static boolean isRetryable(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            int status = t instanceof HttpResponseException ? ((HttpResponseException) t).getStatusCode()
+                    : t instanceof HttpStatusException ? ((HttpStatusException) t).getStatusCode() : 0;
+            if (status > 0) {
+                return status == 408 || status == 429 || (status >= 500 && status != 501 && status != 505);
+            }
+            if (t instanceof DigestMismatchException || t instanceof DeadlineExceededException) {
+                return false;
+            }
+            if (t instanceof SocketTimeoutException || t instanceof ConnectTimeoutException) {
+                return true;
+            }
+            // 其他中断由取消下载引起
+            if (t instanceof InterruptedIOException) {
+                return false;
+            }
+            if (t instanceof SocketException || t instanceof NoHttpResponseException
+                    || t instanceof ConnectionClosedException || t instanceof TruncatedChunkException
+                    || t instanceof MalformedChunkCodingException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
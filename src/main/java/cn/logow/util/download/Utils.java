@@ -4,6 +4,7 @@ import org.apache.commons.io.FilenameUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
@@ -65,19 +66,20 @@ public final class Utils {
         return baseName + "." + extension;
     }
 
+    /**
+     * 在目录中分配不重复的文件名，同名时依次尝试 name_2、name_3 …，并发调用不会得到相同的文件名。
+     * <p>
+     * 注意：返回前会在目录中创建该文件名的空文件以占用文件名，目录不存在时一并创建；
+     * 调用方最终不使用该文件名时须自行删除这个空文件
+     * @return 已创建的空文件的文件名
+     * @throws UncheckedIOException 无法创建目录或文件
+     */
     public static String uniqueFilename(String dirPath, String filename) {
-        String fn = filename;
-        File file =  new File(dirPath, fn);
-        if (file.exists()) {
-            String baseName = getBaseName(filename);
-            String extension = getExtension(filename);
-            int num = 1;
-            do {
-                fn = baseName + "_" + (++num) + (extension != null ? "." + extension : "");
-                file = new File(dirPath, fn);
-            } while (file.exists());
+        try {
+            return FilenameAllocator.forDirectory(dirPath).allocate(filename, "");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        return fn;
     }
 
     public static String getBaseName(String filename) {
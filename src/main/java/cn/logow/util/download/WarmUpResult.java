@@ -0,0 +1,84 @@
+package cn.logow.util.download;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 批量下载开始前预热连接的结果
+ *
+ * @author logow
+ */
+public final class WarmUpResult {
+
+    private final int routes;
+    private final int opened;
+    private final int reused;
+    private final int failed;
+    private final long setupNanos;
+    private final long elapsedNanos;
+
+    WarmUpResult(int routes, int opened, int reused, int failed, long setupNanos, long elapsedNanos) {
+        this.routes = routes;
+        this.opened = opened;
+        this.reused = reused;
+        this.failed = failed;
+        this.setupNanos = setupNanos;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * 预热的路由数，即不同的协议、主机和端口
+     */
+    public int getRoutes() {
+        return routes;
+    }
+
+    /**
+     * 新建立的连接数
+     */
+    public int getOpened() {
+        return opened;
+    }
+
+    /**
+     * 连接池中已有、无需新建的连接数
+     */
+    public int getReused() {
+        return reused;
+    }
+
+    /**
+     * 解析域名或建立连接失败的连接数，失败的路由在下载时再建立连接
+     */
+    public int getFailed() {
+        return failed;
+    }
+
+    /**
+     * 新建连接的耗时之和，包括 DNS 解析、TCP 连接和 TLS 握手，下载时不再需要
+     */
+    public long getSetupNanos() {
+        return setupNanos;
+    }
+
+    /**
+     * 预热的耗时，批量下载在预热完成后才开始
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * 估算预热节省的时间：下载不再需要的建连耗时减去批量下载等待预热的时间，不为负数
+     */
+    public long getSavedNanos() {
+        return Math.max(0, setupNanos - elapsedNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "routes=" + routes + ", opened=" + opened + ", reused=" + reused + ", failed=" + failed
+                + ", setup=" + TimeUnit.NANOSECONDS.toMillis(setupNanos) + "ms"
+                + ", elapsed=" + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + "ms"
+                + ", saved=" + TimeUnit.NANOSECONDS.toMillis(getSavedNanos()) + "ms";
+    }
+}
@@ -0,0 +1,59 @@
+package cn.logow.util.download;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class BandwidthLimiterTest {
+
+    @Test
+    public void testReserve() {
+        BandwidthLimiter limiter = new BandwidthLimiter(1000);
+        // 空闲时允许突发 200ms 的数据量
+        Assert.assertEquals(0, limiter.reserve(200));
+        long waitNanos = limiter.reserve(1000);
+        Assert.assertTrue(waitNanos > TimeUnit.MILLISECONDS.toNanos(900));
+        Assert.assertTrue(waitNanos <= TimeUnit.SECONDS.toNanos(1));
+        // 后续请求排在已预留的带宽之后
+        Assert.assertTrue(limiter.reserve(100) > waitNanos);
+    }
+
+    @Test
+    public void testAdjustRate() {
+        BandwidthLimiter limiter = new BandwidthLimiter(0);
+        Assert.assertFalse(limiter.isLimited());
+        Assert.assertEquals(0, limiter.reserve(Integer.MAX_VALUE));
+        Assert.assertEquals(64 * 1024, limiter.limitChunk(64 * 1024));
+
+        limiter.setRate(100 * 1024);
+        Assert.assertTrue(limiter.isLimited());
+        Assert.assertEquals(5 * 1024, limiter.limitChunk(64 * 1024));
+        Assert.assertTrue(limiter.reserve(100 * 1024) > 0);
+
+        limiter.setRate(0);
+        Assert.assertEquals(0, limiter.reserve(100 * 1024));
+    }
+
+    @Test
+    public void testHostRate() {
+        BandwidthThrottle throttle = new BandwidthThrottle();
+        Assert.assertNull(throttle.host("a.example"));
+
+        throttle.setDefaultHostRate(1000);
+        BandwidthLimiter a = throttle.host("a.example");
+        Assert.assertEquals(1000, a.getRate());
+        Assert.assertSame(a, throttle.host("a.example"));
+        Assert.assertNotSame(a, throttle.host("b.example"));
+
+        throttle.setDefaultHostRate(2000);
+        Assert.assertEquals(2000, a.getRate());
+
+        // 单独设置限速后不再跟随默认限速
+        throttle.setHostRate("a.example", 500);
+        throttle.setDefaultHostRate(3000);
+        Assert.assertSame(a, throttle.host("a.example"));
+        Assert.assertEquals(500, throttle.getHostRate("a.example"));
+        Assert.assertEquals(3000, throttle.getHostRate("b.example"));
+    }
+}
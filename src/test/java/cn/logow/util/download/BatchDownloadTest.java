@@ -0,0 +1,190 @@
+package cn.logow.util.download;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+public class BatchDownloadTest {
+
+    private String saveDir = "/tmp/test_download_batch";
+    private File manifestFile = new File(saveDir, "batch.manifest");
+    private LocalHttpServer server;
+    private Downloader downloader;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalHttpServer();
+        downloader = new Downloader();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        downloader.close();
+        server.close();
+        FileUtils.deleteDirectory(new File(saveDir));
+    }
+
+    @Test
+    public void testPartialResults() throws Exception {
+        byte[] content = LocalHttpServer.randomBytes(64 * 1024);
+        BatchDownload batch = new BatchDownload();
+        batch.addTask(server.put("/a.bin", content, true), new File(saveDir, "a.bin"));
+        batch.addTask(server.url("/missing.bin"), new File(saveDir, "missing.bin"));
+        batch.addTask(server.put("/c.bin", content, true), new File(saveDir, "c.bin"));
+
+        List<BatchResult> results = downloader.runBatch(batch);
+        Assert.assertEquals(3, results.size());
+        Assert.assertTrue(results.get(0).isSuccess());
+        Assert.assertFalse(results.get(1).isSuccess());
+        Assert.assertNotNull(results.get(1).getError());
+        Assert.assertTrue(results.get(2).isSuccess());
+        Assert.assertArrayEquals(content,
+                FileUtils.readFileToByteArray(new File(results.get(2).getFileEntity().getPath())));
+    }
+
+    @Test
+    public void testCompletionOrder() throws Exception {
+        byte[] content = LocalHttpServer.randomBytes(256 * 1024);
+        BatchDownload batch = new BatchDownload();
+        DownloadTask slow = batch.addTask(server.put("/slow.bin", content, true), new File(saveDir, "slow.bin"));
+        slow.setRateLimit(256 * 1024);
+        batch.addTask(server.put("/fast.bin", content, true), new File(saveDir, "fast.bin"));
+
+        BatchCompletion completion = downloader.submitBatch(batch);
+        Assert.assertEquals(2, completion.size());
+        BatchResult first = completion.take();
+        Assert.assertTrue(first.isSuccess());
+        Assert.assertTrue("fast task must not wait for the slow one", first.getTask() != slow);
+        Assert.assertEquals(1, completion.remaining());
+        Assert.assertSame(slow, completion.take().getTask());
+        Assert.assertNull(completion.take());
+    }
+
+    @Test
+    public void testWarmUpConnections() throws Exception {
+        byte[] content = LocalHttpServer.randomBytes(16 * 1024);
+        BatchDownload batch = new BatchDownload();
+        for (int i = 0; i < 8; i++) {
+            batch.addTask(server.put("/warm-" + i + ".bin", content, true), saveDir);
+        }
+        batch.setWarmUpConnections(3);
+
+        List<FileEntity> files = downloader.executeBatch(batch);
+        Assert.assertEquals(8, files.size());
+        WarmUpResult result = batch.getWarmUpResult();
+        Assert.assertNotNull(result);
+        Assert.assertEquals(1, result.getRoutes());
+        Assert.assertEquals(3, result.getOpened() + result.getReused());
+        Assert.assertEquals(0, result.getFailed());
+        Assert.assertTrue(result.getSetupNanos() > 0);
+
+        // 上次下载的连接仍在连接池中，再次预热时直接使用
+        batch.clear();
+        batch.addTask(server.put("/warm-again.bin", content, true), saveDir);
+        downloader.executeBatch(batch);
+        Assert.assertEquals(1, batch.getWarmUpResult().getReused());
+        Assert.assertEquals(0, batch.getWarmUpResult().getOpened());
+    }
+
+    @Test
+    public void testExecuteBatchCallback() throws Exception {
+        byte[] content = LocalHttpServer.randomBytes(32 * 1024);
+        BatchDownload batch = new BatchDownload();
+        for (int i = 0; i < 8; i++) {
+            batch.addTask(server.put("/cb-" + i + ".bin", content, true), saveDir);
+        }
+        batch.addTask(server.url("/cb-missing.bin"), saveDir);
+
+        final List<BatchResult> results = new ArrayList<>();
+        downloader.executeBatch(batch, new Consumer<BatchResult>() {
+            @Override
+            public void accept(BatchResult result) {
+                results.add(result);
+            }
+        });
+        Assert.assertEquals(9, results.size());
+        int failed = 0;
+        for (BatchResult result : results) {
+            if (!result.isSuccess()) {
+                failed++;
+            }
+        }
+        Assert.assertEquals(1, failed);
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        byte[] small = LocalHttpServer.randomBytes(64 * 1024);
+        byte[] large = LocalHttpServer.randomBytes(2 * 1024 * 1024);
+        String smallUrl = server.put("/small.bin", small, true);
+        // 首次下载在 1MB 处断开
+        String largeUrl = server.put("/large.bin", large, true, 1024 * 1024);
+
+        try (BatchDownload batch = BatchDownload.open(manifestFile)) {
+            batch.addTask(smallUrl, saveDir);
+            batch.addTask(largeUrl, new File(saveDir, "large.bin"));
+            List<BatchResult> results = downloader.runBatch(batch);
+            Assert.assertTrue(results.get(0).isSuccess());
+            Assert.assertFalse(results.get(1).isSuccess());
+        }
+
+        long bytesSent = server.getBytesSent();
+        try (BatchDownload batch = BatchDownload.open(manifestFile)) {
+            Assert.assertEquals(2, batch.size());
+            // 重新添加相同的任务时返回清单中的任务
+            DownloadTask task = batch.addTask(largeUrl, new File(saveDir, "large.bin"));
+            Assert.assertEquals(2, batch.size());
+            Assert.assertFalse(batch.isCompleted(task));
+
+            List<BatchResult> results = downloader.runBatch(batch);
+            Assert.assertTrue(results.get(0).isSkipped());
+            Assert.assertArrayEquals(small,
+                    FileUtils.readFileToByteArray(new File(results.get(0).getFileEntity().getPath())));
+            Assert.assertTrue(results.get(1).isSuccess());
+            Assert.assertFalse(results.get(1).isSkipped());
+            Assert.assertArrayEquals(large,
+                    FileUtils.readFileToByteArray(new File(results.get(1).getFileEntity().getPath())));
+        }
+        // 只下载了剩余的部分
+        Assert.assertTrue(server.getBytesSent() - bytesSent < large.length);
+
+        try (BatchDownload batch = BatchDownload.open(manifestFile)) {
+            for (DownloadTask task : batch) {
+                Assert.assertTrue(batch.isCompleted(task));
+            }
+        }
+    }
+
+    @Test
+    public void testDiscardIncompleteRecord() throws Exception {
+        byte[] content = LocalHttpServer.randomBytes(16 * 1024);
+        String url = server.put("/torn.bin", content, true);
+        try (BatchDownload batch = BatchDownload.open(manifestFile)) {
+            batch.addTask(url, new File(saveDir, "torn.bin"));
+            downloader.runBatch(batch);
+        }
+        // 模拟写入记录时崩溃
+        try (FileOutputStream out = new FileOutputStream(manifestFile, true)) {
+            out.write("add\t1\thttp://".getBytes(StandardCharsets.UTF_8));
+        }
+
+        try (BatchDownload batch = BatchDownload.open(manifestFile)) {
+            Assert.assertEquals(1, batch.size());
+            Assert.assertTrue(batch.isCompleted(batch.iterator().next()));
+            batch.addTask(url + "?v=2", new File(saveDir, "torn-2.bin"));
+        }
+        try (BatchDownload batch = BatchDownload.open(manifestFile)) {
+            Assert.assertEquals(2, batch.size());
+        }
+    }
+}
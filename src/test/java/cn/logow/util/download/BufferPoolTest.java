@@ -0,0 +1,29 @@
+package cn.logow.util.download;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testRoundUpToSizeClass() {
+        ByteBuffer buf = BufferPool.acquire(100 * 1024);
+        Assert.assertEquals(128 * 1024, buf.capacity());
+        BufferPool.release(buf);
+        Assert.assertEquals(128 * 1024, BufferPool.acquire(128 * 1024).capacity());
+    }
+
+    @Test
+    public void testOutOfRangeNotPooled() {
+        // 小于最小规格和大于最大规格时按原大小分配
+        ByteBuffer small = BufferPool.acquire(4096);
+        Assert.assertEquals(4096, small.capacity());
+        BufferPool.release(small);
+        ByteBuffer large = BufferPool.acquire(2 * 1024 * 1024);
+        Assert.assertEquals(2 * 1024 * 1024, large.capacity());
+        BufferPool.release(large);
+        Assert.assertNotSame(small, BufferPool.acquire(4096));
+    }
+}
@@ -0,0 +1,40 @@
+package cn.logow.util.download;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Checksum;
+
+public class ContentDigestTest {
+
+    @Test
+    public void testCrc32cCheckValue() {
+        byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        Checksum fallback = new Crc32c();
+        fallback.update(check, 0, check.length);
+        Assert.assertEquals(0xE3069283L, fallback.getValue());
+
+        Checksum checksum = Crc32c.create();
+        checksum.update(check, 0, check.length);
+        Assert.assertEquals(0xE3069283L, checksum.getValue());
+    }
+
+    @Test
+    public void testCrc32cCombine() {
+        byte[] content = LocalHttpServer.randomBytes(100000);
+        long whole = crc32c(content, 0, content.length);
+        for (int split : new int[]{0, 1, 7, 4096, 65537, content.length}) {
+            long first = crc32c(content, 0, split);
+            long second = crc32c(content, split, content.length - split);
+            Assert.assertEquals("split at " + split, whole,
+                    Crc32c.combine(first, second, content.length - split));
+        }
+    }
+
+    private static long crc32c(byte[] b, int off, int len) {
+        Checksum checksum = new Crc32c();
+        checksum.update(b, off, len);
+        return checksum.getValue();
+    }
+}
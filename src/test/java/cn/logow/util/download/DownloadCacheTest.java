@@ -0,0 +1,161 @@
+package cn.logow.util.download;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class DownloadCacheTest {
+
+    private String saveDir = "/tmp/test_download_cache";
+    private File cacheDir = new File("/tmp/test_download_cache_store");
+    private LocalHttpServer server;
+    private HttpClientEngine engine;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalHttpServer();
+        engine = new HttpClientEngine(false);
+        engine.setCache(new DownloadCache(cacheDir, 1024 * 1024));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        engine.close();
+        server.close();
+        FileUtils.deleteDirectory(new File(saveDir));
+        FileUtils.deleteDirectory(cacheDir);
+    }
+
+    @Test
+    public void testNotModified() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(256 * 1024);
+        String url = server.put("/cached.bin", content, true);
+
+        engine.execute(DownloadTask.create(url, new File(saveDir, "first.bin")));
+        long bytesSent = server.getBytesSent();
+        FileEntity fileEntity = engine.execute(DownloadTask.create(url, new File(saveDir, "second.bin")));
+
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        Assert.assertEquals("cache hit must not transfer content", bytesSent, server.getBytesSent());
+        Assert.assertEquals(1, engine.getMetrics().getCacheHits());
+    }
+
+    @Test
+    public void testInlineSha256Reused() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(64 * 1024);
+        String url = server.put("/sha256.bin", content, true);
+        DownloadTask task = DownloadTask.create(url, new File(saveDir, "first.bin"));
+        task.setDigest(DigestAlgorithm.SHA_256, null);
+        FileEntity first = engine.execute(task);
+
+        // 缓存文件以下载时计算的 SHA-256 命名
+        String hash = first.getDigest().toLowerCase();
+        Assert.assertTrue(new File(new File(new File(cacheDir, "blobs"), hash.substring(0, 2)), hash).isFile());
+        FileEntity second = engine.execute(DownloadTask.create(url, new File(saveDir, "second.bin")));
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(second.getPath())));
+        Assert.assertEquals(1, engine.getMetrics().getCacheHits());
+    }
+
+    @Test
+    public void testModified() throws IOException {
+        String url = server.put("/changed.bin", LocalHttpServer.randomBytes(1000), true);
+        engine.execute(DownloadTask.create(url, new File(saveDir, "old.bin")));
+
+        byte[] content = LocalHttpServer.randomBytes(2000);
+        server.put("/changed.bin", content, true);
+        FileEntity fileEntity = engine.execute(DownloadTask.create(url, new File(saveDir, "new.bin")));
+
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        Assert.assertEquals(0, engine.getMetrics().getCacheHits());
+        Assert.assertEquals(2000, engine.getCache().getSize());
+    }
+
+    @Test
+    public void testModifiedCacheFileDiscarded() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(1000);
+        String url = server.put("/linked.bin", content, true);
+        File first = new File(saveDir, "first.bin");
+        engine.execute(DownloadTask.create(url, first));
+
+        // 目标文件与缓存文件为硬链接，修改目标文件后缓存失效
+        FileUtils.writeByteArrayToFile(first, new byte[1000]);
+        first.setLastModified(first.lastModified() - 10000);
+        FileEntity fileEntity = engine.execute(DownloadTask.create(url, new File(saveDir, "second.bin")));
+
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        Assert.assertEquals(0, engine.getMetrics().getCacheHits());
+    }
+
+    @Test
+    public void testLruEviction() throws Exception {
+        byte[] a = LocalHttpServer.randomBytes(400 * 1024);
+        byte[] b = LocalHttpServer.randomBytes(400 * 1024 + 1);
+        byte[] c = LocalHttpServer.randomBytes(400 * 1024 + 2);
+        String urlA = server.put("/a.bin", a, true);
+        String urlB = server.put("/b.bin", b, true);
+        String urlC = server.put("/c.bin", c, true);
+
+        engine.execute(DownloadTask.create(urlA, saveDir));
+        engine.execute(DownloadTask.create(urlB, saveDir));
+        // 访问 a 后 b 成为最久未使用
+        engine.execute(DownloadTask.create(urlA, saveDir));
+        engine.execute(DownloadTask.create(urlC, saveDir));
+
+        DownloadCache cache = engine.getCache();
+        Assert.assertEquals(2, cache.getEntryCount());
+        Assert.assertEquals(a.length + c.length, cache.getSize());
+        Assert.assertNotNull(cache.get(Utils.resolveURL(urlA)));
+        Assert.assertNull(cache.get(Utils.resolveURL(urlB)));
+
+        // 重新打开缓存时从索引恢复
+        cache.close();
+        DownloadCache reopened = new DownloadCache(cacheDir, 1024 * 1024);
+        Assert.assertEquals(2, reopened.getEntryCount());
+        Assert.assertEquals(cache.getSize(), reopened.getSize());
+    }
+
+    @Test
+    public void testConcurrentBatch() throws Exception {
+        final List<String> urls = new ArrayList<>();
+        final byte[] content = LocalHttpServer.randomBytes(8 * 1024);
+        for (int i = 0; i < 20; i++) {
+            urls.add(server.put("/same-" + i + ".bin", content, true));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int round = 0; round < 3; round++) {
+                List<Future<FileEntity>> futures = new ArrayList<>();
+                for (final String url : urls) {
+                    futures.add(executor.submit(new Callable<FileEntity>() {
+                        @Override
+                        public FileEntity call() throws IOException {
+                            return engine.execute(DownloadTask.create(url, saveDir));
+                        }
+                    }));
+                }
+                for (Future<FileEntity> future : futures) {
+                    Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(future.get().getPath())));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // 相同内容只保存一份
+        Assert.assertEquals(20, engine.getCache().getEntryCount());
+        Assert.assertEquals(content.length, engine.getCache().getSize());
+        Assert.assertEquals(40, engine.getMetrics().getCacheHits());
+    }
+}
@@ -0,0 +1,135 @@
+package cn.logow.util.download;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class DownloadCoalescerTest {
+
+    private String saveDir = "/tmp/test_download_coalesce";
+    private LocalHttpServer server;
+    private Downloader downloader;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalHttpServer();
+        DownloaderConfig config = new DownloaderConfig();
+        config.setCoalesceDuplicates(true);
+        downloader = new Downloader(config);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        downloader.close();
+        server.close();
+        FileUtils.deleteDirectory(new File(saveDir));
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        byte[] content = LocalHttpServer.randomBytes(256 * 1024);
+        String url = server.put("/shared.bin", content, true);
+
+        List<CompletableFuture<FileEntity>> futures = new ArrayList<>();
+        List<ProgressListener> listeners = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            DownloadTask task = i % 2 == 0 ? DownloadTask.create(url, new File(saveDir, "copy-" + i + ".bin"))
+                    : DownloadTask.create(url, saveDir);
+            if (i == 0) {
+                // 第一个任务限速，使其余任务在下载过程中加入
+                task.setRateLimit(512 * 1024);
+            }
+            ProgressListener listener = new ProgressListener();
+            task.bind(listener);
+            listeners.add(listener);
+            futures.add(downloader.submit(task));
+        }
+
+        Set<String> paths = new HashSet<>();
+        for (CompletableFuture<FileEntity> future : futures) {
+            FileEntity fileEntity = future.get(10, TimeUnit.SECONDS);
+            Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+            paths.add(fileEntity.getPath());
+        }
+        Assert.assertEquals("each task must get its own file", 10, paths.size());
+        Assert.assertEquals("content must be transferred once", content.length, server.getBytesSent());
+        for (ProgressListener listener : listeners) {
+            Assert.assertEquals(content.length, listener.getBytesTransferred());
+        }
+    }
+
+    @Test
+    public void testDifferentSettingsNotCoalesced() throws Exception {
+        byte[] content = LocalHttpServer.randomBytes(128 * 1024);
+        String url = server.put("/settings.bin", content, true);
+
+        DownloadTask first = DownloadTask.create(url, new File(saveDir, "direct.bin"));
+        first.setRateLimit(256 * 1024);
+        DownloadTask second = DownloadTask.create(url, new File(saveDir, "temp.bin"));
+        second.setTempFile(true);
+        DownloadTask third = DownloadTask.create(url, new File(saveDir, "urgent.bin"));
+        third.setPriority(DownloadTask.PRIORITY_HIGH);
+        CompletableFuture<FileEntity> f1 = downloader.submit(first);
+        CompletableFuture<FileEntity> f2 = downloader.submit(second);
+        CompletableFuture<FileEntity> f3 = downloader.submit(third);
+
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(f1.get(10, TimeUnit.SECONDS).getPath())));
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(f2.get(10, TimeUnit.SECONDS).getPath())));
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(f3.get(10, TimeUnit.SECONDS).getPath())));
+        // 是否使用临时文件或优先级不同的任务分别下载
+        Assert.assertEquals(content.length * 3, server.getBytesSent());
+    }
+
+    @Test
+    public void testCancelOne() throws Exception {
+        byte[] content = LocalHttpServer.randomBytes(128 * 1024);
+        String url = server.put("/cancel-one.bin", content, true);
+
+        DownloadTask first = DownloadTask.create(url, new File(saveDir, "first.bin"));
+        first.setRateLimit(256 * 1024);
+        CompletableFuture<FileEntity> f1 = downloader.submit(first);
+        CompletableFuture<FileEntity> f2 = downloader.submit(DownloadTask.create(url, new File(saveDir, "second.bin")));
+        CompletableFuture<FileEntity> f3 = downloader.submit(DownloadTask.create(url, new File(saveDir, "third.bin")));
+
+        // 取消第一个任务不影响其他任务
+        Assert.assertTrue(f1.cancel(true));
+        FileEntity fileEntity = f3.get(10, TimeUnit.SECONDS);
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        fileEntity = f2.get(10, TimeUnit.SECONDS);
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        Assert.assertEquals(content.length, server.getBytesSent());
+        // 文件交给仍在等待的任务，不留在已取消任务的位置
+        Assert.assertFalse(new File(saveDir, "first.bin").exists());
+    }
+
+    @Test
+    public void testCancelAll() throws Exception {
+        byte[] content = LocalHttpServer.randomBytes(1024 * 1024);
+        String url = server.put("/cancel-all.bin", content, true);
+
+        DownloadTask first = DownloadTask.create(url, new File(saveDir, "first.bin"));
+        first.setRateLimit(128 * 1024);
+        CompletableFuture<FileEntity> f1 = downloader.submit(first);
+        CompletableFuture<FileEntity> f2 = downloader.submit(DownloadTask.create(url, new File(saveDir, "second.bin")));
+        Thread.sleep(200);
+        f1.cancel(true);
+        f2.cancel(true);
+
+        // 全部取消后下载结束，再次提交时重新下载
+        FileEntity fileEntity = downloader.submit(DownloadTask.create(url, new File(saveDir, "again.bin")))
+                .get(10, TimeUnit.SECONDS);
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        Assert.assertEquals(1, downloader.getMetrics().getCancelled());
+    }
+}
@@ -0,0 +1,108 @@
+package cn.logow.util.download;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutionException;
+
+public class DownloadMetricsTest {
+
+    private String saveDir = "/tmp/test_download_metrics";
+    private LocalHttpServer server;
+    private Downloader downloader;
+
+    @After
+    public void tearDown() throws IOException {
+        if (downloader != null) {
+            downloader.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+        FileUtils.deleteDirectory(new File(saveDir));
+    }
+
+    @Test
+    public void testHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        MetricsSnapshot.Histogram snapshot = histogram.snapshot();
+        Assert.assertEquals(1000, snapshot.getCount());
+        Assert.assertEquals(500500, snapshot.getMean());
+        Assert.assertEquals(1000000, snapshot.getMax());
+        // 分桶的相对误差不超过 1/32
+        assertClose(500000, snapshot.getP50());
+        assertClose(900000, snapshot.getP90());
+        assertClose(990000, snapshot.getP99());
+        assertClose(999000, snapshot.getP999());
+    }
+
+    @Test
+    public void testBucketBounds() {
+        long[] values = {0, 1, 63, 64, 65, 127, 128, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            int index = LatencyHistogram.indexOf(value);
+            Assert.assertTrue(value <= LatencyHistogram.upperBound(index));
+            if (index > 0) {
+                Assert.assertTrue(value > LatencyHistogram.upperBound(index - 1));
+            }
+        }
+    }
+
+    @Test
+    public void testDownloaderMetrics() throws Exception {
+        server = new LocalHttpServer();
+        DownloaderConfig config = new DownloaderConfig();
+        config.setJmxName("metrics-test");
+        downloader = new Downloader(config);
+
+        byte[] content = LocalHttpServer.randomBytes(64 * 1024);
+        for (int i = 0; i < 5; i++) {
+            downloader.downloadTo(server.put("/file-" + i + ".bin", content, true), saveDir);
+        }
+        try {
+            downloader.submit(DownloadTask.create(server.url("/missing.bin"), saveDir)).get();
+            Assert.fail("expected error");
+        } catch (ExecutionException e) {
+            // 下载失败
+        }
+
+        MetricsSnapshot snapshot = downloader.getMetrics().snapshot();
+        Assert.assertEquals(6, snapshot.getStarted());
+        Assert.assertEquals(5, snapshot.getCompleted());
+        Assert.assertEquals(1, snapshot.getFailed());
+        Assert.assertEquals(0, snapshot.getActive());
+        Assert.assertEquals(5L * content.length, snapshot.getBytesTransferred());
+        Assert.assertEquals(5, snapshot.getTimeToFirstByte().getCount());
+        Assert.assertEquals(5, snapshot.getDuration().getCount());
+        Assert.assertTrue(snapshot.getHostThroughput().containsKey("127.0.0.1"));
+        Assert.assertEquals(Long.valueOf(0), snapshot.getGauges().get("scheduler.pending"));
+        Assert.assertEquals(Long.valueOf(0), snapshot.getGauges().get("connections.leased"));
+        Assert.assertTrue(snapshot.getGauges().get("connections.available") > 0);
+
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("cn.logow.util.download:type=Downloader,name=\"metrics-test\"");
+        Assert.assertEquals(5L, mbeanServer.getAttribute(name, "Completed"));
+        CompositeData duration = (CompositeData) mbeanServer.getAttribute(name, "Duration");
+        Assert.assertEquals(5L, duration.get("count"));
+
+        downloader.close();
+        downloader = null;
+        Assert.assertFalse(mbeanServer.isRegistered(name));
+    }
+
+    private static void assertClose(long expected, long actual) {
+        Assert.assertTrue("expected " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected / 32);
+    }
+}
@@ -0,0 +1,400 @@
+package cn.logow.util.download;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DownloadSchedulerTest {
+
+    private String saveDir = "/tmp/test_download_scheduler";
+    private DownloadScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) {
+            scheduler.close();
+        }
+    }
+
+    @Test
+    public void testPerHostLimitAndFairness() throws Exception {
+        DownloaderConfig config = new DownloaderConfig();
+        config.setMaxConcurrency(4);
+        config.setMaxConnPerHost(2);
+        scheduler = new DownloadScheduler(config, new CallableEngine());
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger activeA = new AtomicInteger();
+        final AtomicInteger maxActiveA = new AtomicInteger();
+        List<Future<FileEntity>> futures = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            futures.add(scheduler.submit(task("http://a.example/" + i, new Callable<FileEntity>() {
+                @Override
+                public FileEntity call() throws Exception {
+                    int active = activeA.incrementAndGet();
+                    synchronized (maxActiveA) {
+                        maxActiveA.set(Math.max(maxActiveA.get(), active));
+                    }
+                    release.await();
+                    activeA.decrementAndGet();
+                    return null;
+                }
+            })));
+        }
+
+        // 主机 a 的任务达到上限后，主机 b 的任务不受影响
+        final CountDownLatch hostB = new CountDownLatch(1);
+        scheduler.submit(task("http://b.example/0", new Callable<FileEntity>() {
+            @Override
+            public FileEntity call() {
+                hostB.countDown();
+                return null;
+            }
+        }));
+        Assert.assertTrue(hostB.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(4, scheduler.getPendingCount());
+        // 等待主机 a 已开始的两个任务都进入下载线程
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while (activeA.get() < 2 && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+
+        release.countDown();
+        for (Future<FileEntity> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(2, maxActiveA.get());
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testRejectWhenQueueFull() throws IOException {
+        DownloaderConfig config = new DownloaderConfig();
+        config.setMaxConcurrency(1);
+        config.setQueueCapacity(1);
+        config.setBlockWhenQueueFull(false);
+        scheduler = new DownloadScheduler(config, new CallableEngine());
+
+        Callable<FileEntity> blocking = new Callable<FileEntity>() {
+            @Override
+            public FileEntity call() throws Exception {
+                Thread.sleep(10000);
+                return null;
+            }
+        };
+        scheduler.submit(task("http://a.example/0", blocking));
+        scheduler.submit(task("http://a.example/1", blocking));
+        scheduler.submit(task("http://a.example/2", blocking));
+    }
+
+    @Test
+    public void testNeverRunsOnCallerThread() throws Exception {
+        DownloaderConfig config = new DownloaderConfig();
+        config.setMaxConcurrency(1);
+        config.setQueueCapacity(2);
+        scheduler = new DownloadScheduler(config, new CallableEngine());
+
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger callerRuns = new AtomicInteger();
+        List<Future<FileEntity>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(scheduler.submit(task("http://a.example/" + i, new Callable<FileEntity>() {
+                @Override
+                public FileEntity call() throws Exception {
+                    if (Thread.currentThread() == caller) {
+                        callerRuns.incrementAndGet();
+                    }
+                    Thread.sleep(5);
+                    return null;
+                }
+            })));
+        }
+        for (Future<FileEntity> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(0, callerRuns.get());
+    }
+
+    @Test
+    public void testCancelQueuedTask() throws Exception {
+        DownloaderConfig config = new DownloaderConfig();
+        config.setMaxConcurrency(1);
+        scheduler = new DownloadScheduler(config, new CallableEngine());
+
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<FileEntity> running = scheduler.submit(task("http://a.example/0", new Callable<FileEntity>() {
+            @Override
+            public FileEntity call() throws Exception {
+                release.await();
+                return null;
+            }
+        }));
+        Future<FileEntity> queued = scheduler.submit(task("http://a.example/1", new Callable<FileEntity>() {
+            @Override
+            public FileEntity call() {
+                throw new AssertionError("cancelled task must not run");
+            }
+        }));
+        Assert.assertEquals(1, scheduler.getPendingCount());
+        Assert.assertTrue(queued.cancel(true));
+        Assert.assertEquals(0, scheduler.getPendingCount());
+
+        release.countDown();
+        running.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(0, scheduler.getRunningCount());
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        DownloaderConfig config = new DownloaderConfig();
+        config.setMaxConcurrency(1000);
+        config.setMaxConnPerHost(1000);
+        config.setVirtualThreads(true);
+        scheduler = new DownloadScheduler(config, new CallableEngine());
+
+        // 低版本运行时回退到下载线程池
+        final String threadName = VirtualThreads.isSupported() ? "download-vthread-" : "download-thread";
+        final CountDownLatch started = new CountDownLatch(1000);
+        final CountDownLatch release = new CountDownLatch(1);
+        List<Future<FileEntity>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            futures.add(scheduler.submit(task("http://a.example/" + i, new Callable<FileEntity>() {
+                @Override
+                public FileEntity call() throws Exception {
+                    Assert.assertTrue(Thread.currentThread().getName().startsWith(threadName));
+                    started.countDown();
+                    release.await();
+                    return null;
+                }
+            })));
+        }
+
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1000, scheduler.getRunningCount());
+        release.countDown();
+        for (Future<FileEntity> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testPriorityAndDeadlineOrder() throws Exception {
+        DownloaderConfig config = new DownloaderConfig();
+        config.setMaxConcurrency(1);
+        CallableEngine engine = new CallableEngine();
+        scheduler = new DownloadScheduler(config, engine);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<FileEntity> blocking = scheduler.submit(task("http://a.example/0", new Callable<FileEntity>() {
+            @Override
+            public FileEntity call() throws Exception {
+                release.await();
+                return null;
+            }
+        }));
+
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        List<Future<FileEntity>> futures = new ArrayList<>();
+        futures.add(scheduler.submit(recording("http://b.example/low", DownloadTask.PRIORITY_LOW, 0, order)));
+        futures.add(scheduler.submit(recording("http://a.example/normal", DownloadTask.PRIORITY_NORMAL, 0, order)));
+        futures.add(scheduler.submit(recording("http://c.example/late", DownloadTask.PRIORITY_HIGH, 60, order)));
+        futures.add(scheduler.submit(recording("http://b.example/early", DownloadTask.PRIORITY_HIGH, 30, order)));
+
+        release.countDown();
+        blocking.get(5, TimeUnit.SECONDS);
+        for (Future<FileEntity> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(Arrays.asList("/early", "/late", "/normal", "/low"), order);
+
+        Map<String, MetricsSnapshot.Histogram> queueWait = engine.getMetrics().getQueueWait();
+        Assert.assertEquals(2, queueWait.get(String.valueOf(DownloadTask.PRIORITY_HIGH)).getCount());
+        Assert.assertEquals(1, queueWait.get(String.valueOf(DownloadTask.PRIORITY_LOW)).getCount());
+    }
+
+    @Test
+    public void testShedExpired() throws Exception {
+        DownloaderConfig config = new DownloaderConfig();
+        config.setMaxConcurrency(1);
+        CallableEngine engine = new CallableEngine();
+        scheduler = new DownloadScheduler(config, engine);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(task("http://a.example/0", new Callable<FileEntity>() {
+            @Override
+            public FileEntity call() throws Exception {
+                release.await();
+                return null;
+            }
+        }));
+        DownloadTask expiring = task("http://a.example/1", new Callable<FileEntity>() {
+            @Override
+            public FileEntity call() {
+                throw new AssertionError("expired task must not run");
+            }
+        });
+        expiring.setDeadline(50, TimeUnit.MILLISECONDS);
+        Future<FileEntity> future = scheduler.submit(expiring);
+
+        Thread.sleep(100);
+        release.countDown();
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("expired task must be shed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof DeadlineExceededException);
+        }
+        Assert.assertEquals(1, engine.getMetrics().getShed());
+        Assert.assertEquals(0, scheduler.getPendingCount());
+    }
+
+    @Test
+    public void testPreemptLowPriority() throws Exception {
+        DownloaderConfig config = new DownloaderConfig();
+        config.setMaxConcurrency(1);
+        config.setPreemptive(true);
+        HttpClientEngine engine = new HttpClientEngine(false, 5);
+        scheduler = new DownloadScheduler(config, engine);
+        try (LocalHttpServer server = new LocalHttpServer()) {
+            byte[] bulk = LocalHttpServer.randomBytes(1024 * 1024);
+            byte[] small = LocalHttpServer.randomBytes(16 * 1024);
+            DownloadTask low = DownloadTask.create(server.put("/bulk.bin", bulk, true), saveDir);
+            low.setPriority(DownloadTask.PRIORITY_LOW);
+            low.setRateLimit(512 * 1024);
+            ProgressListener progress = new ProgressListener();
+            low.bind(progress);
+            Future<FileEntity> lowFuture = scheduler.submit(low);
+            while (progress.getBytesTransferred() == 0) {
+                Thread.sleep(10);
+            }
+
+            DownloadTask high = DownloadTask.create(server.put("/small.bin", small, true), saveDir);
+            high.setPriority(DownloadTask.PRIORITY_HIGH);
+            FileEntity highFile = scheduler.submit(high).get(5, TimeUnit.SECONDS);
+            Assert.assertFalse("high priority task must not wait for the bulk download", lowFuture.isDone());
+            Assert.assertArrayEquals(small, FileUtils.readFileToByteArray(new File(highFile.getPath())));
+
+            FileEntity lowFile = lowFuture.get(10, TimeUnit.SECONDS);
+            Assert.assertArrayEquals(bulk, FileUtils.readFileToByteArray(new File(lowFile.getPath())));
+            Assert.assertEquals(1, engine.getMetrics().getPreempted());
+            // 被抢占的下载从断点继续，两次执行共下载一份内容
+            Assert.assertEquals(bulk.length, progress.getBytesTransferred());
+        } finally {
+            engine.close();
+            FileUtils.deleteDirectory(new File(saveDir));
+        }
+    }
+
+    @Test
+    public void testAdaptiveConcurrency() throws Exception {
+        final List<Integer> limits = Collections.synchronizedList(new ArrayList<Integer>());
+        CallableEngine engine = new CallableEngine() {
+            @Override
+            protected void onHostLimitChanged(java.net.URI url, int limit) {
+                limits.add(limit);
+            }
+        };
+        AdaptiveConcurrency concurrency = new AdaptiveConcurrency(1, 8, 2, engine);
+        DownloadTask task = DownloadTask.create("http://a.example/0", saveDir);
+
+        // 并发数用满且响应稳定时逐步增长
+        ArrayDeque<DownloadContext> inflight = new ArrayDeque<>();
+        for (int i = 0; i < 20; i++) {
+            while (inflight.size() < concurrency.limit("a.example")) {
+                DownloadContext context = new DownloadContext(task);
+                concurrency.onStart(context);
+                context.markResponded();
+                inflight.add(context);
+            }
+            concurrency.onComplete(inflight.poll());
+        }
+        int grown = concurrency.limit("a.example");
+        Assert.assertTrue("limit should grow, was " + grown, grown > 2);
+        Assert.assertEquals(2, (int) limits.get(0));
+        Assert.assertEquals(grown, (int) limits.get(limits.size() - 1));
+
+        // 服务器限流时减半，冷却时间内的后续失败不再减少
+        concurrency.onError(inflight.poll(), new HttpStatusException(503, "Service Unavailable"));
+        Assert.assertEquals(grown / 2, concurrency.limit("a.example"));
+        concurrency.onError(inflight.poll(), new HttpStatusException(429, "Too Many Requests"));
+        Assert.assertEquals(grown / 2, concurrency.limit("a.example"));
+
+        // 其他错误不影响并发数
+        DownloadContext context = new DownloadContext(task);
+        concurrency.onStart(context);
+        concurrency.onError(context, new HttpStatusException(404, "Not Found"));
+        Assert.assertEquals(grown / 2, concurrency.limit("a.example"));
+        Assert.assertEquals(2, concurrency.limit("b.example"));
+        Assert.assertEquals(grown / 2, engine.getMetrics().getGauges().get("concurrency.a.example").longValue());
+
+        // 按主机设置的引擎调整自己的连接池
+        final List<Integer> hostLimits = Collections.synchronizedList(new ArrayList<Integer>());
+        CallableEngine hostEngine = new CallableEngine() {
+            @Override
+            protected void onHostLimitChanged(java.net.URI url, int limit) {
+                hostLimits.add(limit);
+            }
+        };
+        concurrency.setHostEngine("C.example", hostEngine);
+        limits.clear();
+        concurrency.onStart(new DownloadContext(DownloadTask.create("http://c.example/0", saveDir)));
+        Assert.assertEquals(Collections.singletonList(2), hostLimits);
+        Assert.assertTrue(limits.isEmpty());
+    }
+
+    private DownloadTask recording(String url, int priority, int deadlineSeconds, final List<String> order)
+            throws IOException {
+        final String path = url.substring(url.lastIndexOf('/'));
+        DownloadTask task = task(url, new Callable<FileEntity>() {
+            @Override
+            public FileEntity call() {
+                order.add(path);
+                return null;
+            }
+        });
+        task.setPriority(priority);
+        if (deadlineSeconds > 0) {
+            task.setDeadline(deadlineSeconds, TimeUnit.SECONDS);
+        }
+        return task;
+    }
+
+    private DownloadTask task(String url, Callable<FileEntity> callable) throws IOException {
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.bind(new DefaultDownloadListener(), callable);
+        return task;
+    }
+
+    /**
+     * 执行任务附件中的操作代替下载
+     */
+    private static class CallableEngine extends DownloadEngine {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected FileEntity doExecute(DownloadTask task, DownloadContext context) throws IOException {
+            try {
+                return ((Callable<FileEntity>) task.attachment()).call();
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
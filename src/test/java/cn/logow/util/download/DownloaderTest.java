@@ -46,7 +46,7 @@ public class DownloaderTest {
         final CountDownLatch latch = new CountDownLatch(1);
         task.bind(new DefaultDownloadListener() {
             @Override
-            public void onProgress(DownloadContext context, int bytes, long timeMillis) {
+            public void onProgress(DownloadContext context, long bytes, long timeMillis) {
                 float rate = (bytes / 1024.0f) / (timeMillis / 1000.0f);
                 System.out.printf("bytes=%d, time=%d, rate=%.2f KB/s%n", bytes, timeMillis, rate);
             }
@@ -95,7 +95,7 @@ public class DownloaderTest {
         final CountDownLatch latch = new CountDownLatch(1);
         task.bind(new DefaultDownloadListener() {
             @Override
-            public void onCancel(DownloadContext context, int bytesTransferred) {
+            public void onCancel(DownloadContext context, long bytesTransferred) {
                 latch.countDown();
             }
         });
@@ -0,0 +1,111 @@
+package cn.logow.util.download;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class FilenameAllocatorTest {
+
+    private String saveDir = "/tmp/test_filename_allocator";
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(new File(saveDir));
+    }
+
+    @Test
+    public void testSequentialNames() throws IOException {
+        Utils.mkdirs(new File(saveDir));
+        new File(saveDir, "index.html").createNewFile();
+        new File(saveDir, "index_2.html").createNewFile();
+
+        FilenameAllocator allocator = FilenameAllocator.forDirectory(saveDir);
+        Assert.assertEquals("index_3.html", allocator.allocate("index.html", ""));
+        Assert.assertEquals("index_4.html", allocator.allocate("index.html", ""));
+        Assert.assertEquals("download", allocator.allocate("download", ""));
+        Assert.assertEquals("download_2", allocator.allocate("download", ""));
+        // 分配时已创建文件占用文件名
+        Assert.assertTrue(new File(saveDir, "index_4.html").isFile());
+        Assert.assertTrue(new File(saveDir, "download_2").isFile());
+    }
+
+    @Test
+    public void testTempSuffix() throws IOException {
+        FilenameAllocator allocator = FilenameAllocator.forDirectory(saveDir);
+        Assert.assertEquals("a.bin", allocator.allocate("a.bin", FileSink.TEMP_SUFFIX));
+        Assert.assertTrue(new File(saveDir, "a.bin" + FileSink.TEMP_SUFFIX).isFile());
+        Assert.assertFalse(new File(saveDir, "a.bin").exists());
+        // 临时文件占用了目标文件名
+        Assert.assertEquals("a_2.bin", allocator.allocate("a.bin", ""));
+    }
+
+    @Test
+    public void testRescanAfterDelete() throws IOException {
+        FilenameAllocator allocator = FilenameAllocator.forDirectory(saveDir);
+        Assert.assertEquals("b.bin", allocator.allocate("b.bin", ""));
+        FileUtils.deleteDirectory(new File(saveDir));
+        Assert.assertEquals("b.bin", allocator.allocate("b.bin", ""));
+
+        allocator.release("b.bin");
+        new File(saveDir, "b.bin").delete();
+        Assert.assertEquals("b.bin", allocator.allocate("b.bin", ""));
+    }
+
+    @Test
+    public void testConcurrentAllocation() throws Exception {
+        final int threads = 8;
+        final int perThread = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<String>>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() {
+                        List<String> names = new ArrayList<>();
+                        for (int j = 0; j < perThread; j++) {
+                            names.add(Utils.uniqueFilename(saveDir, "download.bin"));
+                        }
+                        return names;
+                    }
+                }));
+            }
+            Set<String> names = new HashSet<>();
+            for (Future<List<String>> future : futures) {
+                names.addAll(future.get());
+            }
+            Assert.assertEquals(threads * perThread, names.size());
+            Assert.assertEquals(threads * perThread, new File(saveDir).list().length);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDirectoriesBounded() throws IOException {
+        for (int i = 0; i < FilenameAllocator.MAX_DIRECTORIES + 10; i++) {
+            FilenameAllocator.forDirectory(saveDir + "/dir-" + i);
+        }
+        Assert.assertEquals(FilenameAllocator.MAX_DIRECTORIES, FilenameAllocator.directoryCount());
+
+        // 被淘汰的目录再次使用时重新扫描，不会分配已存在的文件名
+        FilenameAllocator allocator = FilenameAllocator.forDirectory(saveDir + "/dir-0");
+        Assert.assertEquals("a.bin", allocator.allocate("a.bin", ""));
+        for (int i = 0; i < FilenameAllocator.MAX_DIRECTORIES; i++) {
+            FilenameAllocator.forDirectory(saveDir + "/other-" + i);
+        }
+        Assert.assertEquals("a_2.bin", FilenameAllocator.forDirectory(saveDir + "/dir-0").allocate("a.bin", ""));
+    }
+}
@@ -0,0 +1,211 @@
+package cn.logow.util.download;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.AsyncEntityProducers;
+import org.apache.hc.core5.http.nio.entity.DiscardingEntityConsumer;
+import org.apache.hc.core5.http.nio.support.AsyncResponseBuilder;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOSession;
+import org.apache.hc.core5.reactor.IOSessionListener;
+import org.apache.hc.core5.reactor.ListenerEndpoint;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Http2ClientEngineTest {
+
+    private String saveDir = "/tmp/test_http2_client_engine";
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private HttpAsyncServer server;
+    private String baseUrl;
+    private Http2ClientEngine engine;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        // 明文 HTTP/2 (h2c) 服务器，记录建立的连接数
+        server = H2ServerBootstrap.bootstrap()
+                .setVersionPolicy(HttpVersionPolicy.FORCE_HTTP_2)
+                .setIOSessionListener(new IOSessionListener() {
+                    @Override
+                    public void connected(IOSession session) {
+                        connections.incrementAndGet();
+                    }
+
+                    @Override
+                    public void startTls(IOSession session) {
+                    }
+
+                    @Override
+                    public void inputReady(IOSession session) {
+                    }
+
+                    @Override
+                    public void outputReady(IOSession session) {
+                    }
+
+                    @Override
+                    public void timeout(IOSession session) {
+                    }
+
+                    @Override
+                    public void exception(IOSession session, Exception ex) {
+                    }
+
+                    @Override
+                    public void disconnected(IOSession session) {
+                    }
+                })
+                .register("*", new AsyncServerRequestHandler<Message<HttpRequest, Void>>() {
+                    @Override
+                    public AsyncRequestConsumer<Message<HttpRequest, Void>> prepare(
+                            HttpRequest request, EntityDetails entityDetails, HttpContext context) {
+                        return new BasicRequestConsumer<>(
+                                entityDetails != null ? new DiscardingEntityConsumer<Void>() : null);
+                    }
+
+                    @Override
+                    public void handle(Message<HttpRequest, Void> message, ResponseTrigger responseTrigger,
+                                       HttpContext context) throws HttpException, IOException {
+                        byte[] content = files.get(message.getHead().getPath());
+                        if (content == null) {
+                            responseTrigger.submitResponse(AsyncResponseBuilder.create(404).build(), context);
+                        } else {
+                            responseTrigger.submitResponse(AsyncResponseBuilder.create(200)
+                                    .setEntity(AsyncEntityProducers.create(content, ContentType.APPLICATION_OCTET_STREAM))
+                                    .build(), context);
+                        }
+                    }
+                })
+                .create();
+        server.start();
+        ListenerEndpoint endpoint = server.listen(new InetSocketAddress("127.0.0.1", 0), URIScheme.HTTP).get();
+        baseUrl = "http://127.0.0.1:" + ((InetSocketAddress) endpoint.getAddress()).getPort();
+        engine = new Http2ClientEngine(false);
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        engine.close();
+        executor.shutdownNow();
+        server.close(CloseMode.IMMEDIATE);
+        FileUtils.deleteDirectory(new File(saveDir));
+    }
+
+    private String put(String path, byte[] content) {
+        files.put(path, content);
+        return baseUrl + path;
+    }
+
+    @Test
+    public void testMultiplexedDownloads() throws Exception {
+        List<byte[]> contents = new ArrayList<>();
+        List<CompletableFuture<FileEntity>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            byte[] content = LocalHttpServer.randomBytes(1024 + i * 97);
+            contents.add(content);
+            String url = put("/thumb-" + i + ".bin", content);
+            futures.add(engine.executeAsync(DownloadTask.create(url, saveDir), executor));
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            FileEntity fileEntity = futures.get(i).get();
+            Assert.assertArrayEquals(contents.get(i), FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        }
+        // 所有下载复用同一条连接
+        Assert.assertEquals(1, connections.get());
+    }
+
+    @Test
+    public void testLargerThanStreamWindow() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(Http2ClientEngine.DEFAULT_STREAM_WINDOW_SIZE * 3 + 12345);
+        String url = put("/large.bin", content);
+        ProgressListener listener = new ProgressListener();
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.bind(listener);
+
+        FileEntity fileEntity = engine.execute(task);
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        Assert.assertEquals(content.length, fileEntity.getFileSize());
+        Assert.assertEquals(content.length, listener.getBytesTransferred());
+    }
+
+    @Test
+    public void testRateLimit() throws IOException {
+        engine.close();
+        // 窗口较小时限速通过暂缓窗口更新生效
+        engine = new Http2ClientEngine(false, 65535);
+        byte[] content = LocalHttpServer.randomBytes(512 * 1024);
+        String url = put("/throttled.bin", content);
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.setRateLimit(512 * 1024);
+
+        long start = System.currentTimeMillis();
+        FileEntity fileEntity = engine.execute(task);
+        long elapsed = System.currentTimeMillis() - start;
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        // 扣除突发量和首个窗口后约需 700ms
+        Assert.assertTrue("elapsed " + elapsed, elapsed >= 500);
+    }
+
+    @Test
+    public void testCommitOffIoThread() throws Exception {
+        byte[] content = LocalHttpServer.randomBytes(64 * 1024);
+        String url = put("/commit.bin", content);
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.setTempFile(true);
+        task.setDurability(DownloadTask.Durability.ON_COMPLETE);
+        final String[] completeThread = new String[1];
+        task.bind(new ProgressListener() {
+            @Override
+            public void onComplete(DownloadContext context) {
+                super.onComplete(context);
+                completeThread[0] = Thread.currentThread().getName();
+            }
+        });
+
+        FileEntity fileEntity = engine.executeAsync(task, executor).get();
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        // 打开文件、同步和重命名在文件线程池中执行，不占用 I/O 线程
+        Assert.assertTrue(completeThread[0], completeThread[0].startsWith("download-h2-file"));
+    }
+
+    @Test
+    public void testNotFound() throws IOException {
+        try {
+            engine.execute(DownloadTask.create(baseUrl + "/missing.bin", saveDir));
+            Assert.fail("Expected download failure");
+        } catch (DownloadException e) {
+            Assert.assertTrue(e.getCause() instanceof HttpStatusException);
+            Assert.assertEquals(404, ((HttpStatusException) e.getCause()).getStatusCode());
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package cn.logow.util.download;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+public class HttpAsyncClientEngineTest {
+
+    private String saveDir = "/tmp/test_http_async_client_engine";
+    private LocalHttpServer server;
+    private Downloader downloader;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalHttpServer();
+        DownloaderConfig config = new DownloaderConfig();
+        config.setEngineType(DownloaderConfig.EngineType.HTTP_ASYNC_CLIENT);
+        config.setMaxConcurrency(200);
+        config.setMaxConnPerHost(50);
+        downloader = new Downloader(config);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        downloader.close();
+        server.close();
+        FileUtils.deleteDirectory(new File(saveDir));
+    }
+
+    @Test
+    public void testAsyncDownload() throws Exception {
+        byte[] content = LocalHttpServer.randomBytes(512 * 1024);
+        String url = server.put("/async.bin", content, true);
+        ProgressListener listener = new ProgressListener();
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.bind(listener);
+
+        FileEntity fileEntity = downloader.submit(task).get();
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        Assert.assertEquals(content.length, listener.getBytesTransferred());
+        Assert.assertTrue(task.isDone());
+    }
+
+    @Test
+    public void testBatchDownload() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(4096);
+        BatchDownload batch = new BatchDownload();
+        for (int i = 0; i < 500; i++) {
+            String url = server.put("/small-" + i + ".bin", content, false);
+            batch.addTask(url, saveDir);
+        }
+
+        List<FileEntity> entities = downloader.executeBatch(batch);
+        Assert.assertEquals(500, entities.size());
+        for (FileEntity entity : entities) {
+            Assert.assertEquals(content.length, new File(entity.getPath()).length());
+        }
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        byte[] content = LocalHttpServer.randomBytes(256 * 1024);
+        String url = server.put("/throttled.bin", content, true);
+        downloader.getBandwidthThrottle().setGlobalRate(256 * 1024);
+
+        long start = System.currentTimeMillis();
+        FileEntity fileEntity = downloader.submit(DownloadTask.create(url, saveDir)).get();
+        long elapsed = System.currentTimeMillis() - start;
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        Assert.assertTrue("elapsed " + elapsed, elapsed >= 700);
+    }
+
+    @Test(expected = ExecutionException.class)
+    public void testDownloadError() throws Exception {
+        downloader.submit(DownloadTask.create(server.url("/missing.bin"), saveDir)).get();
+    }
+
+    @Test
+    public void testStreamToOutputStream() throws Exception {
+        byte[] content = LocalHttpServer.randomBytes(512 * 1024);
+        String url = server.put("/streamed.bin", content, false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DownloadTask task = DownloadTask.create(url, out);
+        ProgressListener listener = new ProgressListener();
+        task.bind(listener);
+
+        FileEntity fileEntity = downloader.submit(task).get();
+        Assert.assertArrayEquals(content, out.toByteArray());
+        Assert.assertNull(fileEntity.getPath());
+        Assert.assertEquals(content.length, listener.getBytesTransferred());
+    }
+
+    @Test
+    public void testDigest() throws Exception {
+        byte[] content = LocalHttpServer.randomBytes(512 * 1024);
+        String url = server.put("/digest.bin", content, false);
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.setDigest(DigestAlgorithm.SHA_256, DigestUtils.sha256Hex(content));
+
+        FileEntity fileEntity = downloader.submit(task).get();
+        Assert.assertEquals(DigestUtils.sha256Hex(content), fileEntity.getDigest());
+    }
+
+    @Test
+    public void testCommitOffIoThread() throws Exception {
+        byte[] content = LocalHttpServer.randomBytes(64 * 1024);
+        String url = server.put("/commit.bin", content, false);
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.setTempFile(true);
+        task.setDurability(DownloadTask.Durability.ON_COMPLETE);
+        final String[] completeThread = new String[1];
+        task.bind(new ProgressListener() {
+            @Override
+            public void onComplete(DownloadContext context) {
+                super.onComplete(context);
+                completeThread[0] = Thread.currentThread().getName();
+            }
+        });
+
+        FileEntity fileEntity = downloader.submit(task).get();
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        // 同步和重命名在文件线程池中执行，不占用 I/O 线程
+        Assert.assertTrue(completeThread[0], completeThread[0].startsWith("download-async-file"));
+    }
+
+    @Test
+    public void testEmptyFile() throws Exception {
+        String url = server.put("/empty.bin", new byte[0], false);
+
+        FileEntity fileEntity = downloader.submit(DownloadTask.create(url, saveDir)).get();
+        Assert.assertTrue(new File(fileEntity.getPath()).isFile());
+        Assert.assertEquals(0, new File(fileEntity.getPath()).length());
+    }
+}
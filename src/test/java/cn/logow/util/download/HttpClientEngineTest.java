@@ -0,0 +1,638 @@
+package cn.logow.util.download;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Checksum;
+import java.util.zip.GZIPInputStream;
+
+public class HttpClientEngineTest {
+
+    private String saveDir = "/tmp/test_http_client_engine";
+    private LocalHttpServer server;
+    private HttpClientEngine engine;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalHttpServer();
+        engine = new HttpClientEngine(false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        engine.close();
+        server.close();
+        FileUtils.deleteDirectory(new File(saveDir));
+    }
+
+    @Test
+    public void testSegmentedDownload() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(1024 * 1024 + 17);
+        String url = server.put("/segmented.bin", content, true);
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.setSegments(4);
+        task.setMinSegmentSize(64 * 1024);
+
+        FileEntity fileEntity = engine.execute(task);
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        Assert.assertEquals(content.length, fileEntity.getFileSize());
+        // 探测请求的响应作为第一个分段，另外三个分段各一个请求
+        Assert.assertEquals(4, server.getRequestCount());
+    }
+
+    @Test
+    public void testSegmentedFallbackWhenRangeIgnored() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(512 * 1024);
+        String url = server.put("/plain.bin", content, false);
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.setSegments(4);
+        task.setMinSegmentSize(64 * 1024);
+
+        FileEntity fileEntity = engine.execute(task);
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        // 探测请求的完整响应直接用于下载
+        Assert.assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void testSmallFileNotSegmented() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(1000);
+        String url = server.put("/small.bin", content, true);
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.setSegments(4);
+
+        FileEntity fileEntity = engine.execute(task);
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        // 直接使用探测请求的响应，不再发送第二个请求
+        Assert.assertEquals(1, server.getRequestCount());
+        Assert.assertEquals(content.length, server.getBytesSent());
+    }
+
+    @Test
+    public void testResumeAfterFailure() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(2 * 1024 * 1024);
+        String url = server.put("/resume.bin", content, true, 1024 * 1024 + 3);
+        try {
+            engine.execute(DownloadTask.create(url, saveDir));
+            Assert.fail("Expected download failure");
+        } catch (DownloadException e) {
+            // 首次下载中途断开
+        }
+
+        FileEntity fileEntity = engine.execute(DownloadTask.create(url, saveDir));
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        Assert.assertEquals("resume.bin", new File(fileEntity.getPath()).getName());
+        Assert.assertEquals(content.length, server.getBytesSent());
+        Assert.assertEquals(1, new File(saveDir).list().length);
+    }
+
+    @Test
+    public void testFailureTruncatesPreallocatedFile() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(2 * 1024 * 1024);
+        String url = server.put("/truncate.bin", content, true, 1024 * 1024 + 3);
+        File file = new File(saveDir, "truncate.bin");
+        DownloadTask task = DownloadTask.create(url, file);
+        task.setResumable(false);
+        try {
+            engine.execute(task);
+            Assert.fail("Expected download failure");
+        } catch (DownloadException e) {
+            // 中途断开
+        }
+
+        // 没有断点日志时文件长度即已下载的数据，不保留预分配的长度
+        Assert.assertTrue(file.isFile());
+        Assert.assertEquals(1024 * 1024 + 3, file.length());
+    }
+
+    @Test
+    public void testSegmentedResumeAfterFailure() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(4 * 1024 * 1024);
+        String url = server.put("/segmented-resume.bin", content, true, 512 * 1024);
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.setSegments(4);
+        task.setMinSegmentSize(256 * 1024);
+        try {
+            engine.execute(task);
+            Assert.fail("Expected download failure");
+        } catch (DownloadException e) {
+            // 其中一个分段中途断开
+        }
+
+        task = DownloadTask.create(url, saveDir);
+        task.setSegments(4);
+        FileEntity fileEntity = engine.execute(task);
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        Assert.assertTrue(server.getBytesSent() < 2L * content.length);
+        Assert.assertEquals(1, new File(saveDir).list().length);
+    }
+
+    @Test
+    public void testConcurrentSameUrlDoNotShareJournal() throws Exception {
+        byte[] content = LocalHttpServer.randomBytes(2 * 1024 * 1024);
+        String url = server.put("/same-url.bin", content, true);
+        final DownloadTask first = DownloadTask.create(url, saveDir);
+        first.setResumable(true);
+        first.setRateLimit(2 * 1024 * 1024);
+        final ProgressListener listener = new ProgressListener();
+        first.bind(listener);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<FileEntity> future = executor.submit(new Callable<FileEntity>() {
+                @Override
+                public FileEntity call() throws Exception {
+                    return engine.execute(first);
+                }
+            });
+            // 第一个下载已保存日志并开始写入
+            long deadline = System.currentTimeMillis() + 5000;
+            while (listener.getBytesTransferred() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            DownloadTask second = DownloadTask.create(url, saveDir);
+            second.setResumable(true);
+            FileEntity secondFile = engine.execute(second);
+            FileEntity firstFile = future.get(10, TimeUnit.SECONDS);
+
+            Assert.assertNotEquals(firstFile.getPath(), secondFile.getPath());
+            Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(firstFile.getPath())));
+            Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(secondFile.getPath())));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testResumeRestartsWhenFileChanged() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(2 * 1024 * 1024);
+        String url = server.put("/changed.bin", content, true, 1024 * 1024);
+        try {
+            engine.execute(DownloadTask.create(url, saveDir));
+            Assert.fail("Expected download failure");
+        } catch (DownloadException e) {
+            // 首次下载中途断开
+        }
+
+        byte[] changed = LocalHttpServer.randomBytes(3 * 1024 * 1024);
+        server.put("/changed.bin", changed, true);
+        FileEntity fileEntity = engine.execute(DownloadTask.create(url, saveDir));
+        Assert.assertArrayEquals(changed, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        Assert.assertEquals(1, new File(saveDir).list().length);
+    }
+
+    @Test
+    public void testRateLimit() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(512 * 1024);
+        String url = server.put("/throttled.bin", content, true);
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.setSegments(2);
+        task.setMinSegmentSize(64 * 1024);
+        // 两个分段共享任务限速
+        task.setRateLimit(512 * 1024);
+
+        long start = System.currentTimeMillis();
+        FileEntity fileEntity = engine.execute(task);
+        long elapsed = System.currentTimeMillis() - start;
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        // 扣除 200ms 的突发量后约需 800ms
+        Assert.assertTrue("elapsed " + elapsed, elapsed >= 700);
+    }
+
+    @Test
+    public void testHostRateLimit() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(256 * 1024);
+        String url = server.put("/host-throttled.bin", content, true);
+        engine.getBandwidthThrottle().setHostRate("127.0.0.1", 256 * 1024);
+
+        long start = System.currentTimeMillis();
+        engine.execute(DownloadTask.create(url, saveDir));
+        long elapsed = System.currentTimeMillis() - start;
+        Assert.assertTrue("elapsed " + elapsed, elapsed >= 700);
+    }
+
+    @Test
+    public void testStreamToOutputStream() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(512 * 1024);
+        String url = server.put("/streamed.bin", content, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DownloadTask task = DownloadTask.create(url, out);
+        // 流式下载忽略分段设置
+        task.setSegments(4);
+        task.setMinSegmentSize(64 * 1024);
+        ProgressListener listener = new ProgressListener();
+        task.bind(listener);
+
+        FileEntity fileEntity = engine.execute(task);
+        Assert.assertArrayEquals(content, out.toByteArray());
+        Assert.assertNull(fileEntity.getPath());
+        Assert.assertEquals(content.length, listener.getBytesTransferred());
+        Assert.assertEquals(1, server.getRequestCount());
+        Assert.assertFalse(new File(saveDir).exists());
+    }
+
+    @Test
+    public void testStreamConsumerError() throws IOException {
+        String url = server.put("/stream-error.bin", LocalHttpServer.randomBytes(512 * 1024), true);
+        DownloadTask task = DownloadTask.create(url, new ContentConsumer() {
+            private int received;
+
+            @Override
+            public void consume(ByteBuffer chunk) throws IOException {
+                received += chunk.remaining();
+                chunk.position(chunk.limit());
+                if (received > 64 * 1024) {
+                    throw new IOException("Consumer failed");
+                }
+            }
+        });
+
+        try {
+            engine.execute(task);
+            Assert.fail("consumer error must fail the download");
+        } catch (DownloadException e) {
+            Assert.assertEquals("Consumer failed", e.getCause().getMessage());
+        }
+        Assert.assertFalse(task.isCancelled());
+        Assert.assertTrue(task.isDone());
+    }
+
+    @Test
+    public void testSegmentedCrc32c() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(1024 * 1024 + 17);
+        String url = server.put("/crc32c.bin", content, true);
+        Checksum checksum = Crc32c.create();
+        checksum.update(content, 0, content.length);
+        String expected = String.format("%08x", checksum.getValue());
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.setSegments(4);
+        task.setMinSegmentSize(64 * 1024);
+        task.setDigest(DigestAlgorithm.CRC32C, expected.toUpperCase());
+
+        FileEntity fileEntity = engine.execute(task);
+        Assert.assertEquals(expected, fileEntity.getDigest());
+        Assert.assertEquals(4, server.getRequestCount());
+    }
+
+    @Test
+    public void testDigestAfterResume() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(2 * 1024 * 1024);
+        String url = server.put("/digest-resume.bin", content, true, 1024 * 1024 + 3);
+        try {
+            engine.execute(DownloadTask.create(url, saveDir));
+            Assert.fail("Expected download failure");
+        } catch (DownloadException e) {
+            // 首次下载中途断开
+        }
+
+        // 继续下载前从文件读取已写入的部分
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.setDigest(DigestAlgorithm.SHA_256, DigestUtils.sha256Hex(content));
+        FileEntity fileEntity = engine.execute(task);
+        Assert.assertEquals(DigestUtils.sha256Hex(content), fileEntity.getDigest());
+        Assert.assertEquals(content.length, server.getBytesSent());
+    }
+
+    @Test
+    public void testSegmentedSequentialDigest() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(1024 * 1024);
+        String url = server.put("/segmented-md5.bin", content, true);
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.setSegments(4);
+        task.setMinSegmentSize(64 * 1024);
+        task.setDigest(DigestAlgorithm.MD5, null);
+
+        Assert.assertEquals(DigestUtils.md5Hex(content), engine.execute(task).getDigest());
+    }
+
+    @Test
+    public void testDigestMismatch() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(2 * 1024 * 1024);
+        String url = server.put("/corrupted.bin", content, true);
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.setDigest(DigestAlgorithm.SHA_256, DigestUtils.sha256Hex("other content"));
+
+        try {
+            engine.execute(task);
+            Assert.fail("Expected digest mismatch");
+        } catch (DownloadException e) {
+            Assert.assertTrue(e.getCause() instanceof DigestMismatchException);
+        }
+        // 文件及断点日志均已删除
+        Assert.assertEquals(0, new File(saveDir).list().length);
+    }
+
+    @Test
+    public void testDecodeCompressed() throws IOException {
+        byte[] content = csv(20000);
+        String url = server.putCompressible("/dump.csv", content);
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.setCompression(DownloadTask.Compression.DECODE);
+        final long[] wireBytes = new long[1];
+        task.bind(new ProgressListener() {
+            @Override
+            public void onComplete(DownloadContext context) {
+                super.onComplete(context);
+                wireBytes[0] = context.getWireBytesTransferred();
+            }
+        });
+
+        FileEntity fileEntity = engine.execute(task);
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        Assert.assertEquals(content.length, fileEntity.getFileSize());
+        Assert.assertEquals(server.getBytesSent(), wireBytes[0]);
+        Assert.assertTrue("sent " + server.getBytesSent(), server.getBytesSent() < content.length / 5);
+    }
+
+    @Test
+    public void testRawCompressed() throws IOException {
+        byte[] content = csv(2000);
+        String url = server.putCompressible("/raw.csv", content);
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.setCompression(DownloadTask.Compression.RAW);
+
+        FileEntity fileEntity = engine.execute(task);
+        try (InputStream in = new GZIPInputStream(new FileInputStream(fileEntity.getPath()))) {
+            Assert.assertArrayEquals(content, IOUtils.toByteArray(in));
+        }
+        Assert.assertEquals(server.getBytesSent(), fileEntity.getFileSize());
+    }
+
+    @Test
+    public void testIdentityByDefault() throws IOException {
+        byte[] content = csv(2000);
+        String url = server.putCompressible("/identity.csv", content);
+
+        FileEntity fileEntity = engine.execute(DownloadTask.create(url, saveDir));
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        Assert.assertEquals(content.length, server.getBytesSent());
+    }
+
+    @Test
+    public void testTempFileRenamedOnComplete() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(1024 * 1024);
+        String url = server.put("/atomic.bin", content, true);
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.setTempFile(true);
+        task.setDurability(DownloadTask.Durability.ON_COMPLETE);
+
+        FileEntity fileEntity = engine.execute(task);
+        Assert.assertEquals("atomic.bin", new File(fileEntity.getPath()).getName());
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        Assert.assertArrayEquals(new String[]{"atomic.bin"}, new File(saveDir).list());
+    }
+
+    @Test
+    public void testTempFileResumeAfterFailure() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(2 * 1024 * 1024);
+        String url = server.put("/partial.bin", content, true, 1024 * 1024 + 3);
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.setTempFile(true);
+        try {
+            engine.execute(task);
+            Assert.fail("Expected download failure");
+        } catch (DownloadException e) {
+            // 未完成的内容留在临时文件中，目标文件不存在
+        }
+        Assert.assertTrue(new File(saveDir, "partial.bin" + FileSink.TEMP_SUFFIX).isFile());
+        Assert.assertFalse(new File(saveDir, "partial.bin").exists());
+
+        task = DownloadTask.create(url, saveDir);
+        task.setTempFile(true);
+        FileEntity fileEntity = engine.execute(task);
+        Assert.assertEquals("partial.bin", new File(fileEntity.getPath()).getName());
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        Assert.assertEquals(content.length, server.getBytesSent());
+        Assert.assertEquals(1, new File(saveDir).list().length);
+    }
+
+    @Test
+    public void testPeriodicSyncJournal() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(2 * 1024 * 1024);
+        String url = server.put("/periodic.bin", content, true, 1024 * 1024 + 3);
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.setDurability(DownloadTask.Durability.PERIODIC);
+        task.setSyncInterval(256 * 1024);
+        try {
+            engine.execute(task);
+            Assert.fail("Expected download failure");
+        } catch (DownloadException e) {
+            // 断点日志只记录已同步的进度
+        }
+
+        FileEntity fileEntity = engine.execute(DownloadTask.create(url, saveDir));
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        // 最多重新下载一个同步间隔的内容
+        long resent = server.getBytesSent() - content.length;
+        Assert.assertTrue("resent " + resent, resent >= 0 && resent < 512 * 1024);
+    }
+
+    @Test
+    public void testRetryContinuesWithRange() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(2 * 1024 * 1024);
+        String url = server.put("/retry.bin", content, true, 1024 * 1024 + 3);
+        engine.setRetryPolicy(fastRetry());
+
+        FileEntity fileEntity = engine.execute(DownloadTask.create(url, saveDir));
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        // 重试从断点继续，不重新下载已完成的部分
+        Assert.assertEquals(content.length, server.getBytesSent());
+        Assert.assertEquals(1, engine.getMetrics().getRetries());
+        Assert.assertEquals(1, new File(saveDir).list().length);
+    }
+
+    @Test
+    public void testRetryAfter() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(16 * 1024);
+        String url = server.put("/busy.bin", content, true);
+        server.failWith("/busy.bin", 503, 2, "1");
+        RetryPolicy policy = fastRetry();
+        policy.setBackoff(10, 2000, TimeUnit.MILLISECONDS);
+        engine.setRetryPolicy(policy);
+
+        long start = System.nanoTime();
+        FileEntity fileEntity = engine.execute(DownloadTask.create(url, saveDir));
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        Assert.assertTrue("must wait as Retry-After requires",
+                System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(2));
+        Assert.assertEquals(2, engine.getMetrics().getRetries());
+    }
+
+    @Test
+    public void testNoRetryOnClientError() throws IOException {
+        engine.setRetryPolicy(fastRetry());
+        try {
+            engine.execute(DownloadTask.create(server.url("/missing.bin"), saveDir));
+            Assert.fail("Expected download failure");
+        } catch (DownloadException e) {
+            // 404 不重试
+        }
+        Assert.assertEquals(1, server.getRequestCount());
+        Assert.assertEquals(0, engine.getMetrics().getRetries());
+    }
+
+    @Test
+    public void testRetryBudget() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(16 * 1024);
+        String url = server.put("/flaky.bin", content, true);
+        server.failWith("/flaky.bin", 502, 3, null);
+        RetryPolicy policy = fastRetry();
+        policy.setRetryBudget(0, 1);
+        engine.setRetryPolicy(policy);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                engine.execute(DownloadTask.create(url, saveDir));
+                Assert.fail("Expected download failure");
+            } catch (DownloadException e) {
+                // 第一个下载用完主机的预算，第二个不再重试
+            }
+        }
+        Assert.assertEquals(1, engine.getMetrics().getRetries());
+        Assert.assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void testSlowListenerDoesNotBlockDownload() throws Exception {
+        byte[] content = LocalHttpServer.randomBytes(2 * 1024 * 1024);
+        String url = server.put("/progress.bin", content, true);
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.setSegments(4);
+        task.setMinSegmentSize(64 * 1024);
+        task.setRateLimit(4 * 1024 * 1024);
+        final CountDownLatch release = new CountDownLatch(1);
+        final DownloadContext[] started = new DownloadContext[1];
+        final AtomicInteger calls = new AtomicInteger();
+        ProgressListener listener = new ProgressListener() {
+            @Override
+            public void onStart(DownloadContext context) {
+                super.onStart(context);
+                started[0] = context;
+            }
+
+            @Override
+            public void onProgress(DownloadContext context, long bytes, long timeMillis) {
+                super.onProgress(context, bytes, timeMillis);
+                calls.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        task.bind(listener);
+
+        ProgressDispatcher dispatcher = new ProgressDispatcher(50);
+        engine.setProgressDispatcher(dispatcher);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final DownloadTask t = task;
+            Future<FileEntity> future = executor.submit(new Callable<FileEntity>() {
+                @Override
+                public FileEntity call() throws Exception {
+                    return engine.execute(t);
+                }
+            });
+            // 监听器阻塞在第一次进度时下载继续进行
+            long deadline = System.currentTimeMillis() + 10000;
+            while ((calls.get() == 0 || started[0].getBytesTransferred() < content.length)
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(content.length, started[0].getBytesTransferred());
+            Assert.assertEquals(1, calls.get());
+
+            release.countDown();
+            FileEntity fileEntity = future.get(10, TimeUnit.SECONDS);
+            Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+            // 阻塞期间的进度合并发送，完成前全部送达
+            Assert.assertEquals(content.length, listener.getBytesTransferred());
+            Assert.assertTrue("progress calls " + calls.get(), calls.get() <= 3);
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+            dispatcher.close();
+        }
+    }
+
+    @Test
+    public void testMappedSegmentedDownload() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(4 * 1024 * 1024 + 17);
+        String url = server.put("/mapped.bin", content, true);
+        Checksum checksum = Crc32c.create();
+        checksum.update(content, 0, content.length);
+        String expected = String.format("%08x", checksum.getValue());
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.setSegments(4);
+        task.setMinSegmentSize(256 * 1024);
+        task.setMappedWindowSize(64 * 1024);
+        task.setDigest(DigestAlgorithm.CRC32C, expected);
+        // 映射区域少于分段数，分段获取许可后才发出请求，轮流映射
+        engine.setMaxMappedRegions(2);
+
+        FileEntity fileEntity = engine.execute(task);
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        Assert.assertEquals(expected, fileEntity.getDigest());
+        Assert.assertEquals(content.length, new File(fileEntity.getPath()).length());
+    }
+
+    @Test
+    public void testMappedResumeAfterFailure() throws IOException {
+        byte[] content = LocalHttpServer.randomBytes(4 * 1024 * 1024);
+        String url = server.put("/mapped-resume.bin", content, true, 512 * 1024 + 5);
+        DownloadTask task = DownloadTask.create(url, saveDir);
+        task.setSegments(4);
+        task.setMinSegmentSize(256 * 1024);
+        task.setMappedWindowSize(128 * 1024);
+        task.setDurability(DownloadTask.Durability.PERIODIC);
+        task.setSyncInterval(256 * 1024);
+        try {
+            engine.execute(task);
+            Assert.fail("Expected download failure");
+        } catch (DownloadException e) {
+            // 其中一个分段中途断开，映射窗口随之解除
+        }
+
+        task = DownloadTask.create(url, saveDir);
+        task.setSegments(4);
+        task.setMappedWindowSize(128 * 1024);
+        FileEntity fileEntity = engine.execute(task);
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(fileEntity.getPath())));
+        Assert.assertTrue(server.getBytesSent() < 2L * content.length);
+    }
+
+    private static RetryPolicy fastRetry() {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setBackoff(10, 100, TimeUnit.MILLISECONDS);
+        policy.setMaxRetries(3);
+        return policy;
+    }
+
+    private static byte[] csv(int rows) {
+        StringBuilder sb = new StringBuilder("id,name,value\n");
+        for (int i = 0; i < rows; i++) {
+            sb.append(i).append(",item-").append(i % 100).append(',').append(i * 7 % 1000).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,220 @@
+package cn.logow.util.download;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 测试用的本地 HTTP 服务器，支持 Range 请求和 gzip 压缩传输
+ */
+class LocalHttpServer implements AutoCloseable {
+
+    static {
+        // 关闭 Nagle 算法，避免小文件响应受延迟确认影响
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        // 数万并发连接时保留空闲连接，避免客户端复用已被关闭的连接
+        System.setProperty("sun.net.httpserver.maxIdleConnections", "20000");
+    }
+
+    private static final int WRITE_CHUNK = 64 * 1024;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, Resource> resources = new ConcurrentHashMap<>();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    LocalHttpServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 4096);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    requestCount.incrementAndGet();
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    String put(String path, byte[] content, boolean acceptRanges) {
+        return put(path, content, acceptRanges, -1);
+    }
+
+    /**
+     * @param failAfter 首次响应发送指定字节数后断开连接，小于 0 时不断开
+     */
+    String put(String path, byte[] content, boolean acceptRanges, int failAfter) {
+        resources.put(path, new Resource(content, acceptRanges, failAfter));
+        return url(path);
+    }
+
+    /**
+     * 已添加的资源的前几次请求返回错误状态
+     * @param retryAfter 响应的 Retry-After，为 null 时不返回
+     */
+    void failWith(String path, int status, int times, String retryAfter) {
+        Resource resource = resources.get(path);
+        resource.errorStatus = status;
+        resource.retryAfter = retryAfter;
+        resource.errors.set(times);
+    }
+
+    /**
+     * 请求声明接受 gzip 时压缩传输，此时忽略 Range
+     */
+    String putCompressible(String path, byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(content);
+        }
+        Resource resource = new Resource(content, true, -1);
+        resource.gzipped = out.toByteArray();
+        resources.put(path, resource);
+        return url(path);
+    }
+
+    int getRequestCount() {
+        return requestCount.get();
+    }
+
+    long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        Resource resource = resources.get(exchange.getRequestURI().getPath());
+        if (resource == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        if (resource.errors.get() > 0 && resource.errors.getAndDecrement() > 0) {
+            if (resource.retryAfter != null) {
+                exchange.getResponseHeaders().set("Retry-After", resource.retryAfter);
+            }
+            exchange.sendResponseHeaders(resource.errorStatus, -1);
+            return;
+        }
+
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (resource.etag.equals(ifNoneMatch)) {
+            exchange.getResponseHeaders().set("ETag", resource.etag);
+            // HttpServer 在 304 响应后关闭连接，告知客户端不要复用
+            exchange.getResponseHeaders().set("Connection", "close");
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (resource.gzipped != null && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, resource.gzipped.length);
+            // 写入前计数，客户端读完响应时计数已更新
+            bytesSent.addAndGet(resource.gzipped.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(resource.gzipped);
+            }
+            return;
+        }
+
+        byte[] content = resource.content;
+        int start = 0;
+        int end = content.length - 1;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        boolean partial = resource.acceptRanges && range != null && range.startsWith("bytes=")
+                && (ifRange == null || ifRange.equals(resource.etag));
+        if (partial) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            start = Integer.parseInt(bounds[0]);
+            if (!bounds[1].isEmpty()) {
+                end = Math.min(end, Integer.parseInt(bounds[1]));
+            }
+            if (start >= content.length) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + content.length);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+        }
+        if (resource.acceptRanges) {
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        }
+        exchange.getResponseHeaders().set("ETag", resource.etag);
+
+        int length = end - start + 1;
+        boolean head = "HEAD".equals(exchange.getRequestMethod());
+        exchange.sendResponseHeaders(partial ? 206 : 200, head ? -1 : length);
+        if (!head) {
+            int failAfter = resource.failAfter.get();
+            try (OutputStream out = exchange.getResponseBody()) {
+                if (failAfter >= 0 && failAfter < length && resource.failAfter.compareAndSet(failAfter, -1)) {
+                    out.write(content, start, failAfter);
+                    out.flush();
+                    bytesSent.addAndGet(failAfter);
+                    throw new IOException("Simulated connection failure");
+                }
+                // 分块在写入前计数，客户端读完响应时计数已更新，提前断开时不统计未写出的部分
+                for (int off = 0; off < length; off += WRITE_CHUNK) {
+                    int n = Math.min(WRITE_CHUNK, length - off);
+                    bytesSent.addAndGet(n);
+                    out.write(content, start + off, n);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static class Resource {
+        final byte[] content;
+        final boolean acceptRanges;
+        final String etag;
+        final AtomicInteger failAfter;
+        final AtomicInteger errors = new AtomicInteger();
+        volatile int errorStatus;
+        volatile String retryAfter;
+        volatile byte[] gzipped;
+
+        Resource(byte[] content, boolean acceptRanges, int failAfter) {
+            this.content = content;
+            this.acceptRanges = acceptRanges;
+            this.etag = "\"" + Integer.toHexString(Arrays.hashCode(content)) + "\"";
+            this.failAfter = new AtomicInteger(failAfter);
+        }
+    }
+}